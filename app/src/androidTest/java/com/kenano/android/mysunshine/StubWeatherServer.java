@@ -0,0 +1,259 @@
+package com.kenano.android.mysunshine;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * A tiny http server standing in for api.openweathermap.org so the fetch path can be tested
+ * without network access.
+ *
+ * Every request for the daily forecast gets the same body back. The body is tagged with an
+ * ETag, and a request carrying that ETag in If-None-Match gets a 304 with no body.
+ * Connections are kept alive until the client closes them.
+ *
+ * A simulated round trip time can be set to make the cost of each request visible in
+ * benchmarks, and bodies can be gzipped for clients that ask for it.
+ */
+public class StubWeatherServer {
+
+    private final ServerSocket mServerSocket;
+    private final Thread mAcceptThread;
+
+    private volatile String mBody = "";
+    private volatile String mEtag;
+    private volatile long mLatencyMillis;
+    private volatile boolean mGzip;
+
+    private int mConnectionCount;
+    private int mRequestCount;
+    private int mNotModifiedCount;
+    private Map<String, String> mLastRequestHeaders = new HashMap<String, String>();
+
+    public StubWeatherServer() throws IOException {
+        mServerSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+        mAcceptThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                acceptLoop();
+            }
+        }, "StubWeatherServer");
+        mAcceptThread.start();
+    }
+
+    /**
+     * @return the url to hand to FetchWeatherTask in place of the OWM daily forecast url.
+     */
+    public String getForecastBaseUrl() {
+        return "http://127.0.0.1:" + mServerSocket.getLocalPort() + "/data/2.5/forecast/daily?";
+    }
+
+    /**
+     * @param latencyMillis how long to wait before answering each request.
+     */
+    public void setLatency(long latencyMillis) {
+        mLatencyMillis = latencyMillis;
+    }
+
+    /**
+     * @param gzip true to compress bodies when the request accepts gzip.
+     */
+    public void setGzip(boolean gzip) {
+        mGzip = gzip;
+    }
+
+    /**
+     * Sets what the forecast endpoint answers with from now on.
+     *
+     * @param body the json forecast.
+     * @param etag the validator for that body, or null to send none.
+     */
+    public void setForecast(String body, String etag) {
+        mBody = body;
+        mEtag = etag;
+    }
+
+    /**
+     * @return how many connections were accepted, fewer than requests when they are reused.
+     */
+    public synchronized int getConnectionCount() {
+        return mConnectionCount;
+    }
+
+    public synchronized int getRequestCount() {
+        return mRequestCount;
+    }
+
+    public synchronized int getNotModifiedCount() {
+        return mNotModifiedCount;
+    }
+
+    /**
+     * @return the headers of the last request received, names lower cased.
+     */
+    public synchronized Map<String, String> getLastRequestHeaders() {
+        return new HashMap<String, String>(mLastRequestHeaders);
+    }
+
+    public void shutdown() throws IOException {
+        mServerSocket.close();
+    }
+
+    private void acceptLoop() {
+        while (!mServerSocket.isClosed()) {
+            try {
+                final Socket socket = mServerSocket.accept();
+                synchronized (this) {
+                    mConnectionCount++;
+                }
+                new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        serve(socket);
+                    }
+                }, "StubWeatherServer-connection").start();
+            } catch (IOException e) {
+                // the server socket was closed.
+                return;
+            }
+        }
+    }
+
+    private void serve(Socket socket) {
+        try {
+            InputStream in = new BufferedInputStream(socket.getInputStream());
+            OutputStream out = socket.getOutputStream();
+
+            String requestLine;
+            while ((requestLine = readLine(in)) != null && requestLine.length() > 0) {
+                Map<String, String> headers = new HashMap<String, String>();
+                String line;
+                while ((line = readLine(in)) != null && line.length() > 0) {
+                    int colon = line.indexOf(':');
+                    if (colon > 0) {
+                        headers.put(line.substring(0, colon).trim().toLowerCase(),
+                                line.substring(colon + 1).trim());
+                    }
+                }
+
+                String path = requestLine.split(" ")[1];
+                respond(out, path, headers);
+
+                if ("close".equalsIgnoreCase(headers.get("connection"))) {
+                    break;
+                }
+            }
+        } catch (IOException e) {
+            // client went away.
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // nothing to do.
+            }
+        }
+    }
+
+    /**
+     * Writes the response for one request.
+     */
+    protected void respond(OutputStream out, String path, Map<String, String> headers)
+            throws IOException {
+        String etag = mEtag;
+        boolean notModified = etag != null && etag.equals(headers.get("if-none-match"));
+
+        synchronized (this) {
+            mRequestCount++;
+            if (notModified) {
+                mNotModifiedCount++;
+            }
+            mLastRequestHeaders = headers;
+        }
+
+        long latency = mLatencyMillis;
+        if (latency > 0) {
+            try {
+                Thread.sleep(latency);
+            } catch (InterruptedException e) {
+                throw new IOException("interrupted");
+            }
+        }
+
+        String encoding = null;
+        String acceptEncoding = headers.get("accept-encoding");
+        if (mGzip && acceptEncoding != null && acceptEncoding.contains("gzip")) {
+            encoding = "gzip";
+        }
+
+        if (notModified) {
+            writeResponse(out, "304 Not Modified", etag, null);
+        } else {
+            writeResponse(out, "200 OK", etag, encode(mBody, encoding), encoding);
+        }
+    }
+
+    protected void writeResponse(OutputStream out, String status, String etag, byte[] body)
+            throws IOException {
+        writeResponse(out, status, etag, body, null);
+    }
+
+    protected void writeResponse(OutputStream out, String status, String etag, byte[] body,
+                                 String encoding) throws IOException {
+        StringBuilder head = new StringBuilder("HTTP/1.1 ").append(status).append("\r\n");
+        if (etag != null) {
+            head.append("ETag: ").append(etag).append("\r\n");
+        }
+        if (encoding != null) {
+            head.append("Content-Encoding: ").append(encoding).append("\r\n");
+        }
+        if (body != null) {
+            head.append("Content-Type: application/json; charset=utf-8\r\n");
+            head.append("Content-Length: ").append(body.length).append("\r\n");
+        } else {
+            head.append("Content-Length: 0\r\n");
+        }
+        head.append("\r\n");
+
+        out.write(head.toString().getBytes("US-ASCII"));
+        if (body != null) {
+            out.write(body);
+        }
+        out.flush();
+    }
+
+    private static byte[] encode(String body, String encoding) throws IOException {
+        byte[] bytes = body.getBytes("UTF-8");
+        if (encoding == null) {
+            return bytes;
+        }
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        GZIPOutputStream gzip = new GZIPOutputStream(compressed);
+        gzip.write(bytes);
+        gzip.close();
+        return compressed.toByteArray();
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int c;
+        while ((c = in.read()) != -1) {
+            if (c == '\n') {
+                int end = line.length();
+                if (end > 0 && line.charAt(end - 1) == '\r') {
+                    line.setLength(end - 1);
+                }
+                return line.toString();
+            }
+            line.append((char) c);
+        }
+        return line.length() > 0 ? line.toString() : null;
+    }
+}
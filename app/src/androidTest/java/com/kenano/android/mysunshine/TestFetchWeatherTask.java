@@ -7,8 +7,10 @@ import android.database.Cursor;
 import android.net.Uri;
 import android.test.AndroidTestCase;
 
+import com.kenano.android.mysunshine.data.LocationIdCache;
 import com.kenano.android.mysunshine.data.TestUtilities;
 import com.kenano.android.mysunshine.data.WeatherContract;
+import com.kenano.android.mysunshine.data.WeatherRepository;
 
 /**
  * Created by KenanO on 9/15/16.
@@ -94,4 +96,141 @@ public class TestFetchWeatherTask extends AndroidTestCase {
                 acquireContentProviderClient(WeatherContract.LocationEntry.CONTENT_URI).
                 getLocalContentProvider().shutdown();
     }
+
+    /*
+        Fetches a forecast from a local stand-in for OWM twice. The second fetch sends back the
+        ETag of the first, gets a 304, and must not write anything through the provider.
+     */
+    public void testNotModifiedSkipsWrites() throws Exception {
+        // start from a clean state
+        getContext().getContentResolver().delete(WeatherContract.WeatherEntry.CONTENT_URI,
+                null, null);
+        getContext().getContentResolver().delete(WeatherContract.LocationEntry.CONTENT_URI,
+                WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ?",
+                new String[]{ADD_LOCATION_SETTING});
+
+        StubWeatherServer server = new StubWeatherServer();
+        server.setForecast(TestForecastJsonParser.FORECAST_JSON, "\"v1\"");
+        try {
+            FetchWeatherTask fwt = new FetchWeatherTask(getContext(),
+                    server.getForecastBaseUrl());
+
+            assertEquals("Error: the first fetch should insert every day of the forecast",
+                    2, fwt.fetchWeather(ADD_LOCATION_SETTING));
+            assertEquals("Error: the ETag of the forecast was not stored with its location",
+                    "\"v1\"", fwt.getValidators(ADD_LOCATION_SETTING)[0]);
+            String weatherIds = queryWeatherIds();
+
+            // watch everything the provider serves from here on.
+            TestUtilities.CountingObserver observer = new TestUtilities.CountingObserver();
+            getContext().getContentResolver().registerContentObserver(
+                    WeatherContract.BASE_CONTENT_URI, true, observer);
+
+            assertEquals("Error: a not modified forecast should not write any rows",
+                    0, fwt.fetchWeather(ADD_LOCATION_SETTING));
+            assertEquals("Error: the second fetch did not send If-None-Match",
+                    "\"v1\"", server.getLastRequestHeaders().get("if-none-match"));
+            assertEquals("Error: the server should have answered 304",
+                    1, server.getNotModifiedCount());
+
+            TestUtilities.assertNotificationCount(
+                    "Error: the 304 path notified observers of a change", 0, observer);
+            getContext().getContentResolver().unregisterContentObserver(observer);
+
+            assertEquals("Error: the 304 path rewrote weather rows", weatherIds,
+                    queryWeatherIds());
+        } finally {
+            server.shutdown();
+        }
+    }
+
+    /*
+        A server without validators sends the whole forecast every time. Days that did not
+        change must not be written again, and observers must not hear of a forecast that did
+        not change at all.
+     */
+    public void testUnchangedDaysSkipWrites() throws Exception {
+        getContext().getContentResolver().delete(WeatherContract.WeatherEntry.CONTENT_URI,
+                null, null);
+        getContext().getContentResolver().delete(WeatherContract.LocationEntry.CONTENT_URI,
+                WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ?",
+                new String[]{ADD_LOCATION_SETTING});
+
+        StubWeatherServer server = new StubWeatherServer();
+        server.setForecast(TestForecastJsonParser.FORECAST_JSON, null);
+        try {
+            FetchWeatherTask fwt = new FetchWeatherTask(getContext(),
+                    server.getForecastBaseUrl());
+            assertEquals(2, fwt.fetchWeather(ADD_LOCATION_SETTING));
+            String weatherIds = queryWeatherIds();
+
+            TestUtilities.CountingObserver observer = new TestUtilities.CountingObserver();
+            getContext().getContentResolver().registerContentObserver(
+                    WeatherContract.WeatherEntry.CONTENT_URI, true, observer);
+
+            assertEquals("Error: the same forecast again should not write any rows",
+                    0, fwt.fetchWeather(ADD_LOCATION_SETTING));
+            TestUtilities.assertNotificationCount(
+                    "Error: an unchanged forecast notified observers", 0, observer);
+
+            // only the humidity of the first day moves.
+            server.setForecast(TestForecastJsonParser.FORECAST_JSON.replace(
+                    "\"humidity\":72", "\"humidity\":75"), null);
+            assertEquals("Error: only the day that changed should be written",
+                    1, fwt.fetchWeather(ADD_LOCATION_SETTING));
+            TestUtilities.assertNotificationCount("Error: one changed day should notify once",
+                    1, observer);
+            getContext().getContentResolver().unregisterContentObserver(observer);
+
+            assertEquals("Error: the changed day should have been updated in place",
+                    weatherIds, queryWeatherIds());
+        } finally {
+            server.shutdown();
+        }
+    }
+
+    /*
+        The location id cache must forget a location once it is deleted, or weather rows would
+        be written against an id that no longer exists.
+     */
+    public void testLocationIdCacheInvalidation() {
+        getContext().getContentResolver().delete(WeatherContract.LocationEntry.CONTENT_URI,
+                WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ?",
+                new String[]{ADD_LOCATION_SETTING});
+
+        WeatherRepository repository = WeatherRepository.getInstance(getContext());
+        LocationIdCache idCache = LocationIdCache.getInstance(getContext());
+
+        long locationId = repository.addLocation(ADD_LOCATION_SETTING, ADD_LOCATION_CITY,
+                ADD_LOCATION_LAT, ADD_LOCATION_LON);
+        assertEquals("Error: a new location should be cached as it is inserted",
+                locationId, idCache.getId(ADD_LOCATION_SETTING));
+
+        getContext().getContentResolver().delete(WeatherContract.LocationEntry.CONTENT_URI,
+                WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ?",
+                new String[]{ADD_LOCATION_SETTING});
+        assertEquals("Error: deleting from the location table should empty the cache",
+                -1, idCache.getId(ADD_LOCATION_SETTING));
+
+        long newLocationId = repository.addLocation(ADD_LOCATION_SETTING, ADD_LOCATION_CITY,
+                ADD_LOCATION_LAT, ADD_LOCATION_LON);
+        assertTrue("Error: the location should have been inserted again", newLocationId != -1);
+        assertEquals(newLocationId, idCache.getId(ADD_LOCATION_SETTING));
+    }
+
+    private String queryWeatherIds() {
+        Cursor cursor = getContext().getContentResolver().query(
+                WeatherContract.WeatherEntry.buildWeatherLocation(ADD_LOCATION_SETTING),
+                new String[]{WeatherContract.WeatherEntry.TABLE_NAME + "." +
+                        WeatherContract.WeatherEntry._ID},
+                null,
+                null,
+                WeatherContract.WeatherEntry.COLUMN_DATE + " ASC");
+        StringBuilder ids = new StringBuilder();
+        while (cursor.moveToNext()) {
+            ids.append(cursor.getLong(0)).append(',');
+        }
+        cursor.close();
+        return ids.toString();
+    }
 }
@@ -0,0 +1,126 @@
+package com.kenano.android.mysunshine;
+
+import android.test.AndroidTestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Checks the streaming forecast parser against a trimmed down OWM daily response.
+ */
+public class TestForecastJsonParser extends AndroidTestCase {
+
+    // the list comes before the city here on purpose, the parser must not depend on the order.
+    static final String FORECAST_JSON = "{\"cod\":\"200\",\"message\":0.01,\"cnt\":2," +
+            "\"list\":[" +
+            "{\"dt\":1475694000,\"temp\":{\"day\":20.5,\"min\":11.2,\"max\":21.7}," +
+            "\"pressure\":1015.4,\"humidity\":72," +
+            "\"weather\":[{\"id\":800,\"main\":\"Clear\",\"description\":\"sky is clear\"}]," +
+            "\"speed\":3.1,\"deg\":280}," +
+            "{\"dt\":1475780400,\"temp\":{\"day\":18.0,\"min\":10.0,\"max\":19.5}," +
+            "\"pressure\":1012.0,\"humidity\":80," +
+            "\"weather\":[{\"id\":500,\"main\":\"Rain\",\"description\":\"light rain\"}]," +
+            "\"speed\":5.0,\"deg\":190,\"rain\":1.5}]," +
+            "\"city\":{\"id\":5375480,\"name\":\"Mountain View\"," +
+            "\"coord\":{\"lon\":-122.0838,\"lat\":37.3861},\"country\":\"US\"}}";
+
+    public void testParse() throws IOException {
+        final List<String> days = new ArrayList<String>();
+        final String[] city = new String[1];
+        final double[] coord = new double[2];
+
+        new ForecastJsonParser().parse(new ByteArrayInputStream(FORECAST_JSON.getBytes("UTF-8")),
+                new ForecastJsonParser.Listener() {
+                    @Override
+                    public void onCity(String cityName, double lat, double lon) {
+                        city[0] = cityName;
+                        coord[0] = lat;
+                        coord[1] = lon;
+                    }
+
+                    @Override
+                    public void onDay(int index, double pressure, int humidity, double windSpeed,
+                                      double windDirection, double high, double low,
+                                      String description, int weatherId) {
+                        days.add(index + ":" + pressure + ":" + humidity + ":" + windSpeed + ":" +
+                                windDirection + ":" + high + ":" + low + ":" + description +
+                                ":" + weatherId);
+                    }
+                });
+
+        assertEquals("Error: city name not parsed", "Mountain View", city[0]);
+        assertEquals("Error: latitude not parsed", 37.3861, coord[0]);
+        assertEquals("Error: longitude not parsed", -122.0838, coord[1]);
+
+        assertEquals("Error: wrong number of days parsed", 2, days.size());
+        assertEquals("0:1015.4:72:3.1:280.0:21.7:11.2:Clear:800", days.get(0));
+        assertEquals("1:1012.0:80:5.0:190.0:19.5:10.0:Rain:500", days.get(1));
+    }
+
+    public void testParseMissingValue() throws IOException {
+        // the first day has no humidity, the second day is complete.
+        String json = FORECAST_JSON.replace("\"humidity\":72,", "");
+        final List<Integer> days = new ArrayList<Integer>();
+        try {
+            new ForecastJsonParser().parse(new ByteArrayInputStream(json.getBytes("UTF-8")),
+                    new ForecastJsonParser.Listener() {
+                        @Override
+                        public void onCity(String cityName, double lat, double lon) {
+                        }
+
+                        @Override
+                        public void onDay(int index, double pressure, int humidity,
+                                          double windSpeed, double windDirection, double high,
+                                          double low, String description, int weatherId) {
+                            days.add(index);
+                        }
+                    });
+            fail("Error: a day missing values should fail the forecast");
+        } catch (IOException expected) {
+        }
+        assertTrue("Error: a day missing values was reported", days.isEmpty());
+    }
+
+    public void testParseCityWithoutCoordinates() throws IOException {
+        String json = FORECAST_JSON.replace(
+                ",\"coord\":{\"lon\":-122.0838,\"lat\":37.3861}", "");
+        try {
+            new ForecastJsonParser().parse(new ByteArrayInputStream(json.getBytes("UTF-8")),
+                    new ForecastJsonParser.Listener() {
+                        @Override
+                        public void onCity(String cityName, double lat, double lon) {
+                        }
+
+                        @Override
+                        public void onDay(int index, double pressure, int humidity,
+                                          double windSpeed, double windDirection, double high,
+                                          double low, String description, int weatherId) {
+                        }
+                    });
+            fail("Error: a city without coordinates should be rejected");
+        } catch (IOException expected) {
+        }
+    }
+
+    public void testParseMalformed() {
+        try {
+            new ForecastJsonParser().parse(
+                    new ByteArrayInputStream("{\"list\":{}}".getBytes()),
+                    new ForecastJsonParser.Listener() {
+                        @Override
+                        public void onCity(String cityName, double lat, double lon) {
+                        }
+
+                        @Override
+                        public void onDay(int index, double pressure, int humidity,
+                                          double windSpeed, double windDirection, double high,
+                                          double low, String description, int weatherId) {
+                        }
+                    });
+            fail("Error: a list that is not an array should be rejected");
+        } catch (IOException expected) {
+        }
+    }
+}
@@ -0,0 +1,23 @@
+package com.kenano.android.mysunshine;
+
+import android.test.AndroidTestCase;
+
+/**
+ * Checks the refresh policy used by ForecastFragment.onStart.
+ */
+public class TestSyncFreshness extends AndroidTestCase {
+
+    static final String FRESH_LOCATION = "Sunnydale, CA";
+    static final String NEVER_SYNCED_LOCATION = "Hellmouth, CA";
+
+    public void testFreshness() {
+        SyncFreshness.markSynced(getContext(), FRESH_LOCATION);
+
+        assertTrue("Error: a location synced just now should be fresh",
+                SyncFreshness.isFresh(getContext(), FRESH_LOCATION));
+        assertFalse("Error: a location that never synced should not be fresh",
+                SyncFreshness.isFresh(getContext(), NEVER_SYNCED_LOCATION));
+        assertTrue("Error: the last sync time was not recorded",
+                SyncFreshness.getLastSync(getContext(), FRESH_LOCATION) > 0);
+    }
+}
@@ -0,0 +1,97 @@
+package com.kenano.android.mysunshine;
+
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+
+/**
+ * Runs the pooled transport against the local stand-in for OWM.
+ */
+public class TestWeatherHttpTransport extends AndroidTestCase {
+
+    public static final String LOG_TAG = TestWeatherHttpTransport.class.getSimpleName();
+
+    public void testConnectionReuse() throws Exception {
+        StubWeatherServer server = new StubWeatherServer();
+        server.setForecast(TestForecastJsonParser.FORECAST_JSON, null);
+        try {
+            WeatherHttpTransport transport = new WeatherHttpTransport(1000, 1000);
+            URL url = new URL(server.getForecastBaseUrl() + "q=94043");
+
+            for (int i = 0; i < 3; i++) {
+                WeatherHttpTransport.Response response = transport.get(url, null);
+                assertEquals(200, response.getStatusCode());
+                assertEquals(TestForecastJsonParser.FORECAST_JSON, readBody(response));
+                response.close();
+                Log.d(LOG_TAG, "request " + i + ": " + response);
+
+                assertTrue(response.getConnectMillis() >= 0);
+                assertTrue(response.getFirstByteMillis() >= 0);
+                assertTrue(response.getBodyMillis() >= 0);
+            }
+
+            assertEquals(3, server.getRequestCount());
+            assertEquals(3, transport.getCompletedCount());
+            assertEquals("Error: closed responses should leave their connection for the next one",
+                    1, server.getConnectionCount());
+        } finally {
+            server.shutdown();
+        }
+    }
+
+    public void testGzip() throws Exception {
+        StubWeatherServer server = new StubWeatherServer();
+        server.setForecast(TestForecastJsonParser.FORECAST_JSON, null);
+        server.setGzip(true);
+        try {
+            WeatherHttpTransport transport = new WeatherHttpTransport(1000, 1000);
+            WeatherHttpTransport.Response response =
+                    transport.get(new URL(server.getForecastBaseUrl() + "q=94043"), null);
+            try {
+                assertEquals("Error: the body should be decoded as it is read",
+                        TestForecastJsonParser.FORECAST_JSON, readBody(response));
+                assertEquals("gzip", response.getHeader("Content-Encoding"));
+            } finally {
+                response.close();
+            }
+            assertEquals("gzip", server.getLastRequestHeaders().get("accept-encoding"));
+        } finally {
+            server.shutdown();
+        }
+    }
+
+    public void testReadTimeout() throws Exception {
+        StubWeatherServer server = new StubWeatherServer();
+        server.setForecast(TestForecastJsonParser.FORECAST_JSON, null);
+        server.setLatency(1000);
+        try {
+            WeatherHttpTransport transport = new WeatherHttpTransport(1000, 100);
+            try {
+                transport.get(new URL(server.getForecastBaseUrl() + "q=94043"), null).close();
+                fail("Error: a server slower than the read timeout should fail the request");
+            } catch (IOException expected) {
+            }
+            assertEquals(1, transport.getRequestCount());
+            assertEquals("Error: a failed request should stay out of the averages",
+                    0, transport.getCompletedCount());
+            assertEquals(0, transport.getAverageFirstByteMillis());
+        } finally {
+            server.shutdown();
+        }
+    }
+
+    private static String readBody(WeatherHttpTransport.Response response) throws IOException {
+        InputStream in = response.getBody();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1024];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+        }
+        return out.toString("UTF-8");
+    }
+}
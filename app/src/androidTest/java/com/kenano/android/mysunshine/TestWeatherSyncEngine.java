@@ -0,0 +1,120 @@
+package com.kenano.android.mysunshine;
+
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.kenano.android.mysunshine.data.LocationIdCache;
+import com.kenano.android.mysunshine.data.WeatherContract;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Runs the multi location sync engine against the local stand-in for OWM.
+ */
+public class TestWeatherSyncEngine extends AndroidTestCase {
+
+    public static final String LOG_TAG = TestWeatherSyncEngine.class.getSimpleName();
+
+    static final int LOCATION_COUNT = 12;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        // start from a clean state
+        getContext().getContentResolver().delete(WeatherContract.WeatherEntry.CONTENT_URI,
+                null, null);
+        getContext().getContentResolver().delete(WeatherContract.LocationEntry.CONTENT_URI,
+                null, null);
+    }
+
+    public void testSyncManyLocations() throws Exception {
+        List<String> locations = new ArrayList<String>();
+        for (int i = 0; i < LOCATION_COUNT; i++) {
+            locations.add("9404" + i);
+        }
+        // duplicates are only synced once.
+        locations.add("94040");
+
+        StubWeatherServer server = new StubWeatherServer();
+        server.setForecast(TestForecastJsonParser.FORECAST_JSON, "\"v1\"");
+        try {
+            WeatherSyncEngine engine = new WeatherSyncEngine(getContext(),
+                    server.getForecastBaseUrl(), 4, 2);
+
+            WeatherSyncEngine.Stats stats = engine.sync(locations);
+            Log.d(LOG_TAG, "cold sync: " + stats);
+
+            assertEquals("Error: duplicate locations should be synced once",
+                    LOCATION_COUNT, stats.requested);
+            assertEquals("Error: every location should have been stored",
+                    LOCATION_COUNT, stats.synced);
+            assertEquals(0, stats.failed);
+            assertEquals("Error: every day of every forecast should have been written",
+                    LOCATION_COUNT * 2, stats.rows);
+            assertTrue(stats.getRowsPerSecond() > 0);
+
+            // nothing changed upstream, the second run is all 304s.
+            stats = engine.sync(locations);
+            Log.d(LOG_TAG, "warm sync: " + stats);
+
+            assertEquals(LOCATION_COUNT, stats.unchanged);
+            assertEquals(LOCATION_COUNT, server.getNotModifiedCount());
+            assertEquals(0, stats.rows);
+        } finally {
+            server.shutdown();
+        }
+    }
+
+    public void testWarmSyncSkipsLocationQueries() throws Exception {
+        List<String> locations = new ArrayList<String>();
+        for (int i = 0; i < LOCATION_COUNT; i++) {
+            locations.add("9404" + i);
+        }
+
+        StubWeatherServer server = new StubWeatherServer();
+        // no ETag, so every sync downloads and stores the forecast again.
+        server.setForecast(TestForecastJsonParser.FORECAST_JSON, null);
+        try {
+            WeatherSyncEngine engine = new WeatherSyncEngine(getContext(),
+                    server.getForecastBaseUrl(), 4, 2);
+            engine.sync(locations);
+
+            LocationIdCache idCache = LocationIdCache.getInstance(getContext());
+            long hits = idCache.getHitCount();
+            long misses = idCache.getMissCount();
+
+            // the same forecast again, nothing to write.
+            WeatherSyncEngine.Stats stats = engine.sync(locations);
+            assertEquals(LOCATION_COUNT, stats.unchanged);
+
+            // addLocation only queries the provider on a miss.
+            assertEquals("Error: a warm sync should not look any location up",
+                    0, idCache.getMissCount() - misses);
+            assertEquals(LOCATION_COUNT, idCache.getHitCount() - hits);
+        } finally {
+            server.shutdown();
+        }
+    }
+
+    public void testFailuresAreCounted() throws Exception {
+        List<String> locations = new ArrayList<String>();
+        for (int i = 0; i < LOCATION_COUNT; i++) {
+            locations.add("9404" + i);
+        }
+
+        StubWeatherServer server = new StubWeatherServer();
+        WeatherSyncEngine engine = new WeatherSyncEngine(getContext(),
+                server.getForecastBaseUrl(), 4, 2);
+        // nothing listens on the port any more, every request fails to connect.
+        server.shutdown();
+
+        WeatherSyncEngine.Stats stats = engine.sync(locations);
+        Log.d(LOG_TAG, "failed sync: " + stats);
+
+        assertEquals("Error: every failed fetch should have been counted",
+                LOCATION_COUNT, stats.failed);
+        assertEquals(0, stats.synced);
+        assertEquals(0, stats.unchanged);
+    }
+}
@@ -0,0 +1,346 @@
+package com.kenano.android.mysunshine.data;
+
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.test.AndroidTestCase;
+
+import java.util.Calendar;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.TimeZone;
+
+/**
+ * Builds a db with the schema of every old version, fills it, and upgrades it with
+ * WeatherDbHelper. The rows must survive and the result must match a freshly created db.
+ */
+public class TestDbMigration extends AndroidTestCase {
+
+    static final String TEST_DATABASE_NAME = "weather_migration_test.db";
+    static final String FRESH_DATABASE_NAME = "weather_migration_fresh.db";
+
+    static final int LOCATION_COUNT = 3;
+    static final int DAYS_PER_LOCATION = 10;
+
+    // the UTC midnight of the first day stored, December 14th, 2016.
+    static final long FIRST_DATE = 1481673600000L;
+
+    // zones whose local midnights are furthest from the UTC midnight of the same date, the
+    // last two more than 12 hours ahead of it.
+    static final String[] ZONES = {"America/Los_Angeles", "Pacific/Tongatapu",
+            "Pacific/Kiritimati"};
+
+    // The schema as each version created it. These are snapshots and must never follow the
+    // contract, when the schema changes add the new version here instead.
+    private static final String V1_LOCATION_TABLE = "CREATE TABLE location (" +
+            "_id INTEGER PRIMARY KEY,location_setting TEXT UNIQUE NOT NULL, " +
+            "city_name TEXT NOT NULL, coord_lat REAL NOT NULL, coord_long REAL NOT NULL);";
+    private static final String V1_WEATHER_TABLE = "CREATE TABLE weather (" +
+            "_id INTEGER PRIMARY KEY AUTOINCREMENT,location_id INTEGER NOT NULL, " +
+            "date INTEGER NOT NULL, short_desc TEXT NOT NULL, weather_id INTEGER NOT NULL," +
+            "min REAL NOT NULL, max REAL NOT NULL, humidity REAL NOT NULL, " +
+            "pressure REAL NOT NULL, wind REAL NOT NULL, degrees REAL NOT NULL,  " +
+            "FOREIGN KEY (location_id) REFERENCES location (_id),  " +
+            "UNIQUE (date, location_id) ON CONFLICT REPLACE);";
+    private static final String V2_LOCATION_TABLE = "CREATE TABLE location (" +
+            "_id INTEGER PRIMARY KEY,location_setting TEXT UNIQUE NOT NULL, " +
+            "city_name TEXT NOT NULL, coord_lat REAL NOT NULL, coord_long REAL NOT NULL, " +
+            "etag TEXT, last_modified TEXT);";
+    private static final String V3_WEATHER_LOCATION_DATE_INDEX = "CREATE INDEX " +
+            "weather_location_date ON weather (location_id, date, short_desc, max, min, " +
+            "weather_id);";
+    private static final String V5_WEATHER_TABLE = "CREATE TABLE weather (" +
+            "_id INTEGER PRIMARY KEY AUTOINCREMENT,location_id INTEGER NOT NULL, " +
+            "day INTEGER NOT NULL, short_desc TEXT NOT NULL, weather_id INTEGER NOT NULL," +
+            "min REAL NOT NULL, max REAL NOT NULL, humidity REAL NOT NULL, " +
+            "pressure REAL NOT NULL, wind REAL NOT NULL, degrees REAL NOT NULL,  " +
+            "FOREIGN KEY (location_id) REFERENCES location (_id),  " +
+            "UNIQUE (day, location_id) ON CONFLICT REPLACE);";
+    private static final String V5_WEATHER_LOCATION_DAY_INDEX = "CREATE INDEX " +
+            "weather_location_date ON weather (location_id, day, short_desc, max, min, " +
+            "weather_id);";
+    private static final String V5_WEATHER_DATES_VIEW = "CREATE VIEW weather_dates AS " +
+            "SELECT *, CAST(day * 86400000 AS INTEGER) AS date FROM weather";
+    private static final String V6_WEATHER_TABLE = "CREATE TABLE weather (" +
+            "_id INTEGER PRIMARY KEY AUTOINCREMENT,location_id INTEGER NOT NULL, " +
+            "day INTEGER NOT NULL, short_desc TEXT NOT NULL, weather_id INTEGER NOT NULL," +
+            "min INTEGER NOT NULL, max INTEGER NOT NULL, humidity INTEGER NOT NULL, " +
+            "pressure INTEGER NOT NULL, wind INTEGER NOT NULL, degrees INTEGER NOT NULL,  " +
+            "FOREIGN KEY (location_id) REFERENCES location (_id),  " +
+            "UNIQUE (day, location_id) ON CONFLICT REPLACE);";
+    private static final String V6_WEATHER_DATES_VIEW = "CREATE VIEW weather_dates AS " +
+            "SELECT _id, location_id, day, CAST(day * 86400000 AS INTEGER) AS date, " +
+            "short_desc, weather_id, CAST(min / 100.0 AS REAL) AS min, " +
+            "CAST(max / 100.0 AS REAL) AS max, CAST(humidity / 100.0 AS REAL) AS humidity, " +
+            "CAST(pressure / 100.0 AS REAL) AS pressure, CAST(wind / 100.0 AS REAL) AS wind, " +
+            "CAST(degrees / 100.0 AS REAL) AS degrees FROM weather;";
+    private static final String V7_PACKED_FORECAST_TABLE = "CREATE TABLE packed_forecast (" +
+            "location_id INTEGER PRIMARY KEY, first_day INTEGER NOT NULL, " +
+            "last_day INTEGER NOT NULL, days BLOB NOT NULL,  " +
+            "FOREIGN KEY (location_id) REFERENCES location (_id));";
+
+    static String[] getSchema(int version) {
+        switch (version) {
+            case 1:
+                return new String[]{V1_WEATHER_TABLE, V1_LOCATION_TABLE};
+            case 2:
+                return new String[]{V1_WEATHER_TABLE, V2_LOCATION_TABLE};
+            case 3:
+            case 4:
+                // version 4 only changed the dates stored.
+                return new String[]{V1_WEATHER_TABLE, V2_LOCATION_TABLE,
+                        V3_WEATHER_LOCATION_DATE_INDEX};
+            case 5:
+                return new String[]{V5_WEATHER_TABLE, V2_LOCATION_TABLE,
+                        V5_WEATHER_LOCATION_DAY_INDEX, V5_WEATHER_DATES_VIEW};
+            case 6:
+                return new String[]{V6_WEATHER_TABLE, V2_LOCATION_TABLE,
+                        V5_WEATHER_LOCATION_DAY_INDEX, V6_WEATHER_DATES_VIEW};
+            case 7:
+                return new String[]{V6_WEATHER_TABLE, V2_LOCATION_TABLE,
+                        V5_WEATHER_LOCATION_DAY_INDEX, V6_WEATHER_DATES_VIEW,
+                        V7_PACKED_FORECAST_TABLE};
+            default:
+                return null;
+        }
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mContext.deleteDatabase(TEST_DATABASE_NAME);
+        mContext.deleteDatabase(FRESH_DATABASE_NAME);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mContext.deleteDatabase(TEST_DATABASE_NAME);
+        mContext.deleteDatabase(FRESH_DATABASE_NAME);
+        super.tearDown();
+    }
+
+    public void testUpgradeFromEveryVersion() {
+        for (int version = 1; version < WeatherDbHelper.DATABASE_VERSION; version++) {
+            mContext.deleteDatabase(TEST_DATABASE_NAME);
+            upgradeFrom(version);
+        }
+    }
+
+    public void testUpgradeDatesFromEveryZone() {
+        TimeZone defaultZone = TimeZone.getDefault();
+        try {
+            for (String zone : ZONES) {
+                TimeZone.setDefault(TimeZone.getTimeZone(zone));
+                // version 3 is the last to store local midnights.
+                for (int version = 1; version < 4; version++) {
+                    mContext.deleteDatabase(TEST_DATABASE_NAME);
+                    upgradeFrom(version);
+                }
+            }
+        } finally {
+            TimeZone.setDefault(defaultZone);
+        }
+    }
+
+    public void testEveryVersionHasMigration() {
+        for (int version = 2; version <= WeatherDbHelper.DATABASE_VERSION; version++) {
+            assertNotNull("Error: no migration to version " + version,
+                    WeatherDbHelper.getMigration(version));
+        }
+    }
+
+    /*
+        The packed rows of version 7 have no row ids. They are dropped, and their location's
+        validators with them so the next sync downloads the days again.
+     */
+    public void testUpgradeDropsPackedForecastsWithoutRowIds() {
+        SQLiteDatabase oldDb = SQLiteDatabase.openOrCreateDatabase(
+                mContext.getDatabasePath(TEST_DATABASE_NAME), null);
+        for (String statement : getSchema(7)) {
+            oldDb.execSQL(statement);
+        }
+        for (int l = 1; l <= 2; l++) {
+            oldDb.execSQL("INSERT INTO location (_id, location_setting, city_name, coord_lat, " +
+                    "coord_long, etag, last_modified) VALUES (?, ?, ?, ?, ?, ?, ?)",
+                    new Object[]{l, "9404" + l, "City " + l, 37.0 + l, -122.0 - l,
+                            "\"v" + l + "\"", "Wed, 14 Dec 2016 00:00:00 GMT"});
+        }
+        oldDb.execSQL("INSERT INTO packed_forecast (location_id, first_day, last_day, days) " +
+                "VALUES (1, 17149, 17149, ?)", new Object[]{new byte[]{1, 0, 0, 0, 0}});
+        oldDb.setVersion(7);
+        oldDb.close();
+
+        WeatherDbHelper helper = new WeatherDbHelper(mContext, TEST_DATABASE_NAME);
+        SQLiteDatabase db = helper.getWritableDatabase();
+        try {
+            assertEquals(0, DatabaseUtils.queryNumEntries(db,
+                    WeatherContract.PackedForecastEntry.TABLE_NAME));
+            assertEquals("Error: the packed location should have lost its validators",
+                    1, DatabaseUtils.queryNumEntries(db, WeatherContract.LocationEntry.TABLE_NAME,
+                            "etag IS NULL AND last_modified IS NULL", null));
+            assertEquals("Error: a location without a packed row should keep its validators",
+                    "\"v2\"", DatabaseUtils.stringForQuery(db,
+                            "SELECT etag FROM location WHERE _id = 2", null));
+        } finally {
+            helper.close();
+        }
+    }
+
+    /*
+        Version 6 turned the REAL measurements into hundredths. They must round the way
+        toFixedPoint does, halves up, which for a negative half is towards zero.
+     */
+    public void testUpgradeRoundsMeasurementsLikeToFixedPoint() {
+        double[] measurements = {-0.125, -2.375, 0.125, -3.7, 1013.255, -0.005};
+        SQLiteDatabase oldDb = SQLiteDatabase.openOrCreateDatabase(
+                mContext.getDatabasePath(TEST_DATABASE_NAME), null);
+        for (String statement : getSchema(5)) {
+            oldDb.execSQL(statement);
+        }
+        oldDb.execSQL("INSERT INTO location (_id, location_setting, city_name, coord_lat, " +
+                "coord_long) VALUES (1, '94041', 'City 1', 38.0, -123.0)");
+        for (int d = 0; d < measurements.length; d++) {
+            double value = measurements[d];
+            oldDb.execSQL("INSERT INTO weather (location_id, day, short_desc, weather_id, " +
+                    "min, max, humidity, pressure, wind, degrees) " +
+                    "VALUES (1, ?, 'Clear', 800, ?, ?, ?, ?, ?, ?)",
+                    new Object[]{WeatherContract.dateToDay(FIRST_DATE) + d, value, value, value,
+                            value, value, value});
+        }
+        oldDb.setVersion(5);
+        oldDb.close();
+
+        WeatherDbHelper helper = new WeatherDbHelper(mContext, TEST_DATABASE_NAME);
+        SQLiteDatabase db = helper.getWritableDatabase();
+        try {
+            Cursor c = db.rawQuery("SELECT min, max, humidity, pressure, wind, degrees FROM " +
+                    WeatherContract.WeatherEntry.TABLE_NAME + " ORDER BY day", null);
+            assertEquals(measurements.length, c.getCount());
+            for (double value : measurements) {
+                c.moveToNext();
+                for (int i = 0; i < c.getColumnCount(); i++) {
+                    assertEquals("Error: " + value + " not rounded like toFixedPoint",
+                            WeatherDbHelper.toFixedPoint(value), c.getLong(i));
+                }
+            }
+            c.close();
+        } finally {
+            helper.close();
+        }
+    }
+
+    private void upgradeFrom(int version) {
+        String[] schema = getSchema(version);
+        assertNotNull("Error: no schema snapshot for version " + version, schema);
+
+        SQLiteDatabase oldDb = SQLiteDatabase.openOrCreateDatabase(
+                mContext.getDatabasePath(TEST_DATABASE_NAME), null);
+        for (String statement : schema) {
+            oldDb.execSQL(statement);
+        }
+        for (int l = 1; l <= LOCATION_COUNT; l++) {
+            oldDb.execSQL("INSERT INTO location (_id, location_setting, city_name, coord_lat, " +
+                    "coord_long) VALUES (?, ?, ?, ?, ?)",
+                    new Object[]{l, "9404" + l, "City " + l, 37.0 + l, -122.0 - l});
+            for (int d = 0; d < DAYS_PER_LOCATION; d++) {
+                long date = getStoredDate(version, FIRST_DATE + d * 86400000L);
+                // version 5 keyed the rows by day, version 6 stored hundredths.
+                Object[] measurements = version >= 6
+                        ? new Object[]{1050, 2050, 5000, 101320, 350, 18000}
+                        : new Object[]{10.5, 20.5, 50, 1013.2, 3.5, 180};
+                oldDb.execSQL("INSERT INTO weather (location_id, " +
+                        (version >= 5 ? "day" : "date") + ", short_desc, weather_id, " +
+                        "min, max, humidity, pressure, wind, degrees) " +
+                        "VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?)",
+                        new Object[]{l, version >= 5 ? WeatherContract.dateToDay(date) : date,
+                                "Clear", 800, measurements[0], measurements[1], measurements[2],
+                                measurements[3], measurements[4], measurements[5]});
+            }
+        }
+        oldDb.setVersion(version);
+        oldDb.close();
+
+        WeatherDbHelper helper = new WeatherDbHelper(mContext, TEST_DATABASE_NAME);
+        SQLiteDatabase db = helper.getWritableDatabase();
+        try {
+            assertEquals(WeatherDbHelper.DATABASE_VERSION, db.getVersion());
+
+            assertEquals("Error: locations lost upgrading from version " + version,
+                    LOCATION_COUNT, DatabaseUtils.queryNumEntries(db,
+                            WeatherContract.LocationEntry.TABLE_NAME));
+            assertEquals("Error: weather rows lost upgrading from version " + version,
+                    LOCATION_COUNT * DAYS_PER_LOCATION, DatabaseUtils.queryNumEntries(db,
+                            WeatherContract.WeatherEntry.TABLE_NAME));
+            // every date became the day key of its calendar date.
+            long firstDay = WeatherContract.dateToDay(FIRST_DATE);
+            assertEquals("Error: days not kept upgrading from version " + version + " in " +
+                            TimeZone.getDefault().getID(),
+                    0, DatabaseUtils.longForQuery(db, "SELECT COUNT(*) FROM " +
+                            WeatherContract.WeatherEntry.TABLE_NAME + " WHERE " +
+                            WeatherContract.WeatherEntry.COLUMN_DAY + " NOT BETWEEN " +
+                            firstDay + " AND " + (firstDay + DAYS_PER_LOCATION - 1), null));
+            // and every measurement its fixed point value.
+            assertEquals("Error: measurements not kept upgrading from version " + version,
+                    LOCATION_COUNT * DAYS_PER_LOCATION, DatabaseUtils.longForQuery(db,
+                            "SELECT COUNT(*) FROM " + WeatherContract.WeatherEntry.TABLE_NAME +
+                                    " WHERE min = 1050 AND max = 2050 AND humidity = 5000 AND " +
+                                    "pressure = 101320 AND wind = 350 AND degrees = 18000",
+                            null));
+
+            assertSameSchema(version, db);
+        } finally {
+            helper.close();
+        }
+    }
+
+    /**
+     * @return the date an old version stored for a day: its local midnight before version 4,
+     * the UTC midnight of its calendar date after.
+     */
+    private static long getStoredDate(int version, long utcMidnight) {
+        if (version >= 4) {
+            return utcMidnight;
+        }
+        Calendar utc = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
+        utc.setTimeInMillis(utcMidnight);
+        Calendar local = Calendar.getInstance();
+        local.clear();
+        local.set(utc.get(Calendar.YEAR), utc.get(Calendar.MONTH),
+                utc.get(Calendar.DAY_OF_MONTH));
+        return local.getTimeInMillis();
+    }
+
+    /**
+     * Checks an upgraded db has the columns and indexes a new install gets.
+     */
+    private void assertSameSchema(int version, SQLiteDatabase upgraded) {
+        WeatherDbHelper freshHelper = new WeatherDbHelper(mContext, FRESH_DATABASE_NAME);
+        SQLiteDatabase fresh = freshHelper.getReadableDatabase();
+        try {
+            for (String table : new String[]{WeatherContract.LocationEntry.TABLE_NAME,
+                    WeatherContract.WeatherEntry.TABLE_NAME,
+                    WeatherContract.PackedForecastEntry.TABLE_NAME}) {
+                assertEquals("Error: columns of " + table + " differ after upgrading from " +
+                                "version " + version,
+                        readNames(fresh, "PRAGMA table_info(" + table + ")"),
+                        readNames(upgraded, "PRAGMA table_info(" + table + ")"));
+            }
+            String indexes = "SELECT name FROM sqlite_master WHERE type IN ('index', 'view')";
+            assertEquals("Error: indexes or views differ after upgrading from version " + version,
+                    readNames(fresh, indexes), readNames(upgraded, indexes));
+        } finally {
+            freshHelper.close();
+        }
+    }
+
+    private static Set<String> readNames(SQLiteDatabase db, String sql) {
+        Set<String> names = new HashSet<String>();
+        Cursor c = db.rawQuery(sql, null);
+        int nameIndex = c.getColumnIndex("name");
+        while (c.moveToNext()) {
+            names.add(c.getString(nameIndex));
+        }
+        c.close();
+        return names;
+    }
+}
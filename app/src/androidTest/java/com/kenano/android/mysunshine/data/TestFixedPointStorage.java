@@ -0,0 +1,158 @@
+package com.kenano.android.mysunshine.data;
+
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import java.util.Random;
+
+/**
+ * Compares the size of the weather table and the time it takes to write and read it with the
+ * measurements stored as REALs, as up to version 5, and as fixed point INTEGERs, over several
+ * years of weather for a number of locations.
+ */
+public class TestFixedPointStorage extends AndroidTestCase {
+
+    public static final String LOG_TAG = TestFixedPointStorage.class.getSimpleName();
+
+    static final String REAL_DATABASE_NAME = "weather_real_test.db";
+    static final String FIXED_POINT_DATABASE_NAME = "weather_fixed_point_test.db";
+
+    static final int LOCATION_COUNT = 20;
+    static final int DAYS_PER_LOCATION = 3 * 365;
+
+    private static final String SELECT_MEASUREMENTS = "SELECT min, max, humidity, pressure, " +
+            "wind, degrees FROM ";
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mContext.deleteDatabase(REAL_DATABASE_NAME);
+        mContext.deleteDatabase(FIXED_POINT_DATABASE_NAME);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mContext.deleteDatabase(REAL_DATABASE_NAME);
+        mContext.deleteDatabase(FIXED_POINT_DATABASE_NAME);
+        super.tearDown();
+    }
+
+    public void testFixedPointStorage() {
+        SQLiteDatabase realDb = SQLiteDatabase.openOrCreateDatabase(
+                mContext.getDatabasePath(REAL_DATABASE_NAME), null);
+        for (String statement : TestDbMigration.getSchema(5)) {
+            realDb.execSQL(statement);
+        }
+        WeatherDbHelper helper = new WeatherDbHelper(mContext, FIXED_POINT_DATABASE_NAME);
+        SQLiteDatabase fixedPointDb = helper.getWritableDatabase();
+        try {
+            long realInsertMillis = fill(realDb, false);
+            long fixedPointInsertMillis = fill(fixedPointDb, true);
+
+            double[] realSums = new double[6];
+            long start = SystemClock.elapsedRealtime();
+            readMeasurements(realDb,
+                    SELECT_MEASUREMENTS + WeatherContract.WeatherEntry.TABLE_NAME, realSums);
+            long realReadMillis = SystemClock.elapsedRealtime() - start;
+
+            // the view decodes the columns the same way the provider's projections do.
+            double[] fixedPointSums = new double[6];
+            start = SystemClock.elapsedRealtime();
+            readMeasurements(fixedPointDb,
+                    SELECT_MEASUREMENTS + WeatherDbHelper.VIEW_WEATHER_DATES, fixedPointSums);
+            long fixedPointReadMillis = SystemClock.elapsedRealtime() - start;
+
+            long realBytes = getSizeBytes(realDb);
+            long fixedPointBytes = getSizeBytes(fixedPointDb);
+
+            Log.d(LOG_TAG, LOCATION_COUNT * DAYS_PER_LOCATION + " rows, REAL " + realBytes +
+                    " bytes, insert " + realInsertMillis + " ms, read " + realReadMillis +
+                    " ms; fixed point " + fixedPointBytes + " bytes, insert " +
+                    fixedPointInsertMillis + " ms, read " + fixedPointReadMillis + " ms");
+
+            for (int i = 0; i < realSums.length; i++) {
+                assertEquals("Error: fixed point column " + i + " does not read back as stored",
+                        realSums[i], fixedPointSums[i], 0.01 * LOCATION_COUNT * DAYS_PER_LOCATION);
+            }
+            assertTrue("Error: the fixed point db should be smaller than the REAL one",
+                    fixedPointBytes < realBytes);
+        } finally {
+            realDb.close();
+            helper.close();
+        }
+    }
+
+    /**
+     * Writes the same pseudo random weather, to hundredths like the api sends it, into a db.
+     *
+     * @return how long the inserts took.
+     */
+    private static long fill(SQLiteDatabase db, boolean fixedPoint) {
+        Random random = new Random(42);
+        long firstDay = WeatherContract.dateToDay(TestUtilities.TEST_DATE);
+        long start = SystemClock.elapsedRealtime();
+        db.beginTransaction();
+        try {
+            SQLiteStatement insert = db.compileStatement("INSERT INTO " +
+                    WeatherContract.WeatherEntry.TABLE_NAME + " (location_id, day, short_desc, " +
+                    "weather_id, min, max, humidity, pressure, wind, degrees) " +
+                    "VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?)");
+            for (int l = 1; l <= LOCATION_COUNT; l++) {
+                db.execSQL("INSERT INTO location (_id, location_setting, city_name, coord_lat, " +
+                        "coord_long) VALUES (?, ?, ?, ?, ?)",
+                        new Object[]{l, "9404" + l, "City " + l, 37.0 + l, -122.0 - l});
+                for (int d = 0; d < DAYS_PER_LOCATION; d++) {
+                    double min = (-1500 + random.nextInt(3000)) / 100.0;
+                    double[] measurements = {
+                            min,
+                            min + random.nextInt(1500) / 100.0,
+                            random.nextInt(101),
+                            (95000 + random.nextInt(9000)) / 100.0,
+                            random.nextInt(2000) / 100.0,
+                            random.nextInt(360)
+                    };
+                    insert.bindLong(1, l);
+                    insert.bindLong(2, firstDay + d);
+                    insert.bindString(3, "Clear");
+                    insert.bindLong(4, 800);
+                    for (int i = 0; i < measurements.length; i++) {
+                        if (fixedPoint) {
+                            insert.bindLong(5 + i, WeatherDbHelper.toFixedPoint(measurements[i]));
+                        } else {
+                            insert.bindDouble(5 + i, measurements[i]);
+                        }
+                    }
+                    insert.executeInsert();
+                }
+            }
+            insert.close();
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        return SystemClock.elapsedRealtime() - start;
+    }
+
+    private static void readMeasurements(SQLiteDatabase db, String sql, double[] sums) {
+        Cursor c = db.rawQuery(sql, null);
+        try {
+            while (c.moveToNext()) {
+                for (int i = 0; i < sums.length; i++) {
+                    sums[i] += c.getDouble(i);
+                }
+            }
+        } finally {
+            c.close();
+        }
+    }
+
+    private static long getSizeBytes(SQLiteDatabase db) {
+        return DatabaseUtils.longForQuery(db, "PRAGMA page_count", null) *
+                DatabaseUtils.longForQuery(db, "PRAGMA page_size", null);
+    }
+}
@@ -1,19 +1,34 @@
 package com.kenano.android.mysunshine.data;
 
 import android.content.ComponentName;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentUris;
 import android.content.ContentValues;
+import android.content.OperationApplicationException;
 import android.content.pm.PackageManager;
 import android.content.pm.ProviderInfo;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteQueryBuilder;
 import android.net.Uri;
 import android.os.Build;
+import android.os.Bundle;
 import android.test.AndroidTestCase;
 import android.util.Log;
 
 import com.kenano.android.mysunshine.data.WeatherContract.WeatherEntry;
 import com.kenano.android.mysunshine.data.WeatherContract.LocationEntry;
+import com.kenano.android.mysunshine.data.WeatherContract.PackedForecastEntry;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
 /**
  * Created by KenanO on 9/6/16.
  */
@@ -21,6 +36,10 @@ public class TestProvider extends AndroidTestCase {
 
     public static final String LOG_TAG = TestProvider.class.getSimpleName();
 
+    static final long NOTIFICATION_TIMEOUT_MILLIS = 5000;
+
+    static final String OTHER_LOCATION = "94043";
+
 
     // Since we want each test to start with a clean slate, run deleteAllRecords
     // in setUp (called by the test runner before each test).
@@ -35,7 +54,8 @@ public class TestProvider extends AndroidTestCase {
         you have implemented delete functionality there.
      */
     public void deleteAllRecords() {
-        deleteAllRecordsFromDB();
+        // through the provider, so LocationIdCache hears of the deleted locations.
+        deleteAllRecordsFromProvider();
     }
 
     /*
@@ -174,7 +194,11 @@ public class TestProvider extends AndroidTestCase {
         // Fantastic.  Now that we have a location, add some weather!
         ContentValues weatherValues = TestUtilities.createWeatherValues(locationRowId);
 
-        long weatherRowId = db.insert(WeatherEntry.TABLE_NAME, null, weatherValues);
+        // the table stores a day key, the provider gives back the normalized date of it.
+        long weatherRowId = db.insert(WeatherEntry.TABLE_NAME, null,
+                WeatherProvider.toStoredValues(weatherValues));
+        weatherValues.put(WeatherEntry.COLUMN_DATE,
+                WeatherContract.normalizeDate(TestUtilities.TEST_DATE));
         assertTrue("Unable to Insert WeatherEntry into the Database", weatherRowId != -1);
 
         db.close();
@@ -383,6 +407,24 @@ public class TestProvider extends AndroidTestCase {
         cursor.close();
     }
 
+    public void testRenameLocationDropsCachedId() {
+        WeatherRepository repository = WeatherRepository.getInstance(mContext);
+        long locationId = repository.addLocation(TestUtilities.TEST_LOCATION, "North Pole",
+                64.7488, -147.353);
+        LocationIdCache idCache = LocationIdCache.getInstance(mContext);
+        assertEquals(locationId, idCache.getId(TestUtilities.TEST_LOCATION));
+
+        ContentValues renamed = new ContentValues();
+        renamed.put(LocationEntry.COLUMN_LOCATION_SETTING, "99705");
+        assertEquals(1, mContext.getContentResolver().update(
+                LocationEntry.buildLocationUri(locationId), renamed, null, null));
+
+        assertEquals("Error: the old setting is still cached after its row was renamed",
+                -1, idCache.getId(TestUtilities.TEST_LOCATION));
+        assertEquals(-1, repository.findLocationId(TestUtilities.TEST_LOCATION));
+        assertEquals(locationId, repository.findLocationId("99705"));
+    }
+
     // Make sure we can still delete after adding/updating stuff
     //
     // Student: Uncomment this test after you have completed writing the delete functionality
@@ -479,6 +521,1169 @@ public class TestProvider extends AndroidTestCase {
         cursor.close();
     }
 
+    // The columnar batch must end up in the same rows the ContentValues path writes.
+    public void testBulkInsertForecastBatch() {
+        ContentValues testValues = TestUtilities.createNorthPoleLocationValues();
+        Uri locationUri = mContext.getContentResolver().insert(LocationEntry.CONTENT_URI, testValues);
+        long locationRowId = ContentUris.parseId(locationUri);
+        assertTrue(locationRowId != -1);
+
+        // start smaller than the forecast so the batch has to grow.
+        ForecastBatch batch = new ForecastBatch(2);
+        batch.setLocationId(locationRowId);
+        long currentTestDate = TestUtilities.TEST_DATE;
+        long millisecondsInADay = 1000*60*60*24;
+        for ( int i = 0; i < BULK_INSERT_RECORDS_TO_INSERT; i++, currentTestDate+= millisecondsInADay ) {
+            batch.add(currentTestDate, 65 - i, 75 + i, 40 + i, 1.3 - 0.01 * i, 5.5 + 0.2 * i,
+                    1.1, 321, "Asteroids");
+        }
+        assertEquals(BULK_INSERT_RECORDS_TO_INSERT, batch.size());
+
+        int insertCount = WeatherRepository.getInstance(mContext).insertForecast(batch);
+        assertEquals(BULK_INSERT_RECORDS_TO_INSERT, insertCount);
+
+        Cursor cursor = mContext.getContentResolver().query(
+                WeatherEntry.CONTENT_URI,
+                null,
+                null,
+                null,
+                WeatherEntry.COLUMN_DATE + " ASC"
+        );
+        assertEquals(BULK_INSERT_RECORDS_TO_INSERT, cursor.getCount());
+
+        ContentValues[] expected = batch.toContentValues();
+        cursor.moveToFirst();
+        for (ContentValues values : expected) {
+            // humidity is kept as an int but the column is REAL.
+            values.put(WeatherEntry.COLUMN_HUMIDITY,
+                    values.getAsInteger(WeatherEntry.COLUMN_HUMIDITY).doubleValue());
+        }
+        for ( int i = 0; i < BULK_INSERT_RECORDS_TO_INSERT; i++, cursor.moveToNext() ) {
+            TestUtilities.validateCurrentRecord("testBulkInsertForecastBatch.  Error validating WeatherEntry " + i,
+                    cursor, expected[i]);
+        }
+        cursor.close();
+    }
+
+    /*
+        Upserting keeps the row id of a day already stored, and only rewrites the days whose
+        values changed.
+     */
+    public void testUpsertForecastBatch() throws InterruptedException {
+        long locationRowId = ContentUris.parseId(mContext.getContentResolver().insert(
+                LocationEntry.CONTENT_URI, TestUtilities.createNorthPoleLocationValues()));
+
+        final int days = 5;
+        long millisecondsInADay = 1000*60*60*24;
+        ForecastBatch batch = new ForecastBatch();
+        batch.setLocationId(locationRowId);
+        for (int i = 0; i < days; i++) {
+            batch.add(TestUtilities.TEST_DATE + i * millisecondsInADay, 65 - i, 75 + i, 40 + i,
+                    1.3, 5.5, 1.1, 321, "Asteroids");
+        }
+        Bundle counts = WeatherRepository.getInstance(mContext).upsertForecast(batch);
+        assertUpsertCounts("first upsert", days, 0, 0, counts);
+        String rowIds = queryWeatherRowIds();
+
+        // the same forecast again writes nothing and tells no one.
+        TestUtilities.CountingObserver observer = new TestUtilities.CountingObserver();
+        mContext.getContentResolver().registerContentObserver(WeatherEntry.CONTENT_URI, true,
+                observer);
+        counts = WeatherRepository.getInstance(mContext).upsertForecast(batch);
+        assertUpsertCounts("same forecast", 0, 0, days, counts);
+        TestUtilities.assertNotificationCount(
+                "Error: an unchanged forecast should not notify observers", 0, observer);
+
+        // two days change and one is added.
+        ForecastBatch changed = new ForecastBatch();
+        changed.setLocationId(locationRowId);
+        for (int i = 0; i <= days; i++) {
+            String desc = i == 1 || i == 3 ? "Meteors" : "Asteroids";
+            changed.add(TestUtilities.TEST_DATE + i * millisecondsInADay, 65 - i, 75 + i, 40 + i,
+                    1.3, 5.5, 1.1, 321, desc);
+        }
+        counts = WeatherRepository.getInstance(mContext).upsertForecast(changed);
+        assertUpsertCounts("changed forecast", 1, 2, days - 2, counts);
+        assertEquals("Error: a changed forecast should notify observers once",
+                1, observer.waitForCount(1, NOTIFICATION_TIMEOUT_MILLIS));
+        mContext.getContentResolver().unregisterContentObserver(observer);
+
+        assertTrue("Error: upserting should keep the row ids of the stored days",
+                queryWeatherRowIds().startsWith(rowIds));
+        Cursor cursor = mContext.getContentResolver().query(WeatherEntry.CONTENT_URI,
+                new String[]{WeatherEntry.COLUMN_SHORT_DESC}, null, null,
+                WeatherEntry.COLUMN_DATE + " ASC");
+        assertEquals(days + 1, cursor.getCount());
+        cursor.moveToPosition(3);
+        assertEquals("Meteors", cursor.getString(0));
+        cursor.close();
+
+        // the call() path a provider in another process is reached through, with the batch's
+        // columns in a Bundle.
+        changed.add(TestUtilities.TEST_DATE + (days + 1) * millisecondsInADay, 60, 70, 40,
+                1.3, 5.5, 1.1, 321, "Asteroids");
+        counts = new WeatherRepository(mContext, false).upsertForecast(changed);
+        assertUpsertCounts("upsert through call()", 1, 0, days + 1, counts);
+
+        // and with full rows, for callers without a batch.
+        ContentValues[] values = changed.toContentValues();
+        values[0].put(WeatherEntry.COLUMN_MAX_TEMP, 99.0);
+        Bundle extras = new Bundle();
+        extras.putParcelableArray(WeatherContract.EXTRA_VALUES, values);
+        counts = mContext.getContentResolver().call(WeatherContract.BASE_CONTENT_URI,
+                WeatherContract.METHOD_UPSERT_WEATHER, null, extras);
+        assertUpsertCounts("upsert of rows through call()", 0, 1, days + 1, counts);
+
+        try {
+            mContext.getContentResolver().call(WeatherContract.BASE_CONTENT_URI,
+                    WeatherContract.METHOD_UPSERT_WEATHER, null, new Bundle());
+            fail("Error: an upsert without days should be rejected");
+        } catch (IllegalArgumentException expected) {
+        }
+
+        // a new day that breaks a constraint fails the upsert instead of being skipped.
+        String rowIdsBefore = queryWeatherRowIds();
+        values = new ContentValues[]{new ContentValues(values[0])};
+        values[0].put(WeatherEntry.COLUMN_DATE,
+                TestUtilities.TEST_DATE + (days + 2) * millisecondsInADay);
+        values[0].putNull(WeatherEntry.COLUMN_SHORT_DESC);
+        extras.putParcelableArray(WeatherContract.EXTRA_VALUES, values);
+        try {
+            mContext.getContentResolver().call(WeatherContract.BASE_CONTENT_URI,
+                    WeatherContract.METHOD_UPSERT_WEATHER, null, extras);
+            fail("Error: a day without a description should fail the upsert");
+        } catch (SQLException expected) {
+        }
+        assertEquals("Error: a failed upsert should not write anything", rowIdsBefore,
+                queryWeatherRowIds());
+    }
+
+    /*
+        Storing a forecast inserts its location and days together, and for a stored location
+        updates its validators and upserts its days, with one notification per store.
+     */
+    public void testStoreForecast() throws InterruptedException {
+        final int days = 5;
+        long millisecondsInADay = 1000*60*60*24;
+        ForecastBatch batch = new ForecastBatch();
+        for (int i = 0; i < days; i++) {
+            batch.add(TestUtilities.TEST_DATE + i * millisecondsInADay, 65 - i, 75 + i, 40 + i,
+                    1.3, 5.5, 1.1, 321, "Asteroids");
+        }
+        ContentValues location = TestUtilities.createNorthPoleLocationValues();
+        location.put(LocationEntry.COLUMN_ETAG, "\"v1\"");
+
+        TestUtilities.CountingObserver observer = new TestUtilities.CountingObserver();
+        mContext.getContentResolver().registerContentObserver(WeatherEntry.CONTENT_URI, true,
+                observer);
+        Bundle result = WeatherRepository.getInstance(mContext).storeForecast(location, batch,
+                false);
+        assertUpsertCounts("store of a new location", days, 0, 0, result);
+        long locationRowId = result.getLong(WeatherContract.EXTRA_LOCATION_ID);
+        assertEquals("Error: the stored location should be cached", locationRowId,
+                LocationIdCache.getInstance(mContext).getId(TestUtilities.TEST_LOCATION));
+        assertEquals("Error: storing a forecast should notify its observers once",
+                1, observer.waitForCount(1, NOTIFICATION_TIMEOUT_MILLIS));
+        mContext.getContentResolver().unregisterContentObserver(observer);
+        String rowIds = queryWeatherRowIds();
+
+        // one day changes, the location keeps its row and gets the new etag.
+        ForecastBatch changed = new ForecastBatch();
+        changed.add(TestUtilities.TEST_DATE, 60, 80, 40, 1.3, 5.5, 1.1, 321, "Meteors");
+        location.put(LocationEntry.COLUMN_ETAG, "\"v2\"");
+        result = new WeatherRepository(mContext, false).storeForecast(location, changed, false);
+        assertUpsertCounts("store through call()", 0, 1, 0, result);
+        assertEquals(locationRowId, result.getLong(WeatherContract.EXTRA_LOCATION_ID));
+        assertEquals("Error: the stored days should keep their row ids", rowIds,
+                queryWeatherRowIds());
+
+        Cursor cursor = mContext.getContentResolver().query(LocationEntry.CONTENT_URI,
+                new String[]{LocationEntry.COLUMN_ETAG}, null, null, null);
+        assertEquals("Error: a stored location should not be inserted again",
+                1, cursor.getCount());
+        cursor.moveToFirst();
+        assertEquals("\"v2\"", cursor.getString(0));
+        cursor.close();
+    }
+
+    private static void assertUpsertCounts(String step, int inserted, int updated, int unchanged,
+                                           Bundle counts) {
+        assertEquals("Error: rows inserted by the " + step,
+                inserted, counts.getInt(WeatherContract.EXTRA_ROWS_INSERTED));
+        assertEquals("Error: rows updated by the " + step,
+                updated, counts.getInt(WeatherContract.EXTRA_ROWS_UPDATED));
+        assertEquals("Error: rows left unchanged by the " + step,
+                unchanged, counts.getInt(WeatherContract.EXTRA_ROWS_UNCHANGED));
+    }
+
+    /**
+     * @return the _ids of the weather rows in date order, as "1,2,3,".
+     */
+    private String queryWeatherRowIds() {
+        Cursor cursor = mContext.getContentResolver().query(WeatherEntry.CONTENT_URI,
+                new String[]{WeatherEntry._ID}, null, null, WeatherEntry.COLUMN_DATE + " ASC");
+        StringBuilder ids = new StringBuilder();
+        while (cursor.moveToNext()) {
+            ids.append(cursor.getLong(0)).append(',');
+        }
+        cursor.close();
+        return ids.toString();
+    }
+
+    /*
+        A location inserted with its days and validators in one batch is committed together,
+        and observers hear of it once. A batch that fails leaves nothing behind.
+     */
+    public void testApplyBatch() throws Exception {
+        TestUtilities.CountingObserver weatherObserver = new TestUtilities.CountingObserver();
+        TestUtilities.CountingObserver locationObserver = new TestUtilities.CountingObserver();
+        mContext.getContentResolver().registerContentObserver(WeatherEntry.CONTENT_URI, true,
+                weatherObserver);
+        mContext.getContentResolver().registerContentObserver(LocationEntry.CONTENT_URI, true,
+                locationObserver);
+
+        final int days = 3;
+        long millisecondsInADay = 1000*60*60*24;
+        ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>();
+        operations.add(ContentProviderOperation.newInsert(LocationEntry.CONTENT_URI)
+                .withValues(TestUtilities.createNorthPoleLocationValues())
+                .build());
+        for (int i = 0; i < days; i++) {
+            ContentValues weatherValues = TestUtilities.createWeatherValues(-1);
+            weatherValues.put(WeatherEntry.COLUMN_DATE,
+                    TestUtilities.TEST_DATE + i * millisecondsInADay);
+            operations.add(ContentProviderOperation.newInsert(WeatherEntry.CONTENT_URI)
+                    .withValues(weatherValues)
+                    .withValueBackReference(WeatherEntry.COLUMN_LOC_KEY, 0)
+                    .build());
+        }
+        // the location's own row, by the id the first operation gets.
+        ContentValues validators = new ContentValues();
+        validators.put(LocationEntry.COLUMN_ETAG, "\"v1\"");
+        operations.add(ContentProviderOperation.newUpdate(LocationEntry.CONTENT_URI)
+                .withValues(validators)
+                .withSelection(LocationEntry._ID + " = ?", new String[1])
+                .withSelectionBackReference(0, 0)
+                .build());
+
+        ContentProviderResult[] results;
+        try {
+            results = mContext.getContentResolver().applyBatch(
+                    WeatherContract.CONTENT_AUTHORITY, operations);
+            // the location's insert and update are of the same table.
+            TestUtilities.assertNotificationCounts(new String[]{
+                            "Error: the days of the batch should be notified once",
+                            "Error: the location changes of the batch should be notified once"},
+                    new int[]{1, 1}, weatherObserver, locationObserver);
+
+            // nothing of a batch that fails is committed or notified.
+            ArrayList<ContentProviderOperation> failing =
+                    new ArrayList<ContentProviderOperation>();
+            ContentValues weatherValues = TestUtilities.createWeatherValues(
+                    ContentUris.parseId(results[0].uri));
+            weatherValues.put(WeatherEntry.COLUMN_DATE,
+                    TestUtilities.TEST_DATE + days * millisecondsInADay);
+            failing.add(ContentProviderOperation.newInsert(WeatherEntry.CONTENT_URI)
+                    .withValues(weatherValues)
+                    .build());
+            failing.add(ContentProviderOperation.newAssertQuery(LocationEntry.CONTENT_URI)
+                    .withExpectedCount(2)
+                    .build());
+            try {
+                mContext.getContentResolver().applyBatch(WeatherContract.CONTENT_AUTHORITY,
+                        failing);
+                fail("Error: the assert operation should have failed the batch");
+            } catch (OperationApplicationException expected) {
+            }
+            TestUtilities.assertNotificationCount("Error: a failed batch should not notify",
+                    1, weatherObserver);
+        } finally {
+            mContext.getContentResolver().unregisterContentObserver(weatherObserver);
+            mContext.getContentResolver().unregisterContentObserver(locationObserver);
+        }
+
+        assertEquals(operations.size(), results.length);
+        long locationRowId = ContentUris.parseId(results[0].uri);
+        Cursor cursor = mContext.getContentResolver().query(WeatherEntry.CONTENT_URI, null,
+                WeatherEntry.COLUMN_LOC_KEY + " = ?",
+                new String[]{Long.toString(locationRowId)}, null);
+        assertEquals("Error: the failed batch should have been rolled back",
+                days, cursor.getCount());
+        cursor.close();
+
+        cursor = mContext.getContentResolver().query(
+                LocationEntry.buildLocationUri(locationRowId),
+                new String[]{LocationEntry.COLUMN_ETAG}, null, null, null);
+        assertTrue(cursor.moveToFirst());
+        assertEquals("\"v1\"", cursor.getString(0));
+        cursor.close();
+    }
+
+    // Days of a location notified one by one collapse into one notification of the location.
+    public void testCoalesceNotifications() {
+        Set<Uri> uris = new HashSet<Uri>();
+        uris.add(WeatherEntry.buildWeatherLocationWithDate(TestUtilities.TEST_LOCATION,
+                TestUtilities.TEST_DATE));
+        uris.add(WeatherEntry.buildWeatherLocationWithDate(TestUtilities.TEST_LOCATION,
+                TestUtilities.TEST_DATE + 1000*60*60*24));
+        uris.add(WeatherEntry.buildWeatherLocationWithDate(OTHER_LOCATION,
+                TestUtilities.TEST_DATE));
+        uris.add(LocationEntry.buildLocationUri(3));
+
+        Set<Uri> expected = new HashSet<Uri>();
+        expected.add(WeatherEntry.buildWeatherLocation(TestUtilities.TEST_LOCATION));
+        expected.add(WeatherEntry.buildWeatherLocationWithDate(OTHER_LOCATION,
+                TestUtilities.TEST_DATE));
+        expected.add(LocationEntry.buildLocationUri(3));
+        assertEquals(expected, WeatherProvider.coalesceNotifications(uris));
+
+        // the table covers everything below it.
+        uris.add(WeatherEntry.CONTENT_URI);
+        uris.add(LocationEntry.CONTENT_URI);
+        expected.clear();
+        expected.add(WeatherEntry.CONTENT_URI);
+        expected.add(LocationEntry.CONTENT_URI);
+        assertEquals(expected, WeatherProvider.coalesceNotifications(uris));
+    }
+
+    /*
+        Repeating a weather/* query is served from the provider's cache, and a write drops
+        only the cached results it may have changed.
+     */
+    public void testQueryResultCache() {
+        long northPoleId = ContentUris.parseId(mContext.getContentResolver().insert(
+                LocationEntry.CONTENT_URI, TestUtilities.createNorthPoleLocationValues()));
+        ContentValues otherLocation = TestUtilities.createNorthPoleLocationValues();
+        otherLocation.put(LocationEntry.COLUMN_LOCATION_SETTING, OTHER_LOCATION);
+        long otherId = ContentUris.parseId(mContext.getContentResolver().insert(
+                LocationEntry.CONTENT_URI, otherLocation));
+
+        final int days = 5;
+        long millisecondsInADay = 1000*60*60*24;
+        ForecastBatch batch = new ForecastBatch();
+        batch.setLocationId(northPoleId);
+        for (int i = 0; i < days; i++) {
+            batch.add(TestUtilities.TEST_DATE + i * millisecondsInADay, 65, 75, 40, 1.3, 5.5,
+                    1.1, 321, "Asteroids");
+        }
+        WeatherRepository.getInstance(mContext).insertForecast(batch);
+
+        Uri listUri = WeatherEntry.buildWeatherLocationWithStartDate(TestUtilities.TEST_LOCATION,
+                TestUtilities.TEST_DATE + millisecondsInADay);
+        Uri firstDayUri = WeatherEntry.buildWeatherLocationWithDate(TestUtilities.TEST_LOCATION,
+                TestUtilities.TEST_DATE);
+        String[] projection = {WeatherEntry.COLUMN_DATE, WeatherEntry.COLUMN_SHORT_DESC};
+        String sortOrder = WeatherEntry.COLUMN_DATE + " ASC";
+
+        Bundle before = getQueryCacheStats();
+        assertEquals(days - 1, countRows(listUri, projection, sortOrder));
+        assertEquals(days - 1, countRows(listUri, projection, sortOrder));
+        assertEquals(1, countRows(firstDayUri, projection, null));
+        assertEquals(1, countRows(firstDayUri, projection, null));
+        assertCacheStats("repeated queries", before, 2, 2);
+
+        // the weather of another location leaves both results cached.
+        ForecastBatch otherBatch = new ForecastBatch();
+        otherBatch.setLocationId(otherId);
+        otherBatch.add(TestUtilities.TEST_DATE + millisecondsInADay, 65, 75, 40, 1.3, 5.5, 1.1,
+                321, "Asteroids");
+        WeatherRepository.getInstance(mContext).insertForecast(otherBatch);
+        before = getQueryCacheStats();
+        countRows(listUri, projection, sortOrder);
+        countRows(firstDayUri, projection, null);
+        assertCacheStats("a write to another location", before, 2, 0);
+
+        // a day after the start of the list changes it, but not the first day.
+        ContentValues weatherValues = TestUtilities.createWeatherValues(northPoleId);
+        weatherValues.put(WeatherEntry.COLUMN_DATE,
+                TestUtilities.TEST_DATE + days * millisecondsInADay);
+        weatherValues.put(WeatherEntry.COLUMN_SHORT_DESC, "Meteors");
+        mContext.getContentResolver().insert(WeatherEntry.CONTENT_URI, weatherValues);
+        before = getQueryCacheStats();
+        Cursor cursor = mContext.getContentResolver().query(listUri, projection, null, null,
+                sortOrder);
+        assertEquals("Error: the cached list should have been dropped by the insert",
+                days, cursor.getCount());
+        assertTrue(cursor.moveToLast());
+        assertEquals("Meteors", cursor.getString(1));
+        cursor.close();
+        assertEquals(1, countRows(firstDayUri, projection, null));
+        assertCacheStats("an insert of a later day", before, 1, 1);
+    }
+
+    public void testRenamedLocationNotifiesBothSettings() throws InterruptedException {
+        long locationId = ContentUris.parseId(mContext.getContentResolver().insert(
+                LocationEntry.CONTENT_URI, TestUtilities.createNorthPoleLocationValues()));
+        final int days = 3;
+        ForecastBatch batch = new ForecastBatch();
+        batch.setLocationId(locationId);
+        for (int i = 0; i < days; i++) {
+            batch.add(TestUtilities.TEST_DATE + i * 86400000L, 65, 75, 40, 1.3, 5.5, 1.1, 321,
+                    "Asteroids");
+        }
+        WeatherRepository.getInstance(mContext).insertForecast(batch);
+
+        Uri oldUri = WeatherEntry.buildWeatherLocation(TestUtilities.TEST_LOCATION);
+        Uri newUri = WeatherEntry.buildWeatherLocation(OTHER_LOCATION);
+        String[] projection = {WeatherEntry.COLUMN_DATE, LocationEntry.COLUMN_CITY_NAME};
+        // both results are cached before the rename.
+        assertEquals(days, countRows(oldUri, projection, null));
+        assertEquals(0, countRows(newUri, projection, null));
+
+        TestUtilities.CountingObserver oldObserver = new TestUtilities.CountingObserver();
+        TestUtilities.CountingObserver newObserver = new TestUtilities.CountingObserver();
+        mContext.getContentResolver().registerContentObserver(oldUri, true, oldObserver);
+        mContext.getContentResolver().registerContentObserver(newUri, true, newObserver);
+        try {
+            ContentValues renamed = new ContentValues();
+            renamed.put(LocationEntry.COLUMN_LOCATION_SETTING, OTHER_LOCATION);
+            assertEquals(1, mContext.getContentResolver().update(
+                    LocationEntry.buildLocationUri(locationId), renamed, null, null));
+
+            assertEquals("Error: the weather of the old setting was not notified",
+                    1, oldObserver.waitForCount(1, 5000));
+            assertEquals("Error: the weather of the new setting was not notified",
+                    1, newObserver.waitForCount(1, 5000));
+        } finally {
+            mContext.getContentResolver().unregisterContentObserver(oldObserver);
+            mContext.getContentResolver().unregisterContentObserver(newObserver);
+        }
+        assertEquals("Error: the old setting still reads its cached weather",
+                0, countRows(oldUri, projection, null));
+        assertEquals(days, countRows(newUri, projection, null));
+
+        // a row keeping its setting drops the weather joined with it too.
+        ContentValues city = new ContentValues();
+        city.put(LocationEntry.COLUMN_CITY_NAME, "Santa's Village");
+        mContext.getContentResolver().update(LocationEntry.buildLocationUri(locationId), city,
+                null, null);
+        Cursor cursor = mContext.getContentResolver().query(newUri, projection, null, null,
+                null);
+        assertTrue(cursor.moveToFirst());
+        assertEquals("Santa's Village", cursor.getString(1));
+        cursor.close();
+    }
+
+    private int countRows(Uri uri, String[] projection, String sortOrder) {
+        Cursor cursor = mContext.getContentResolver().query(uri, projection, null, null,
+                sortOrder);
+        int count = cursor.getCount();
+        cursor.close();
+        return count;
+    }
+
+    private Bundle getQueryCacheStats() {
+        return mContext.getContentResolver().call(WeatherContract.BASE_CONTENT_URI,
+                WeatherContract.METHOD_GET_QUERY_CACHE_STATS, null, null);
+    }
+
+    private void assertCacheStats(String step, Bundle before, int hits, int misses) {
+        Bundle after = getQueryCacheStats();
+        assertEquals("Error: cache hits after " + step, hits,
+                after.getInt(WeatherContract.EXTRA_CACHE_HITS) -
+                        before.getInt(WeatherContract.EXTRA_CACHE_HITS));
+        assertEquals("Error: cache misses after " + step, misses,
+                after.getInt(WeatherContract.EXTRA_CACHE_MISSES) -
+                        before.getInt(WeatherContract.EXTRA_CACHE_MISSES));
+    }
+
+    /*
+        Pruning deletes only the days before the cutoff, in chunks of the requested size, and
+        observers of the weather uri hear about it once.
+     */
+    public void testPruneWeather() throws InterruptedException {
+        Uri locationUri = mContext.getContentResolver().insert(LocationEntry.CONTENT_URI,
+                TestUtilities.createNorthPoleLocationValues());
+        long locationRowId = ContentUris.parseId(locationUri);
+
+        final int oldDays = 20;
+        final int keptDays = 10;
+        final int chunkSize = 4;
+        long millisecondsInADay = 1000*60*60*24;
+        ForecastBatch batch = new ForecastBatch(oldDays + keptDays);
+        batch.setLocationId(locationRowId);
+        long date = TestUtilities.TEST_DATE;
+        for (int i = 0; i < oldDays + keptDays; i++, date += millisecondsInADay) {
+            batch.add(date, 65, 75, 40, 1.3, 5.5, 1.1, 321, "Asteroids");
+        }
+        WeatherRepository.getInstance(mContext).insertForecast(batch);
+        // the provider stores normalized dates.
+        long cutoffDate = WeatherContract.normalizeDate(
+                TestUtilities.TEST_DATE + oldDays * millisecondsInADay);
+
+        TestUtilities.CountingObserver observer = new TestUtilities.CountingObserver();
+        mContext.getContentResolver().registerContentObserver(WeatherEntry.CONTENT_URI, true,
+                observer);
+
+        Bundle extras = new Bundle();
+        extras.putLong(WeatherContract.EXTRA_CUTOFF_DATE, cutoffDate);
+        extras.putInt(WeatherContract.EXTRA_CHUNK_SIZE, chunkSize);
+        Bundle result = mContext.getContentResolver().call(WeatherContract.BASE_CONTENT_URI,
+                WeatherContract.METHOD_PRUNE_WEATHER, null, extras);
+        TestUtilities.assertNotificationCount(
+                "Error: observers should be notified once per prune, not per chunk", 1, observer);
+        mContext.getContentResolver().unregisterContentObserver(observer);
+
+        assertNotNull(result);
+        assertEquals("Error: wrong number of weather rows pruned",
+                oldDays, result.getInt(WeatherContract.EXTRA_ROWS_DELETED));
+        // the last chunk comes up short, that is how the loop knows it is done.
+        assertEquals("Error: the prune should have run in chunks",
+                oldDays / chunkSize + 1, result.getInt(WeatherContract.EXTRA_CHUNKS));
+
+        Cursor cursor = mContext.getContentResolver().query(WeatherEntry.CONTENT_URI,
+                new String[]{WeatherEntry.COLUMN_DATE}, null, null,
+                WeatherEntry.COLUMN_DATE + " ASC");
+        assertEquals(keptDays, cursor.getCount());
+        assertTrue(cursor.moveToFirst());
+        assertEquals("Error: the cutoff day itself should be kept", cutoffDate, cursor.getLong(0));
+        cursor.close();
+
+        SQLiteDatabase db = WeatherDbHelper.getInstance(mContext).getReadableDatabase();
+        assertEquals("Error: the db should use incremental auto vacuum so pruning can shrink it",
+                2, DatabaseUtils.longForQuery(db, "PRAGMA auto_vacuum", null));
+    }
+
+    /*
+        A write to the weather of one location notifies that location, and the day written when
+        there is one. Observers of another location or another day must not hear of it.
+     */
+    public void testScopedWeatherNotifications() throws InterruptedException {
+        long northPoleId = ContentUris.parseId(mContext.getContentResolver().insert(
+                LocationEntry.CONTENT_URI, TestUtilities.createNorthPoleLocationValues()));
+        ContentValues otherLocation = TestUtilities.createNorthPoleLocationValues();
+        otherLocation.put(LocationEntry.COLUMN_LOCATION_SETTING, OTHER_LOCATION);
+        otherLocation.put(LocationEntry.COLUMN_CITY_NAME, "Mountain View");
+        long otherId = ContentUris.parseId(mContext.getContentResolver().insert(
+                LocationEntry.CONTENT_URI, otherLocation));
+
+        long millisecondsInADay = 1000*60*60*24;
+        long otherDate = TestUtilities.TEST_DATE + millisecondsInADay;
+
+        TestUtilities.CountingObserver all = new TestUtilities.CountingObserver();
+        TestUtilities.CountingObserver northPole = new TestUtilities.CountingObserver();
+        TestUtilities.CountingObserver northPoleDay = new TestUtilities.CountingObserver();
+        TestUtilities.CountingObserver other = new TestUtilities.CountingObserver();
+        // the same flags a CursorLoader registers with.
+        mContext.getContentResolver().registerContentObserver(WeatherEntry.CONTENT_URI, true, all);
+        mContext.getContentResolver().registerContentObserver(
+                WeatherEntry.buildWeatherLocation(TestUtilities.TEST_LOCATION), true, northPole);
+        mContext.getContentResolver().registerContentObserver(
+                WeatherEntry.buildWeatherLocationWithDate(TestUtilities.TEST_LOCATION,
+                        TestUtilities.TEST_DATE), true, northPoleDay);
+        mContext.getContentResolver().registerContentObserver(
+                WeatherEntry.buildWeatherLocation(OTHER_LOCATION), true, other);
+        try {
+            // a sync of the other location.
+            ForecastBatch batch = new ForecastBatch();
+            batch.setLocationId(otherId);
+            batch.add(TestUtilities.TEST_DATE, 65, 75, 40, 1.3, 5.5, 1.1, 321, "Asteroids");
+            batch.add(otherDate, 65, 75, 40, 1.3, 5.5, 1.1, 321, "Asteroids");
+            WeatherRepository.getInstance(mContext).insertForecast(batch);
+            assertNotifications("bulk insert of the other location", 1, 0, 0, 1,
+                    all, northPole, northPoleDay, other);
+
+            // one day of the north pole, not the one watched.
+            ContentValues weatherValues = TestUtilities.createWeatherValues(northPoleId);
+            weatherValues.put(WeatherEntry.COLUMN_DATE, otherDate);
+            mContext.getContentResolver().insert(WeatherEntry.CONTENT_URI, weatherValues);
+            assertNotifications("insert of another north pole day", 2, 1, 0, 1,
+                    all, northPole, northPoleDay, other);
+
+            // the day watched.
+            mContext.getContentResolver().insert(WeatherEntry.CONTENT_URI,
+                    TestUtilities.createWeatherValues(northPoleId));
+            assertNotifications("insert of the watched day", 3, 2, 1, 1,
+                    all, northPole, northPoleDay, other);
+
+            // a ContentValues bulk insert of the north pole.
+            mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI,
+                    new ContentValues[]{TestUtilities.createWeatherValues(northPoleId)});
+            assertNotifications("bulk insert of the north pole", 4, 3, 2, 1,
+                    all, northPole, northPoleDay, other);
+
+            // updating the other location only.
+            ContentValues update = new ContentValues();
+            update.put(WeatherEntry.COLUMN_SHORT_DESC, "Meteors");
+            mContext.getContentResolver().update(WeatherEntry.CONTENT_URI, update,
+                    WeatherEntry.COLUMN_LOC_KEY + " = ?", new String[]{Long.toString(otherId)});
+            assertNotifications("update of the other location", 5, 3, 2, 2,
+                    all, northPole, northPoleDay, other);
+
+            // deleting every row touches both locations.
+            mContext.getContentResolver().delete(WeatherEntry.CONTENT_URI, null, null);
+            assertNotifications("delete of all weather", 7, 4, 3, 3,
+                    all, northPole, northPoleDay, other);
+        } finally {
+            mContext.getContentResolver().unregisterContentObserver(all);
+            mContext.getContentResolver().unregisterContentObserver(northPole);
+            mContext.getContentResolver().unregisterContentObserver(northPoleDay);
+            mContext.getContentResolver().unregisterContentObserver(other);
+        }
+    }
+
+    /**
+     * Checks each observer got exactly its share of the notifications of a step.
+     */
+    private static void assertNotifications(String step, int all, int northPole,
+                                            int northPoleDay, int other,
+                                            TestUtilities.CountingObserver... observers)
+            throws InterruptedException {
+        int[] expected = {all, northPole, northPoleDay, other};
+        String[] names = {"weather", "north pole", "north pole day", "other location"};
+        String[] messages = new String[names.length];
+        for (int i = 0; i < names.length; i++) {
+            messages[i] = "Error: wrong notifications for the " + names[i] + " observer after " +
+                    step;
+        }
+        TestUtilities.assertNotificationCounts(messages, expected, observers);
+    }
+
+    /*
+        The table stores day keys, the provider takes and returns dates. A range uri returns the
+        days from its start to its end, both included, with or without the join, and selections
+        written against dates still work on the weather table uri.
+     */
+    public void testWeatherDateRange() {
+        long locationRowId = ContentUris.parseId(mContext.getContentResolver().insert(
+                LocationEntry.CONTENT_URI, TestUtilities.createNorthPoleLocationValues()));
+        mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI,
+                createBulkInsertWeatherValues(locationRowId));
+
+        long millisecondsInADay = 1000*60*60*24;
+        long firstDay = WeatherContract.dateToDay(TestUtilities.TEST_DATE);
+        long startDate = TestUtilities.TEST_DATE + 2 * millisecondsInADay;
+        long endDate = TestUtilities.TEST_DATE + 5 * millisecondsInADay;
+        Uri rangeUri = WeatherEntry.buildWeatherLocationWithDateRange(
+                TestUtilities.TEST_LOCATION, startDate, endDate);
+        assertEquals(WeatherContract.normalizeDate(startDate),
+                WeatherEntry.getStartDateFromUri(rangeUri));
+        assertEquals(WeatherContract.normalizeDate(endDate),
+                WeatherEntry.getEndDateFromUri(rangeUri));
+
+        String[][] projections = {
+                {WeatherEntry.COLUMN_DATE, WeatherEntry.COLUMN_MAX_TEMP},
+                {WeatherEntry.COLUMN_DATE, LocationEntry.COLUMN_CITY_NAME}
+        };
+        for (String[] projection : projections) {
+            Cursor cursor = mContext.getContentResolver().query(rangeUri, projection, null, null,
+                    WeatherEntry.COLUMN_DATE + " ASC");
+            assertEquals("Error: wrong number of days in the range", 4, cursor.getCount());
+            for (long day = firstDay + 2; cursor.moveToNext(); day++) {
+                assertEquals("Error: the provider should return the date of the day key",
+                        WeatherContract.dayToDate(day), cursor.getLong(0));
+            }
+            cursor.close();
+        }
+
+        Cursor cursor = mContext.getContentResolver().query(WeatherEntry.CONTENT_URI,
+                new String[]{WeatherEntry.COLUMN_DATE, WeatherEntry.COLUMN_DAY},
+                WeatherEntry.COLUMN_DATE + " = ?",
+                new String[]{Long.toString(WeatherContract.dayToDate(firstDay + 3))}, null);
+        assertTrue("Error: a selection on the date should match its day", cursor.moveToFirst());
+        assertEquals(firstDay + 3, cursor.getLong(1));
+        assertEquals(1, cursor.getCount());
+        cursor.close();
+
+        ContentValues values = new ContentValues();
+        values.put(WeatherEntry.COLUMN_SHORT_DESC, "Snow");
+        assertEquals(1, mContext.getContentResolver().update(WeatherEntry.CONTENT_URI, values,
+                WeatherEntry.COLUMN_DATE + " = ?",
+                new String[]{Long.toString(WeatherContract.dayToDate(firstDay + 3))}));
+        assertEquals(2, mContext.getContentResolver().delete(WeatherEntry.CONTENT_URI,
+                WeatherEntry.COLUMN_DATE + " < ?",
+                new String[]{Long.toString(WeatherContract.dayToDate(firstDay + 2))}));
+    }
+
+    /*
+        With packed storage the days of a location are one row of the packed_forecast table. They
+        are read back through the weather/<location> uris like rows, a second packed forecast
+        merges with the days stored and reads never unpack them. A delete on the weather uri
+        removes packed days in place, an update turns them into weather rows.
+     */
+    public void testPackedForecast() {
+        long locationRowId = ContentUris.parseId(mContext.getContentResolver().insert(
+                LocationEntry.CONTENT_URI, TestUtilities.createNorthPoleLocationValues()));
+        long millisecondsInADay = 1000*60*60*24;
+        long firstDay = WeatherContract.dateToDay(TestUtilities.TEST_DATE);
+
+        ForecastBatch days = new ForecastBatch();
+        days.setLocationId(locationRowId);
+        for (int i = 0; i < 14; i++) {
+            days.add(TestUtilities.TEST_DATE + i * millisecondsInADay, 10.25 + i, 20.5 + i, 50,
+                    1013.25, 3.5, 180, 800, "Clear");
+        }
+        insertPackedForecast(locationRowId, days);
+
+        SQLiteDatabase db = WeatherDbHelper.getInstance(mContext).getReadableDatabase();
+        assertEquals("Error: a packed forecast should be a single row",
+                1, DatabaseUtils.queryNumEntries(db, PackedForecastEntry.TABLE_NAME));
+        assertEquals(0, DatabaseUtils.queryNumEntries(db, WeatherEntry.TABLE_NAME));
+
+        // the forecast list query
+        String[] forecastColumns = {
+                WeatherEntry.TABLE_NAME + "." + WeatherEntry._ID,
+                WeatherEntry.COLUMN_DATE,
+                WeatherEntry.COLUMN_SHORT_DESC,
+                WeatherEntry.COLUMN_MAX_TEMP,
+                LocationEntry.COLUMN_LOCATION_SETTING
+        };
+        Cursor cursor = mContext.getContentResolver().query(
+                WeatherEntry.buildWeatherLocationWithStartDate(TestUtilities.TEST_LOCATION,
+                        TestUtilities.TEST_DATE + 2 * millisecondsInADay),
+                forecastColumns, null, null, WeatherEntry.COLUMN_DATE + " ASC");
+        assertEquals("Error: wrong number of packed days from the start date",
+                12, cursor.getCount());
+        Set<Long> ids = new HashSet<Long>();
+        for (int i = 2; cursor.moveToNext(); i++) {
+            assertTrue("Error: a packed day should have a row id", cursor.getLong(0) > 0);
+            assertTrue("Error: two packed days with the same id", ids.add(cursor.getLong(0)));
+            assertEquals(WeatherContract.dayToDate(firstDay + i), cursor.getLong(1));
+            assertEquals("Clear", cursor.getString(2));
+            assertEquals(20.5 + i, cursor.getDouble(3));
+            assertEquals(TestUtilities.TEST_LOCATION, cursor.getString(4));
+        }
+        cursor.close();
+
+        // a second forecast changes the last day and adds one.
+        ForecastBatch newDays = new ForecastBatch();
+        newDays.setLocationId(locationRowId);
+        for (int i = 13; i < 15; i++) {
+            newDays.add(TestUtilities.TEST_DATE + i * millisecondsInADay, 5, 15, 80, 1001, 7.5,
+                    90, 500, "Rain");
+        }
+        insertPackedForecast(locationRowId, newDays);
+        assertEquals(1, DatabaseUtils.queryNumEntries(db, PackedForecastEntry.TABLE_NAME));
+
+        cursor = mContext.getContentResolver().query(
+                WeatherEntry.buildWeatherLocationWithDate(TestUtilities.TEST_LOCATION,
+                        TestUtilities.TEST_DATE + 13 * millisecondsInADay),
+                null, null, null, null);
+        assertTrue("Error: no packed day for the date", cursor.moveToFirst());
+        assertEquals(1, cursor.getCount());
+        assertEquals("Rain", cursor.getString(cursor.getColumnIndex(
+                WeatherEntry.COLUMN_SHORT_DESC)));
+        assertEquals(TestUtilities.TEST_LOCATION, cursor.getString(cursor.getColumnIndex(
+                LocationEntry.COLUMN_LOCATION_SETTING)));
+        cursor.close();
+
+        cursor = mContext.getContentResolver().query(
+                WeatherEntry.buildWeatherLocation(TestUtilities.TEST_LOCATION),
+                new String[]{WeatherEntry.COLUMN_DATE}, null, null,
+                WeatherEntry.COLUMN_DATE + " DESC");
+        assertEquals(15, cursor.getCount());
+        assertTrue(cursor.moveToFirst());
+        assertEquals(WeatherContract.dayToDate(firstDay + 14), cursor.getLong(0));
+        cursor.close();
+
+        // any order is answered from the packed row.
+        cursor = mContext.getContentResolver().query(
+                WeatherEntry.buildWeatherLocation(TestUtilities.TEST_LOCATION),
+                new String[]{WeatherEntry.COLUMN_DATE, WeatherEntry.COLUMN_MAX_TEMP}, null, null,
+                WeatherEntry.COLUMN_WEATHER_ID + " ASC, " + WeatherEntry.TABLE_NAME + "." +
+                        WeatherEntry.COLUMN_MAX_TEMP + " DESC, " + WeatherEntry.COLUMN_DATE);
+        assertEquals(15, cursor.getCount());
+        assertTrue(cursor.moveToFirst());
+        assertEquals("Error: the rain days should sort first, in date order as they tie",
+                WeatherContract.dayToDate(firstDay + 13), cursor.getLong(0));
+        assertTrue(cursor.moveToPosition(2));
+        assertEquals(20.5 + 12, cursor.getDouble(1));
+        cursor.close();
+
+        // the weather uri only reaches rows, and reading it leaves the packed row alone.
+        cursor = mContext.getContentResolver().query(WeatherEntry.CONTENT_URI, null,
+                WeatherEntry.COLUMN_LOC_KEY + " = ?",
+                new String[]{Long.toString(locationRowId)}, null);
+        assertEquals(0, cursor.getCount());
+        cursor.close();
+        assertEquals("Error: a read unpacked the forecast",
+                1, DatabaseUtils.queryNumEntries(db, PackedForecastEntry.TABLE_NAME));
+
+        cursor = mContext.getContentResolver().query(
+                PackedForecastEntry.buildPackedForecastUri(locationRowId),
+                new String[]{PackedForecastEntry.COLUMN_FIRST_DAY,
+                        PackedForecastEntry.COLUMN_LAST_DAY}, null, null, null);
+        assertTrue("Error: no packed row for the location", cursor.moveToFirst());
+        assertEquals(firstDay, cursor.getLong(0));
+        assertEquals(firstDay + 14, cursor.getLong(1));
+        cursor.close();
+
+        // a delete with a selection runs against the packed days.
+        assertEquals(1, mContext.getContentResolver().delete(WeatherEntry.CONTENT_URI,
+                WeatherEntry.COLUMN_DATE + " = ?",
+                new String[]{Long.toString(WeatherContract.dayToDate(firstDay))}));
+        assertEquals(1, DatabaseUtils.queryNumEntries(db, PackedForecastEntry.TABLE_NAME));
+        assertEquals(0, DatabaseUtils.queryNumEntries(db, WeatherEntry.TABLE_NAME));
+        assertEquals(14, countRows(WeatherEntry.buildWeatherLocation(TestUtilities.TEST_LOCATION),
+                null, null));
+
+        // an update has to run against rows.
+        ContentValues rain = new ContentValues();
+        rain.put(WeatherEntry.COLUMN_SHORT_DESC, "Showers");
+        assertEquals(2, mContext.getContentResolver().update(WeatherEntry.CONTENT_URI, rain,
+                WeatherEntry.COLUMN_WEATHER_ID + " = ?", new String[]{"500"}));
+        assertEquals(0, DatabaseUtils.queryNumEntries(db, PackedForecastEntry.TABLE_NAME));
+        assertEquals("Error: days lost unpacking the forecast",
+                14, DatabaseUtils.queryNumEntries(db, WeatherEntry.TABLE_NAME));
+
+        // and packing again takes the rows back in.
+        insertPackedForecast(locationRowId, newDays);
+        assertEquals(1, DatabaseUtils.queryNumEntries(db, PackedForecastEntry.TABLE_NAME));
+        assertEquals(0, DatabaseUtils.queryNumEntries(db, WeatherEntry.TABLE_NAME));
+    }
+
+    /*
+        A weather/* query returns the same rows, in the same order and with the same _id,
+        whether the days of the location are packed or weather rows. That holds for orders by
+        expressions and location columns too, they all run through sql either way.
+     */
+    public void testPackedForecastMatchesRows() {
+        long locationRowId = ContentUris.parseId(mContext.getContentResolver().insert(
+                LocationEntry.CONTENT_URI, TestUtilities.createNorthPoleLocationValues()));
+        long millisecondsInADay = 1000*60*60*24;
+
+        ForecastBatch days = new ForecastBatch();
+        days.setLocationId(locationRowId);
+        for (int i = 0; i < 10; i++) {
+            // spreads of 10, 12.5, 5, 7.5, ... with ties in between.
+            days.add(TestUtilities.TEST_DATE + i * millisecondsInADay, 10 - (i % 4) * 2.5,
+                    20 + (i % 2) * 2.5, 50 + i, 1013.25, 3.5, 180, i < 5 ? 800 : 500,
+                    i % 3 == 0 ? "Clear" : "It's cloudy");
+        }
+        WeatherRepository.getInstance(mContext).insertForecast(days);
+        Uri locationUri = WeatherEntry.buildWeatherLocation(TestUtilities.TEST_LOCATION);
+        Uri rangeUri = WeatherEntry.buildWeatherLocationWithDateRange(TestUtilities.TEST_LOCATION,
+                TestUtilities.TEST_DATE + millisecondsInADay,
+                TestUtilities.TEST_DATE + 8 * millisecondsInADay);
+        Uri dayUri = WeatherEntry.buildWeatherLocationWithDate(TestUtilities.TEST_LOCATION,
+                TestUtilities.TEST_DATE + 3 * millisecondsInADay);
+        String[] projection = {WeatherEntry.TABLE_NAME + "." + WeatherEntry._ID,
+                WeatherEntry.COLUMN_DATE, WeatherEntry.COLUMN_MAX_TEMP,
+                WeatherEntry.COLUMN_MAX_TEMP + " - " + WeatherEntry.COLUMN_MIN_TEMP + " AS spread",
+                WeatherEntry.COLUMN_SHORT_DESC};
+        String[] sortOrders = {WeatherEntry._ID,
+                WeatherEntry.COLUMN_DATE + " DESC",
+                "spread DESC, " + WeatherEntry.COLUMN_DATE,
+                WeatherEntry.COLUMN_MAX_TEMP + " - " + WeatherEntry.COLUMN_MIN_TEMP + ", " +
+                        WeatherEntry.COLUMN_SHORT_DESC + " COLLATE NOCASE DESC, " +
+                        WeatherEntry._ID,
+                LocationEntry.COLUMN_CITY_NAME + ", " + WeatherEntry.COLUMN_WEATHER_ID + " ASC, " +
+                        WeatherEntry.TABLE_NAME + "." + WeatherEntry.COLUMN_DATE + " DESC"};
+
+        List<String> rows = new ArrayList<String>();
+        for (Uri uri : new Uri[]{locationUri, rangeUri, dayUri}) {
+            rows.add(readRows(uri, null, WeatherEntry.COLUMN_DATE));
+            for (String sortOrder : sortOrders) {
+                rows.add(readRows(uri, projection, sortOrder));
+            }
+        }
+
+        // the same days packed, with the ids of their rows.
+        insertPackedForecast(locationRowId, new ForecastBatch());
+        SQLiteDatabase db = WeatherDbHelper.getInstance(mContext).getReadableDatabase();
+        assertEquals(1, DatabaseUtils.queryNumEntries(db, PackedForecastEntry.TABLE_NAME));
+        assertEquals(0, DatabaseUtils.queryNumEntries(db, WeatherEntry.TABLE_NAME));
+        int r = 0;
+        for (Uri uri : new Uri[]{locationUri, rangeUri, dayUri}) {
+            assertEquals("Error: packed days differ from rows for " + uri,
+                    rows.get(r++), readRows(uri, null, WeatherEntry.COLUMN_DATE));
+            for (String sortOrder : sortOrders) {
+                assertEquals("Error: packed days differ from rows for " + uri + " by " +
+                        sortOrder, rows.get(r++), readRows(uri, projection, sortOrder));
+            }
+        }
+
+        // a new packed day gets an id past every row.
+        String lastRowId = DatabaseUtils.stringForQuery(db, "SELECT seq FROM sqlite_sequence " +
+                "WHERE name = ?", new String[]{WeatherEntry.TABLE_NAME});
+        ForecastBatch newDay = new ForecastBatch();
+        newDay.add(TestUtilities.TEST_DATE + 10 * millisecondsInADay, 1, 2, 3, 4, 5, 6, 7,
+                "Fog");
+        insertPackedForecast(locationRowId, newDay);
+        Cursor cursor = mContext.getContentResolver().query(
+                WeatherEntry.buildWeatherLocationWithDate(TestUtilities.TEST_LOCATION,
+                        TestUtilities.TEST_DATE + 10 * millisecondsInADay),
+                new String[]{WeatherEntry._ID}, null, null, null);
+        assertTrue(cursor.moveToFirst());
+        long newDayId = cursor.getLong(0);
+        cursor.close();
+        assertEquals(Long.parseLong(lastRowId) + 1, newDayId);
+
+        // and unpacked the days keep them.
+        String packedRows = readRows(locationUri, null, WeatherEntry.COLUMN_DATE);
+        ContentValues values = new ContentValues();
+        values.put(WeatherEntry.COLUMN_SHORT_DESC, "Fog");
+        assertEquals(1, mContext.getContentResolver().update(WeatherEntry.CONTENT_URI, values,
+                WeatherEntry._ID + " = ?", new String[]{Long.toString(newDayId)}));
+        assertEquals(0, DatabaseUtils.queryNumEntries(db, PackedForecastEntry.TABLE_NAME));
+        assertEquals(11, DatabaseUtils.queryNumEntries(db, WeatherEntry.TABLE_NAME));
+        assertEquals("Error: unpacked days differ from packed ones",
+                packedRows, readRows(locationUri, null, WeatherEntry.COLUMN_DATE));
+    }
+
+    /*
+        Only the packed locations a write reaches are touched. A delete rewrites the packed rows
+        it matches days of, an update unpacks just the locations it matches, and an insert
+        that fails leaves the days of its location packed.
+     */
+    public void testPackedForecastWritesStayScoped() throws InterruptedException {
+        long northPoleId = ContentUris.parseId(mContext.getContentResolver().insert(
+                LocationEntry.CONTENT_URI, TestUtilities.createNorthPoleLocationValues()));
+        ContentValues otherLocation = TestUtilities.createNorthPoleLocationValues();
+        otherLocation.put(LocationEntry.COLUMN_LOCATION_SETTING, OTHER_LOCATION);
+        otherLocation.put(LocationEntry.COLUMN_CITY_NAME, "Mountain View");
+        long otherId = ContentUris.parseId(mContext.getContentResolver().insert(
+                LocationEntry.CONTENT_URI, otherLocation));
+        long millisecondsInADay = 1000*60*60*24;
+
+        for (long locationRowId : new long[]{northPoleId, otherId}) {
+            ForecastBatch days = new ForecastBatch();
+            for (int i = 0; i < 5; i++) {
+                days.add(TestUtilities.TEST_DATE + i * millisecondsInADay, 10, 20, 50, 1013.25,
+                        3.5, 180, 800, "Clear");
+            }
+            insertPackedForecast(locationRowId, days);
+        }
+        SQLiteDatabase db = WeatherDbHelper.getInstance(mContext).getReadableDatabase();
+        String otherSelection = WeatherEntry.COLUMN_LOC_KEY + " = ?";
+        String[] otherArgs = {Long.toString(otherId)};
+
+        // a delete of the other location leaves the north pole's packed row as it is.
+        byte[] northPoleDays = readPackedDays(db, northPoleId);
+        assertNotNull(northPoleDays);
+        assertEquals(2, mContext.getContentResolver().delete(WeatherEntry.CONTENT_URI,
+                otherSelection + " AND " + WeatherEntry.COLUMN_DATE + " >= ?",
+                new String[]{otherArgs[0], Long.toString(TestUtilities.TEST_DATE +
+                        3 * millisecondsInADay)}));
+        assertTrue(Arrays.equals(northPoleDays, readPackedDays(db, northPoleId)));
+        assertEquals(3, countRows(WeatherEntry.buildWeatherLocation(OTHER_LOCATION), null,
+                null));
+        assertEquals(2, DatabaseUtils.queryNumEntries(db, PackedForecastEntry.TABLE_NAME));
+
+        // an update of the other location unpacks it alone.
+        ContentValues values = new ContentValues();
+        values.put(WeatherEntry.COLUMN_SHORT_DESC, "Meteors");
+        assertEquals(3, mContext.getContentResolver().update(WeatherEntry.CONTENT_URI, values,
+                otherSelection, otherArgs));
+        assertEquals(3, DatabaseUtils.queryNumEntries(db, WeatherEntry.TABLE_NAME));
+        assertEquals(1, DatabaseUtils.queryNumEntries(db, PackedForecastEntry.TABLE_NAME));
+        assertTrue(Arrays.equals(northPoleDays, readPackedDays(db, northPoleId)));
+
+        // a north pole row the table refuses, it has no description.
+        ContentValues badRow = TestUtilities.createWeatherValues(northPoleId);
+        badRow.remove(WeatherEntry.COLUMN_SHORT_DESC);
+        try {
+            mContext.getContentResolver().insert(WeatherEntry.CONTENT_URI, badRow);
+            fail("Error: a row without a description should not be inserted");
+        } catch (SQLException expected) {
+        }
+        assertTrue("Error: a failed insert unpacked the forecast",
+                Arrays.equals(northPoleDays, readPackedDays(db, northPoleId)));
+
+        // one that goes in unpacks the location, its observers hear of all of its days.
+        TestUtilities.CountingObserver northPole = new TestUtilities.CountingObserver();
+        mContext.getContentResolver().registerContentObserver(
+                WeatherEntry.buildWeatherLocation(TestUtilities.TEST_LOCATION), false,
+                northPole);
+        try {
+            ContentValues row = TestUtilities.createWeatherValues(northPoleId);
+            row.put(WeatherEntry.COLUMN_DATE, TestUtilities.TEST_DATE + 7 * millisecondsInADay);
+            mContext.getContentResolver().insert(WeatherEntry.CONTENT_URI, row);
+            TestUtilities.assertNotificationCount(
+                    "Error: an insert that unpacks should notify the location once", 1, northPole);
+        } finally {
+            mContext.getContentResolver().unregisterContentObserver(northPole);
+        }
+        assertEquals(0, DatabaseUtils.queryNumEntries(db, PackedForecastEntry.TABLE_NAME));
+        assertEquals(9, DatabaseUtils.queryNumEntries(db, WeatherEntry.TABLE_NAME));
+    }
+
+    /**
+     * @return every row of a query, in order, as "value|value|...;" per row.
+     */
+    private String readRows(Uri uri, String[] projection, String sortOrder) {
+        Cursor cursor = mContext.getContentResolver().query(uri, projection, null, null,
+                sortOrder);
+        StringBuilder rows = new StringBuilder();
+        while (cursor.moveToNext()) {
+            for (int c = 0; c < cursor.getColumnCount(); c++) {
+                rows.append(cursor.getString(c)).append('|');
+            }
+            rows.append(';');
+        }
+        cursor.close();
+        return rows.toString();
+    }
+
+    private static byte[] readPackedDays(SQLiteDatabase db, long locationRowId) {
+        Cursor cursor = db.query(PackedForecastEntry.TABLE_NAME,
+                new String[]{PackedForecastEntry.COLUMN_DAYS},
+                PackedForecastEntry.COLUMN_LOC_KEY + " = ?",
+                new String[]{Long.toString(locationRowId)}, null, null, null);
+        try {
+            return cursor.moveToFirst() ? cursor.getBlob(0) : null;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private void insertPackedForecast(long locationRowId, ForecastBatch days) {
+        ContentValues values = new ContentValues();
+        values.put(PackedForecastEntry.COLUMN_LOC_KEY, locationRowId);
+        values.put(PackedForecastEntry.COLUMN_DAYS, PackedForecast.pack(days));
+        Uri uri = mContext.getContentResolver().insert(PackedForecastEntry.CONTENT_URI, values);
+        assertEquals(locationRowId, ContentUris.parseId(uri));
+    }
+
+    /*
+        A weather/* query naming only weather columns skips the join with the location table,
+        and must return the same rows as the joined query.
+     */
+    public void testWeatherQueryWithoutLocationJoin() {
+        assertFalse(WeatherProvider.needsLocationJoin(
+                new String[]{WeatherEntry.TABLE_NAME + "." + WeatherEntry._ID,
+                        WeatherEntry.COLUMN_DATE, WeatherEntry.COLUMN_LOC_KEY},
+                WeatherEntry.COLUMN_DATE + " ASC"));
+        assertTrue(WeatherProvider.needsLocationJoin(null, null));
+        // the forecast list only names weather columns.
+        assertFalse(WeatherProvider.needsLocationJoin(FORECAST_COLUMNS,
+                WeatherEntry.COLUMN_DATE + " ASC"));
+        assertTrue(WeatherProvider.needsLocationJoin(new String[]{WeatherEntry.COLUMN_DATE,
+                LocationEntry.COLUMN_LOCATION_SETTING}, null));
+        assertTrue(WeatherProvider.needsLocationJoin(new String[]{WeatherEntry.COLUMN_DATE},
+                LocationEntry.COLUMN_CITY_NAME + " ASC"));
+        // names are matched whole, an alias that only contains a location column is not one.
+        assertFalse(WeatherProvider.needsLocationJoin(new String[]{WeatherEntry.COLUMN_DATE,
+                WeatherEntry.COLUMN_MAX_TEMP + " AS " + LocationEntry.COLUMN_CITY_NAME + "_max"},
+                WeatherEntry.TABLE_NAME + "." + WeatherEntry.COLUMN_DATE + " DESC"));
+        assertTrue(WeatherProvider.needsLocationJoin(new String[]{WeatherEntry.COLUMN_DATE},
+                LocationEntry.TABLE_NAME + "." + LocationEntry._ID + " ASC"));
+
+        Uri locationUri = mContext.getContentResolver().insert(LocationEntry.CONTENT_URI,
+                TestUtilities.createNorthPoleLocationValues());
+        long locationRowId = ContentUris.parseId(locationUri);
+        mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI,
+                createBulkInsertWeatherValues(locationRowId));
+
+        String[] weatherColumns = {WeatherEntry.TABLE_NAME + "." + WeatherEntry._ID,
+                WeatherEntry.COLUMN_DATE, WeatherEntry.COLUMN_MAX_TEMP};
+        String[] joinedColumns = {WeatherEntry.TABLE_NAME + "." + WeatherEntry._ID,
+                WeatherEntry.COLUMN_DATE, WeatherEntry.COLUMN_MAX_TEMP,
+                LocationEntry.COLUMN_CITY_NAME};
+        String sortOrder = WeatherEntry.COLUMN_DATE + " ASC";
+
+        Uri[] uris = {
+                WeatherEntry.buildWeatherLocation(TestUtilities.TEST_LOCATION),
+                WeatherEntry.buildWeatherLocationWithStartDate(TestUtilities.TEST_LOCATION,
+                        TestUtilities.TEST_DATE),
+                WeatherEntry.buildWeatherLocationWithDate(TestUtilities.TEST_LOCATION,
+                        TestUtilities.TEST_DATE)
+        };
+        for (Uri uri : uris) {
+            Cursor weatherOnly = mContext.getContentResolver().query(uri, weatherColumns, null,
+                    null, sortOrder);
+            Cursor joined = mContext.getContentResolver().query(uri, joinedColumns, null,
+                    null, sortOrder);
+            assertTrue("Error: no rows for " + uri, joined.getCount() > 0);
+            assertEquals("Error: row count differs without the join for " + uri,
+                    joined.getCount(), weatherOnly.getCount());
+            while (joined.moveToNext() && weatherOnly.moveToNext()) {
+                for (int i = 0; i < weatherColumns.length; i++) {
+                    assertEquals(joined.getString(i), weatherOnly.getString(i));
+                }
+            }
+            weatherOnly.close();
+            joined.close();
+        }
+
+        // an unknown location has no rows, with or without the join.
+        Cursor cursor = mContext.getContentResolver().query(
+                WeatherEntry.buildWeatherLocation("nowhere"), weatherColumns, null, null, null);
+        assertEquals(0, cursor.getCount());
+        cursor.close();
+    }
+
+    // same as ForecastFragment.FORECAST_COLUMNS, the projection of the main list query.
+    private static final String[] FORECAST_COLUMNS = {
+            WeatherEntry.TABLE_NAME + "." + WeatherEntry._ID,
+            WeatherEntry.COLUMN_DATE,
+            WeatherEntry.COLUMN_SHORT_DESC,
+            WeatherEntry.COLUMN_MAX_TEMP,
+            WeatherEntry.COLUMN_MIN_TEMP,
+            WeatherEntry.COLUMN_WEATHER_ID
+    };
+
+    /*
+        Every query the provider runs for a uri must be answered from an index, without a full
+        table scan or a temp b-tree to sort the result.
+     */
+    public void testQueryPlans() {
+        SQLiteDatabase db = WeatherDbHelper.getInstance(mContext).getReadableDatabase();
+        String sortOrder = WeatherEntry.COLUMN_DATE + " ASC";
+        String day = Long.toString(WeatherContract.dateToDay(TestUtilities.TEST_DATE));
+
+        // weather/*
+        assertIndexedPlan(db, WeatherProvider.buildWeatherByLocationSettingQuery(
+                FORECAST_COLUMNS, WeatherProvider.sLocationSettingSelection, sortOrder),
+                TestUtilities.TEST_LOCATION);
+        // weather/*?date=, the forecast list
+        assertIndexedPlan(db, WeatherProvider.buildWeatherByLocationSettingQuery(
+                FORECAST_COLUMNS, WeatherProvider.sLocationSettingWithStartDateSelection,
+                sortOrder),
+                TestUtilities.TEST_LOCATION, day);
+        // weather/*?date=&end_date=
+        assertIndexedPlan(db, WeatherProvider.buildWeatherByLocationSettingQuery(
+                FORECAST_COLUMNS, WeatherProvider.sLocationSettingWithDateRangeSelection,
+                sortOrder),
+                TestUtilities.TEST_LOCATION, day, day);
+        // weather/*/#
+        assertIndexedPlan(db, WeatherProvider.buildWeatherByLocationSettingQuery(
+                null, WeatherProvider.sLocationSettingAndDaySelection, null),
+                TestUtilities.TEST_LOCATION, day);
+        // weather/*?date=, weather/*?date=&end_date= and weather/*/# with only weather columns,
+        // no join
+        String[] weatherColumns = WeatherProvider.toStoredProjection(
+                new String[]{WeatherEntry.COLUMN_DATE, WeatherEntry.COLUMN_MAX_TEMP});
+        assertIndexedPlan(db, SQLiteQueryBuilder.buildQueryString(false, WeatherEntry.TABLE_NAME,
+                weatherColumns, WeatherProvider.sLocationKeyWithStartDateSelection, null, null,
+                WeatherProvider.toStoredSortOrder(sortOrder), null),
+                "1", day);
+        assertIndexedPlan(db, SQLiteQueryBuilder.buildQueryString(false, WeatherEntry.TABLE_NAME,
+                weatherColumns, WeatherProvider.sLocationKeyWithDateRangeSelection, null, null,
+                WeatherProvider.toStoredSortOrder(sortOrder), null),
+                "1", day, day);
+        assertIndexedPlan(db, SQLiteQueryBuilder.buildQueryString(false, WeatherEntry.TABLE_NAME,
+                WeatherProvider.toStoredProjection(null),
+                WeatherProvider.sLocationKeyAndDaySelection, null, null, null, null),
+                "1", day);
+        // location, by setting as FetchWeatherTask looks it up
+        assertIndexedPlan(db, SQLiteQueryBuilder.buildQueryString(false, LocationEntry.TABLE_NAME,
+                new String[]{LocationEntry._ID}, LocationEntry.COLUMN_LOCATION_SETTING + " = ?",
+                null, null, null, null),
+                TestUtilities.TEST_LOCATION);
+        // location/#
+        assertIndexedPlan(db, SQLiteQueryBuilder.buildQueryString(false, LocationEntry.TABLE_NAME,
+                null, WeatherProvider.sLocationIdSelection, null, null, null, null),
+                "1");
+    }
+
+    private static void assertIndexedPlan(SQLiteDatabase db, String sql, String... args) {
+        Cursor plan = db.rawQuery("EXPLAIN QUERY PLAN " + sql, args);
+        int detailIndex = plan.getColumnIndex("detail");
+        StringBuilder details = new StringBuilder();
+        while (plan.moveToNext()) {
+            details.append(plan.getString(detailIndex)).append('\n');
+        }
+        plan.close();
+        Log.d(LOG_TAG, sql + "\n" + details);
+
+        // "SCAN TABLE weather" on older sqlite, "SCAN weather" on newer.
+        assertFalse("Error: full scan in the plan of " + sql + "\n" + details,
+                details.indexOf("SCAN ") != -1);
+        assertFalse("Error: temp b-tree in the plan of " + sql + "\n" + details,
+                details.indexOf("TEMP B-TREE") != -1);
+    }
+
     static private final int BULK_INSERT_RECORDS_TO_INSERT = 10;
     static ContentValues[] createBulkInsertWeatherValues(long locationRowId) {
         long currentTestDate = TestUtilities.TEST_DATE;
@@ -0,0 +1,97 @@
+package com.kenano.android.mysunshine.data;
+
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Build;
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.kenano.android.mysunshine.data.WeatherContract.LocationEntry;
+import com.kenano.android.mysunshine.data.WeatherContract.WeatherEntry;
+
+/**
+ * Measures how long a forecast read takes while a large ingest is committing, the way the
+ * forecast list loads while a sync runs in the background.
+ */
+public class TestReadDuringIngest extends AndroidTestCase {
+
+    public static final String LOG_TAG = TestReadDuringIngest.class.getSimpleName();
+
+    static final int INGEST_BATCHES = 40;
+    static final int ROWS_PER_BATCH = 250;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mContext.getContentResolver().delete(WeatherEntry.CONTENT_URI, null, null);
+        mContext.getContentResolver().delete(LocationEntry.CONTENT_URI, null, null);
+    }
+
+    public void testWriteAheadLogging() {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN) {
+            return;
+        }
+        assertTrue("Error: the shared helper should open the db in WAL mode",
+                WeatherDbHelper.getInstance(mContext).getWritableDatabase()
+                        .isWriteAheadLoggingEnabled());
+    }
+
+    public void testReadLatencyDuringIngest() throws Exception {
+        Uri locationUri = mContext.getContentResolver().insert(LocationEntry.CONTENT_URI,
+                TestUtilities.createNorthPoleLocationValues());
+        final long locationRowId = ContentUris.parseId(locationUri);
+        mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI,
+                new ContentValues[]{
+                        TestUtilities.createWeatherValues(locationRowId)});
+
+        final long millisecondsInADay = 1000 * 60 * 60 * 24;
+        final long[] ingestMillis = new long[1];
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                long start = SystemClock.elapsedRealtime();
+                long date = TestUtilities.TEST_DATE + millisecondsInADay;
+                for (int b = 0; b < INGEST_BATCHES; b++) {
+                    ForecastBatch batch = new ForecastBatch(ROWS_PER_BATCH);
+                    batch.setLocationId(locationRowId);
+                    for (int i = 0; i < ROWS_PER_BATCH; i++, date += millisecondsInADay) {
+                        batch.add(date, 65 - i % 10, 75 + i % 10, 50, 1.3, 5.5, 1.1, 321,
+                                "Asteroids");
+                    }
+                    WeatherRepository.getInstance(mContext).insertForecast(batch);
+                }
+                ingestMillis[0] = SystemClock.elapsedRealtime() - start;
+            }
+        }, "TestReadDuringIngest-writer");
+
+        Uri dayUri = WeatherEntry.buildWeatherLocationWithDate(TestUtilities.TEST_LOCATION,
+                TestUtilities.TEST_DATE);
+        int reads = 0;
+        long totalMillis = 0;
+        long maxMillis = 0;
+
+        writer.start();
+        while (writer.isAlive()) {
+            long start = SystemClock.elapsedRealtime();
+            Cursor cursor = mContext.getContentResolver().query(dayUri, null, null, null, null);
+            assertTrue("Error: the day written before the ingest should stay readable",
+                    cursor.moveToFirst());
+            cursor.close();
+            long millis = SystemClock.elapsedRealtime() - start;
+
+            reads++;
+            totalMillis += millis;
+            maxMillis = Math.max(maxMillis, millis);
+        }
+        writer.join();
+
+        Log.d(LOG_TAG, INGEST_BATCHES * ROWS_PER_BATCH + " rows ingested in " + ingestMillis[0] +
+                " ms, " + reads + " reads meanwhile, avg " +
+                (reads == 0 ? 0 : totalMillis / reads) + " ms, max " + maxMillis + " ms");
+
+        assertTrue("Error: no read completed while the ingest was running", reads > 0);
+    }
+}
@@ -15,8 +15,12 @@ public class TestUriMatcher extends AndroidTestCase {
 
     private static final Uri TEST_WEATHER_DIR = WeatherContract.WeatherEntry.CONTENT_URI;
     private static final Uri TEST_WEATHER_WITH_LOCATION_DIR = WeatherContract.WeatherEntry.buildWeatherLocation(LOCATION_QUERY);
+    private static final Uri TEST_WEATHER_WITH_LOCATION_AND_RANGE_DIR = WeatherContract.WeatherEntry.buildWeatherLocationWithDateRange(LOCATION_QUERY, TEST_DATE, TEST_DATE);
     private static final Uri TEST_WEATHER_WITH_LOCATION_AND_DATE_DIR = WeatherContract.WeatherEntry.buildWeatherLocationWithDate(LOCATION_QUERY, TEST_DATE);
     private static final Uri TEST_LOCATION_DIR = WeatherContract.LocationEntry.CONTENT_URI;
+    private static final Uri TEST_LOCATION_WITH_ID = WeatherContract.LocationEntry.buildLocationUri(TEST_LOCATION_ID);
+    private static final Uri TEST_PACKED_FORECAST_DIR = WeatherContract.PackedForecastEntry.CONTENT_URI;
+    private static final Uri TEST_PACKED_FORECAST_WITH_LOCATION = WeatherContract.PackedForecastEntry.buildPackedForecastUri(TEST_LOCATION_ID);
 
     public void testUriMatcher() {
         UriMatcher testMatcher = WeatherProvider.buildUriMatcher();
@@ -25,9 +29,18 @@ public class TestUriMatcher extends AndroidTestCase {
                 testMatcher.match(TEST_WEATHER_DIR), WeatherProvider.WEATHER);
         assertEquals("Error: The WEATHER WITH LOCATION URI was matched incorrectly.",
                 testMatcher.match(TEST_WEATHER_WITH_LOCATION_DIR), WeatherProvider.WEATHER_WITH_LOCATION);
+        assertEquals("Error: The WEATHER WITH LOCATION AND RANGE URI was matched incorrectly.",
+                testMatcher.match(TEST_WEATHER_WITH_LOCATION_AND_RANGE_DIR), WeatherProvider.WEATHER_WITH_LOCATION);
         assertEquals("Error: The WEATHER WITH LOCATION AND DATE URI was matched incorrectly.",
                 testMatcher.match(TEST_WEATHER_WITH_LOCATION_AND_DATE_DIR), WeatherProvider.WEATHER_WITH_LOCATION_AND_DATE);
         assertEquals("Error: The LOCATION URI was matched incorrectly.",
                 testMatcher.match(TEST_LOCATION_DIR), WeatherProvider.LOCATION);
+        assertEquals("Error: The LOCATION WITH ID URI was matched incorrectly.",
+                testMatcher.match(TEST_LOCATION_WITH_ID), WeatherProvider.LOCATION_WITH_ID);
+        assertEquals("Error: The PACKED FORECAST URI was matched incorrectly.",
+                testMatcher.match(TEST_PACKED_FORECAST_DIR), WeatherProvider.PACKED_FORECAST);
+        assertEquals("Error: The PACKED FORECAST WITH LOCATION URI was matched incorrectly.",
+                testMatcher.match(TEST_PACKED_FORECAST_WITH_LOCATION),
+                WeatherProvider.PACKED_FORECAST_WITH_LOCATION);
     }
 }
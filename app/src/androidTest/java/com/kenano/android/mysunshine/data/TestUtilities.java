@@ -136,4 +136,77 @@ public class TestUtilities extends AndroidTestCase {
         return TestContentObserver.getTestContentObserver();
     }
 
+    // how long a notification may take to arrive, and how long an observer that got all it
+    // should must then stay quiet.
+    static final long NOTIFICATION_TIMEOUT_MILLIS = 5000;
+    static final long NOTIFICATION_QUIET_MILLIS = 500;
+
+    /**
+     * Checks an observer gets exactly the expected notifications, see
+     * {@link #assertNotificationCounts(String[], int[], CountingObserver...)}.
+     */
+    public static void assertNotificationCount(String message, int expected,
+                                               CountingObserver observer)
+            throws InterruptedException {
+        assertNotificationCounts(new String[]{message}, new int[]{expected}, observer);
+    }
+
+    /**
+     * Checks each observer gets exactly its expected notifications, 0 for none. Waits until
+     * every observer reached its count, then until NOTIFICATION_QUIET_MILLIS have passed
+     * without one going past it. Fails as soon as one falls short at the timeout or goes over.
+     */
+    public static void assertNotificationCounts(String[] messages, int[] expected,
+                                                CountingObserver... observers)
+            throws InterruptedException {
+        for (int i = 0; i < observers.length; i++) {
+            assertEquals(messages[i], expected[i],
+                    observers[i].waitForCount(expected[i], NOTIFICATION_TIMEOUT_MILLIS));
+        }
+        long quietUntil = System.currentTimeMillis() + NOTIFICATION_QUIET_MILLIS;
+        for (int i = 0; i < observers.length; i++) {
+            long remaining = Math.max(quietUntil - System.currentTimeMillis(), 0);
+            assertEquals(messages[i], expected[i],
+                    observers[i].waitForCount(expected[i] + 1, remaining));
+        }
+    }
+
+    /*
+        Counts the notifications it gets. They arrive on a binder thread some time after
+        notifyChange returned, so wait for them instead of checking straight away.
+     */
+    public static class CountingObserver extends ContentObserver {
+        private int mCount;
+
+        public CountingObserver() {
+            super(null);
+        }
+
+        @Override
+        public void onChange(boolean selfChange) {
+            synchronized (this) {
+                mCount++;
+                notifyAll();
+            }
+        }
+
+        public synchronized int getCount() {
+            return mCount;
+        }
+
+        /**
+         * @return the count once it reached expected, or whatever it is when the timeout is up.
+         */
+        public synchronized int waitForCount(int expected, long timeoutMillis)
+                throws InterruptedException {
+            long deadline = System.currentTimeMillis() + timeoutMillis;
+            long remaining = timeoutMillis;
+            while (mCount < expected && remaining > 0) {
+                wait(remaining);
+                remaining = deadline - System.currentTimeMillis();
+            }
+            return mCount;
+        }
+    }
+
 }
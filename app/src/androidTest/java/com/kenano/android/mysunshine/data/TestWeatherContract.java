@@ -1,17 +1,32 @@
 package com.kenano.android.mysunshine.data;
 
 import android.net.Uri;
+import android.os.SystemClock;
 import android.test.AndroidTestCase;
+import android.text.format.DateUtils;
+import android.text.format.Time;
+import android.util.Log;
+
+import java.util.Random;
+import java.util.TimeZone;
 
 /**
  * Created by KenanO on 9/4/16.
  */
 public class TestWeatherContract extends AndroidTestCase {
 
+    public static final String LOG_TAG = TestWeatherContract.class.getSimpleName();
+
     // intentionally includes a slash to make sure Uri is getting quoted correctly
     private static final String TEST_WEATHER_LOCATION = "/North Pole";
     private static final long TEST_WEATHER_DATE = 1419033600L;  // December 20th, 2014
 
+    // 1970 to 2037, the range Time handles on every release.
+    private static final long FIRST_DATE = 0;
+    private static final long LAST_DATE = 2145916800000L;
+
+    private static final int BENCHMARK_CALLS = 200000;
+
     public void testBuildWeatherLocation() {
 
         Uri locationUri = WeatherContract.WeatherEntry.buildWeatherLocation(TEST_WEATHER_LOCATION);
@@ -25,4 +40,82 @@ public class TestWeatherContract extends AndroidTestCase {
                 locationUri.toString(),
                 "content://com.kenano.android.mysunshine.data/weather/%2FNorth%20Pole");
     }
+
+    /**
+     * normalizeDate as it was before it became arithmetic, built on Time. It used the default
+     * time zone, the tests make that UTC to compare the two.
+     */
+    private static long normalizeDateWithTime(long startDate) {
+        Time time = new Time();
+        time.set(startDate);
+        int julianDay = Time.getJulianDay(startDate, time.gmtoff);
+        return time.setJulianDay(julianDay);
+    }
+
+    public void testNormalizeDateMatchesTime() {
+        TimeZone defaultZone = TimeZone.getDefault();
+        TimeZone.setDefault(TimeZone.getTimeZone("UTC"));
+        try {
+            // every day boundary and a millisecond either side of it.
+            for (long day = FIRST_DATE; day < LAST_DATE; day += DateUtils.DAY_IN_MILLIS) {
+                for (long date = Math.max(day - 1, 0); date <= day + 1; date++) {
+                    assertEquals("Error: normalizeDate differs from Time for " + date,
+                            normalizeDateWithTime(date), WeatherContract.normalizeDate(date));
+                }
+            }
+            // and times of day all over the range.
+            Random random = new Random(42);
+            for (int i = 0; i < 100000; i++) {
+                long date = FIRST_DATE + (long) (random.nextDouble() * (LAST_DATE - FIRST_DATE));
+                assertEquals("Error: normalizeDate differs from Time for " + date,
+                        normalizeDateWithTime(date), WeatherContract.normalizeDate(date));
+            }
+        } finally {
+            TimeZone.setDefault(defaultZone);
+        }
+    }
+
+    public void testNormalizeDateBeforeEpoch() {
+        assertEquals(-DateUtils.DAY_IN_MILLIS, WeatherContract.normalizeDate(-1));
+        assertEquals(-DateUtils.DAY_IN_MILLIS,
+                WeatherContract.normalizeDate(-DateUtils.DAY_IN_MILLIS));
+        assertEquals(-2 * DateUtils.DAY_IN_MILLIS,
+                WeatherContract.normalizeDate(-DateUtils.DAY_IN_MILLIS - 1));
+    }
+
+    public void testTodayDateIsNormalized() {
+        long today = WeatherContract.getTodayDate();
+        assertEquals(today, WeatherContract.normalizeDate(today));
+        assertTrue("Error: today should be within a day of now",
+                Math.abs(System.currentTimeMillis() - today) < 2 * DateUtils.DAY_IN_MILLIS);
+    }
+
+    public void testNormalizeDateBenchmark() {
+        TimeZone defaultZone = TimeZone.getDefault();
+        TimeZone.setDefault(TimeZone.getTimeZone("UTC"));
+        try {
+            long step = (LAST_DATE - FIRST_DATE) / BENCHMARK_CALLS;
+            // the sums keep the calls from being optimized away.
+            long timeSum = 0;
+            long start = SystemClock.elapsedRealtimeNanos();
+            for (int i = 0; i < BENCHMARK_CALLS; i++) {
+                timeSum += normalizeDateWithTime(FIRST_DATE + i * step);
+            }
+            long timeNanos = SystemClock.elapsedRealtimeNanos() - start;
+
+            long arithmeticSum = 0;
+            start = SystemClock.elapsedRealtimeNanos();
+            for (int i = 0; i < BENCHMARK_CALLS; i++) {
+                arithmeticSum += WeatherContract.normalizeDate(FIRST_DATE + i * step);
+            }
+            long arithmeticNanos = SystemClock.elapsedRealtimeNanos() - start;
+
+            Log.d(LOG_TAG, BENCHMARK_CALLS + " dates normalized, Time " +
+                    timeNanos / BENCHMARK_CALLS + " ns per call, arithmetic " +
+                    arithmeticNanos / BENCHMARK_CALLS + " ns per call");
+            assertEquals(timeSum, arithmeticSum);
+        } finally {
+            TimeZone.setDefault(defaultZone);
+        }
+    }
 }
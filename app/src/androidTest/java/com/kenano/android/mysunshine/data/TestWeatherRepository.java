@@ -0,0 +1,209 @@
+package com.kenano.android.mysunshine.data;
+
+import android.database.Cursor;
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.text.format.DateUtils;
+import android.util.Log;
+
+import com.kenano.android.mysunshine.data.WeatherContract.LocationEntry;
+import com.kenano.android.mysunshine.data.WeatherContract.WeatherEntry;
+
+/**
+ * Checks WeatherRepository returns the same data straight from the provider as through the
+ * resolver, and compares how long the two paths take for the calls the app makes.
+ */
+public class TestWeatherRepository extends AndroidTestCase {
+
+    public static final String LOG_TAG = TestWeatherRepository.class.getSimpleName();
+
+    static final int DAYS = 365;
+    static final int ITERATIONS = 200;
+
+    static final long NOTIFICATION_TIMEOUT_MILLIS = 5000;
+
+    private static final String[] FORECAST_COLUMNS = {
+            WeatherEntry.TABLE_NAME + "." + WeatherEntry._ID,
+            WeatherEntry.COLUMN_DATE,
+            WeatherEntry.COLUMN_SHORT_DESC,
+            WeatherEntry.COLUMN_MAX_TEMP,
+            WeatherEntry.COLUMN_MIN_TEMP,
+            LocationEntry.COLUMN_LOCATION_SETTING,
+            WeatherEntry.COLUMN_WEATHER_ID,
+            LocationEntry.COLUMN_COORD_LAT,
+            LocationEntry.COLUMN_COORD_LONG
+    };
+
+    private static final String SORT_ORDER = WeatherEntry.COLUMN_DATE + " ASC";
+
+    private WeatherRepository mDirect;
+    private WeatherRepository mThroughResolver;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        // through the provider, so LocationIdCache hears of the deleted locations.
+        mContext.getContentResolver().delete(WeatherEntry.CONTENT_URI, null, null);
+        mContext.getContentResolver().delete(LocationEntry.CONTENT_URI, null, null);
+        mDirect = new WeatherRepository(mContext, true);
+        mThroughResolver = new WeatherRepository(mContext, false);
+    }
+
+    public void testBothPathsReturnTheSameData() {
+        assertTrue("Error: the provider should run in the test's process", mDirect.isDirect());
+        assertFalse(mThroughResolver.isDirect());
+
+        long locationId = mDirect.addLocation(TestUtilities.TEST_LOCATION, "North Pole",
+                64.7488, -147.353);
+        assertTrue("Error: location not inserted", locationId > 0);
+        LocationIdCache.getInstance(mContext).clear();
+        assertEquals("Error: the resolver found another id", locationId,
+                mThroughResolver.findLocationId(TestUtilities.TEST_LOCATION));
+        assertEquals("Error: a stored location was inserted again", locationId,
+                mThroughResolver.addLocation(TestUtilities.TEST_LOCATION, "North Pole",
+                        64.7488, -147.353));
+        assertEquals(-1, mDirect.findLocationId("nowhere"));
+
+        assertEquals(DAYS, mDirect.insertForecast(buildForecast(locationId)));
+
+        long startDate = TestUtilities.TEST_DATE + 10 * DateUtils.DAY_IN_MILLIS;
+        assertSameRows("forecast from a start date",
+                mThroughResolver.queryForecast(TestUtilities.TEST_LOCATION, startDate, 0,
+                        FORECAST_COLUMNS, SORT_ORDER),
+                mDirect.queryForecast(TestUtilities.TEST_LOCATION, startDate, 0,
+                        FORECAST_COLUMNS, SORT_ORDER));
+        long endDate = startDate + 6 * DateUtils.DAY_IN_MILLIS;
+        assertSameRows("forecast over a range",
+                mThroughResolver.queryForecast(TestUtilities.TEST_LOCATION, startDate, endDate,
+                        FORECAST_COLUMNS, SORT_ORDER),
+                mDirect.queryForecast(TestUtilities.TEST_LOCATION, startDate, endDate,
+                        FORECAST_COLUMNS, SORT_ORDER));
+        assertSameRows("single day",
+                mThroughResolver.queryForecastDay(TestUtilities.TEST_LOCATION, startDate, null),
+                mDirect.queryForecastDay(TestUtilities.TEST_LOCATION, startDate, null));
+    }
+
+    public void testDirectCursorIsNotified() throws InterruptedException {
+        long locationId = mDirect.addLocation(TestUtilities.TEST_LOCATION, "North Pole",
+                64.7488, -147.353);
+        Cursor cursor = mDirect.queryForecast(TestUtilities.TEST_LOCATION,
+                TestUtilities.TEST_DATE, 0, FORECAST_COLUMNS, SORT_ORDER);
+        TestUtilities.CountingObserver observer = new TestUtilities.CountingObserver();
+        cursor.registerContentObserver(observer);
+        try {
+            mDirect.insertForecast(buildForecast(locationId));
+            assertEquals("Error: a cursor read straight from the provider was not notified",
+                    1, observer.waitForCount(1, NOTIFICATION_TIMEOUT_MILLIS));
+        } finally {
+            cursor.unregisterContentObserver(observer);
+            cursor.close();
+        }
+    }
+
+    public void testBenchmark() {
+        long locationId = mDirect.addLocation(TestUtilities.TEST_LOCATION, "North Pole",
+                64.7488, -147.353);
+        ForecastBatch forecast = buildForecast(locationId);
+
+        long resolverInsertMillis = insertForecast(mThroughResolver, forecast);
+        long directInsertMillis = insertForecast(mDirect, forecast);
+
+        // every insert drops the cached results of the location, so the first pass of each
+        // path runs its queries and the second one reads them from the cache, like a loader
+        // restarting does.
+        mDirect.insertForecast(forecast);
+        long resolverQueryMillis = queryForecast(mThroughResolver);
+        long resolverCachedQueryMillis = queryForecast(mThroughResolver);
+        mDirect.insertForecast(forecast);
+        long directQueryMillis = queryForecast(mDirect);
+        long directCachedQueryMillis = queryForecast(mDirect);
+
+        long resolverLookupMillis = findLocationId(mThroughResolver);
+        long directLookupMillis = findLocationId(mDirect);
+
+        long resolverAddMillis = addLocations(mThroughResolver, "resolver");
+        long directAddMillis = addLocations(mDirect, "direct");
+
+        Log.d(LOG_TAG, ITERATIONS + " iterations, resolver / direct: insert " +
+                ITERATIONS / 10 + " forecasts " + resolverInsertMillis + " / " +
+                directInsertMillis + " ms, query " +
+                resolverQueryMillis + " / " + directQueryMillis + " ms, cached query " +
+                resolverCachedQueryMillis + " / " + directCachedQueryMillis +
+                " ms, location lookup " + resolverLookupMillis + " / " + directLookupMillis +
+                " ms, add location " + resolverAddMillis + " / " + directAddMillis + " ms");
+    }
+
+    private static ForecastBatch buildForecast(long locationId) {
+        ForecastBatch forecast = new ForecastBatch(DAYS);
+        forecast.setLocationId(locationId);
+        for (int d = 0; d < DAYS; d++) {
+            forecast.add(TestUtilities.TEST_DATE + d * DateUtils.DAY_IN_MILLIS,
+                    -5 + d % 10, 5 + d % 10, 50 + d % 40, 1013.2, 3.5, 180, 800, "Clear");
+        }
+        return forecast;
+    }
+
+    private static long insertForecast(WeatherRepository repository, ForecastBatch forecast) {
+        long start = SystemClock.elapsedRealtime();
+        for (int i = 0; i < ITERATIONS / 10; i++) {
+            repository.insertForecast(forecast);
+        }
+        return SystemClock.elapsedRealtime() - start;
+    }
+
+    /**
+     * Reads the forecast from as many start dates as there are iterations.
+     */
+    private static long queryForecast(WeatherRepository repository) {
+        long start = SystemClock.elapsedRealtime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            Cursor cursor = repository.queryForecast(TestUtilities.TEST_LOCATION,
+                    TestUtilities.TEST_DATE + i * DateUtils.DAY_IN_MILLIS, 0,
+                    FORECAST_COLUMNS, SORT_ORDER);
+            cursor.getCount();
+            cursor.close();
+        }
+        return SystemClock.elapsedRealtime() - start;
+    }
+
+    /**
+     * Looks the location up with an empty LocationIdCache, so every lookup reaches the db.
+     */
+    private long findLocationId(WeatherRepository repository) {
+        LocationIdCache idCache = LocationIdCache.getInstance(mContext);
+        long start = SystemClock.elapsedRealtime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            idCache.clear();
+            assertTrue(repository.findLocationId(TestUtilities.TEST_LOCATION) > 0);
+        }
+        return SystemClock.elapsedRealtime() - start;
+    }
+
+    private static long addLocations(WeatherRepository repository, String prefix) {
+        long start = SystemClock.elapsedRealtime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            repository.addLocation(prefix + i, "City " + i, 37.0 + i / 1000.0, -122.0);
+        }
+        return SystemClock.elapsedRealtime() - start;
+    }
+
+    private static void assertSameRows(String error, Cursor expected, Cursor actual) {
+        try {
+            assertEquals("Error: columns differ for " + error, expected.getColumnCount(),
+                    actual.getColumnCount());
+            assertEquals("Error: row counts differ for " + error, expected.getCount(),
+                    actual.getCount());
+            assertTrue("Error: no rows for " + error, expected.getCount() > 0);
+            while (expected.moveToNext()) {
+                assertTrue(actual.moveToNext());
+                for (int c = 0; c < expected.getColumnCount(); c++) {
+                    assertEquals("Error: " + expected.getColumnName(c) + " differs for " + error,
+                            expected.getString(c), actual.getString(c));
+                }
+            }
+        } finally {
+            expected.close();
+            actual.close();
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package com.kenano.android.mysunshine;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Makes sure only one fetch per location setting is in flight at a time.
+ *
+ * onStart, a refresh tap and a settings change can all ask for the same location at once.
+ * The first caller runs the fetch, everyone arriving while it is still running waits for it
+ * and gets its result instead of downloading and inserting the same rows again.
+ */
+public class FetchCoalescer {
+
+    // location setting -> the fetch currently running for it.
+    private static final ConcurrentMap<String, FutureTask<Integer>> sInFlight =
+            new ConcurrentHashMap<String, FutureTask<Integer>>();
+
+    private static final AtomicLong sRequestCount = new AtomicLong();
+    private static final AtomicLong sDeduplicatedCount = new AtomicLong();
+
+    /**
+     * Runs the fetch for a location, or joins the one already running for it.
+     *
+     * @param locationSetting key the fetches are coalesced on.
+     * @param fetch does the actual work, returns the number of rows written.
+     * @return the result of whichever fetch ran, FETCH_FAILED if the wait for it was
+     * interrupted. The interrupt is kept set on the calling thread.
+     */
+    public static int fetch(String locationSetting, Callable<Integer> fetch) {
+        sRequestCount.incrementAndGet();
+
+        FutureTask<Integer> task = new FutureTask<Integer>(fetch);
+        FutureTask<Integer> inFlight = sInFlight.putIfAbsent(locationSetting, task);
+
+        if (inFlight == null) {
+            // nobody else is fetching this location, run it on this thread.
+            try {
+                task.run();
+            } finally {
+                sInFlight.remove(locationSetting, task);
+            }
+            inFlight = task;
+        } else {
+            sDeduplicatedCount.incrementAndGet();
+        }
+
+        try {
+            return inFlight.get();
+        } catch (InterruptedException e) {
+            // the fetch may still land, but this caller never saw it, so don't report it as
+            // an unchanged forecast.
+            Thread.currentThread().interrupt();
+            return FetchWeatherTask.FETCH_FAILED;
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new RuntimeException(cause);
+        }
+    }
+
+    /**
+     * @return how many fetches were asked for since the process started.
+     */
+    public static long getRequestCount() {
+        return sRequestCount.get();
+    }
+
+    /**
+     * @return how many of those joined a fetch already in flight instead of running their own.
+     */
+    public static long getDeduplicatedCount() {
+        return sDeduplicatedCount.get();
+    }
+}
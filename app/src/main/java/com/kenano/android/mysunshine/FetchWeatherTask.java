@@ -1,33 +1,35 @@
 package com.kenano.android.mysunshine;
 
-import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.SharedPreferences;
 import android.database.Cursor;
+import android.database.SQLException;
 import android.database.DatabaseUtils;
 import android.net.Uri;
 import android.os.AsyncTask;
+import android.os.Bundle;
 import android.preference.PreferenceManager;
-import android.text.format.Time;
+import android.text.format.DateUtils;
 import android.util.Log;
 import android.widget.ArrayAdapter;
 
+import com.kenano.android.mysunshine.data.ForecastBatch;
 import com.kenano.android.mysunshine.data.WeatherContract;
+import com.kenano.android.mysunshine.data.WeatherRepository;
 
-import org.json.JSONArray;
-import org.json.JSONException;
-import org.json.JSONObject;
-
-import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
 import java.net.HttpURLConnection;
 import java.net.URL;
 import java.text.SimpleDateFormat;
+import java.util.Arrays;
 import java.util.Date;
-import java.util.Vector;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Semaphore;
 
 /**
  * Created by KenanO on 9/15/16.
@@ -38,13 +40,53 @@ public class FetchWeatherTask extends AsyncTask<String, Void, Void> {
 
     final String OPEN_WEATHER_API_KEY = "b32fec9798602911015f910a16479c16";
 
+    static final String FORECAST_BASE_URL =
+            "http://api.openweathermap.org/data/2.5/forecast/daily?";
+
     private final Context mContext;
 
+    private final String mForecastBaseUrl;
+
+    // permits for requests open against the forecast host, null for no limit.
+    private final Semaphore mHostPermits;
+
+    // fetchWeather result when the forecast could not be downloaded or stored.
+    static final int FETCH_FAILED = -1;
+
+    // shared with every other fetch so connections are reused across them.
+    private final WeatherHttpTransport mTransport = WeatherHttpTransport.getInstance();
+
     public FetchWeatherTask(Context context) {
+        this(context, FORECAST_BASE_URL);
+    }
+
+    /**
+     * @param forecastBaseUrl where the daily forecast is requested from, tests point this at a
+     *                        local server.
+     */
+    FetchWeatherTask(Context context, String forecastBaseUrl) {
+        this(context, forecastBaseUrl, null);
+    }
+
+    /**
+     * @param hostPermits taken for every request against the forecast host, so fetches running
+     *                    at the same time stay under a per host limit. null for no limit.
+     */
+    FetchWeatherTask(Context context, String forecastBaseUrl, Semaphore hostPermits) {
         mContext = context;
+        mForecastBaseUrl = forecastBaseUrl;
+        mHostPermits = hostPermits;
     }
 
-    private boolean DEBUG = true;
+    /**
+     * Looks the row id of a location up, in the cache first and then in the provider.
+     *
+     * @param locationSetting The location string used to request updates from the server.
+     * @return the row ID of the location, or -1 if it is not stored.
+     */
+    long findLocationId(String locationSetting) {
+        return WeatherRepository.getInstance(mContext).findLocationId(locationSetting);
+    }
 
     /**
      * Helper method to handle insertion of a new location in the weather database.
@@ -56,192 +98,286 @@ public class FetchWeatherTask extends AsyncTask<String, Void, Void> {
      * @return the row ID of the added location.
      */
     long addLocation(String locationSetting, String cityName, double lat, double lon) {
-        long locationId;
+        return WeatherRepository.getInstance(mContext).addLocation(locationSetting, cityName,
+                lat, lon);
+    }
 
-        // First, check if the location with this city name exists in the db
-        Cursor locationCursor = mContext.getContentResolver().query(
-                WeatherContract.LocationEntry.CONTENT_URI,
-                new String[]{WeatherContract.LocationEntry._ID},
-                WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ?",
-                new String[]{locationSetting},
-                null);
+    private static ContentValues buildLocationValues(String locationSetting, String cityName,
+                                                     double lat, double lon) {
+        // First create a ContentValues object to hold the data you want to insert.
+        ContentValues locationValues = new ContentValues();
+
+        // Then add the data, along with the corresponding name of the data type,
+        // so the content provider knows what kind of value is being inserted.
+        locationValues.put(WeatherContract.LocationEntry.COLUMN_CITY_NAME, cityName);
+        locationValues.put(WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING, locationSetting);
+        locationValues.put(WeatherContract.LocationEntry.COLUMN_COORD_LAT, lat);
+        locationValues.put(WeatherContract.LocationEntry.COLUMN_COORD_LONG, lon);
+        return locationValues;
+    }
 
-        if (locationCursor.moveToFirst()) {
-            int locationIdIndex = locationCursor.getColumnIndex(WeatherContract.LocationEntry._ID);
-            locationId = locationCursor.getLong(locationIdIndex);
-        } else {
-            // Now that the content provider is set up, inserting rows of data is pretty simple.
-            // First create a ContentValues object to hold the data you want to insert.
-            ContentValues locationValues = new ContentValues();
-
-            // Then add the data, along with the corresponding name of the data type,
-            // so the content provider knows what kind of value is being inserted.
-            locationValues.put(WeatherContract.LocationEntry.COLUMN_CITY_NAME, cityName);
-            locationValues.put(WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING, locationSetting);
-            locationValues.put(WeatherContract.LocationEntry.COLUMN_COORD_LAT, lat);
-            locationValues.put(WeatherContract.LocationEntry.COLUMN_COORD_LONG, lon);
-
-            // Finally, insert location data into the database.
-            Uri insertedUri = mContext.getContentResolver().insert(
-                    WeatherContract.LocationEntry.CONTENT_URI,
-                    locationValues
-            );
-
-            // The resulting URI contains the ID for the row.  Extract the locationId from the Uri.
-            locationId = ContentUris.parseId(insertedUri);
+    /**
+     * A forecast that has been downloaded and parsed but not stored yet.
+     */
+    static class Forecast {
+        final String locationSetting;
+
+        String cityName;
+        double lat;
+        double lon;
+
+        // one row per day, without the location key which is only known once stored.
+        final ForecastBatch days = new ForecastBatch(14);
+
+        // validators sent with the request and the ones that came back with the response.
+        String[] oldValidators;
+        String etag;
+        String lastModified;
+
+        Forecast(String locationSetting) {
+            this.locationSetting = locationSetting;
         }
+    }
 
-        locationCursor.close();
-        // Wait, that worked?  Yes!
-        return locationId;
+    /**
+     * Turns the values reported by the parser into a {@link Forecast}, one row per day.
+     */
+    private class ForecastCollector implements ForecastJsonParser.Listener {
+
+        private final Forecast mForecast;
+        private final long mStartDate;
+
+        ForecastCollector(String locationSetting, long startDate) {
+            mForecast = new Forecast(locationSetting);
+            mStartDate = startDate;
+        }
+
+        @Override
+        public void onCity(String name, double lat, double lon) {
+            mForecast.cityName = name;
+            mForecast.lat = lat;
+            mForecast.lon = lon;
+        }
+
+        @Override
+        public void onDay(int index, double pressure, int humidity, double windSpeed,
+                          double windDirection, double high, double low,
+                          String description, int weatherId) {
+
+            // days follow each other from the start date, in UTC there are no 23 hour days.
+            long dateTime = mStartDate + index * DateUtils.DAY_IN_MILLIS;
+
+            mForecast.days.add(dateTime, low, high, humidity, pressure, windSpeed, windDirection,
+                    weatherId, description);
+        }
+
+        /**
+         * @return the collected forecast, or null if the response held no forecast.
+         */
+        Forecast getForecast() {
+            if (mForecast.cityName == null) {
+                // no city means OWM sent back an error body instead of a forecast.
+                Log.w(LOG_TAG, "No city in forecast for " + mForecast.locationSetting);
+                return null;
+            }
+            return mForecast;
+        }
     }
 
     /**
-     * Take the String representing the complete forecast in JSON Format and
-     * pull out the data we need to construct the Strings needed for the wireframes.
+     * OWM returns daily forecasts based upon the local time of the city that is being
+     * asked for, which means that we need to know the GMT offset to translate this data
+     * properly.
      *
-     * Fortunately parsing is easy:  constructor takes the JSON string and converts it
-     * into an Object hierarchy for us.
+     * Since this data is also sent in-order and the first day is always the
+     * current day, we're going to take advantage of that to get a nice
+     * normalized UTC date for all of our weather.
+     *
+     * @return the normalized date of the first day of a forecast downloaded now.
      */
-    private void getWeatherDataFromJson(String forecastJsonStr,
-                                            String locationSetting)
-            throws JSONException {
+    private static long getStartDate() {
+        // we start at the day returned by local time. Otherwise this is a mess.
+        return WeatherContract.getTodayDate();
+    }
 
-        // Now we have a String representing the complete forecast in JSON Format.
-        // Fortunately parsing is easy:  constructor takes the JSON string and converts it
-        // into an Object hierarchy for us.
+    /**
+     * Take the stream representing the complete forecast in JSON Format and
+     * pull out the data we need to construct the rows for the database.
+     *
+     * The stream is parsed as it is read, each day is turned into a row as soon as it arrives
+     * so neither the raw response nor a JSON object tree is ever held in memory.
+     *
+     * @return the parsed forecast, or null if the response held no forecast.
+     */
+    private Forecast getWeatherDataFromStream(InputStream forecastStream,
+                                              String locationSetting)
+            throws IOException {
+        ForecastCollector collector = new ForecastCollector(locationSetting, getStartDate());
+        new ForecastJsonParser().parse(forecastStream, collector);
+        return collector.getForecast();
+    }
 
-        // These are the names of the JSON objects that need to be extracted.
+    /**
+     * Writes a parsed forecast to the database, along with its location and validators. Only
+     * the days that are new or whose weather changed reach the provider, stored days are
+     * updated in place. The provider stores the location and its forecast in one transaction
+     * and notifies observers once. A forecast identical to the stored one writes nothing and
+     * notifies no one. With packed storage on, the changed days are merged into the location's
+     * packed row instead, see {@link Utility#isPackedStorage}.
+     *
+     * @return number of weather rows inserted or updated, FETCH_FAILED if the forecast could
+     * not be stored.
+     */
+    int storeForecast(Forecast forecast) {
+        WeatherRepository repository = WeatherRepository.getInstance(mContext);
+        ContentValues locationValues = buildLocationValues(forecast.locationSetting,
+                forecast.cityName, forecast.lat, forecast.lon);
+        ContentValues validatorValues = buildValidatorValues(forecast.oldValidators,
+                forecast.etag, forecast.lastModified);
+        if (validatorValues != null) {
+            locationValues.putAll(validatorValues);
+        }
 
-        // Location information
-        final String OWM_CITY = "city";
-        final String OWM_CITY_NAME = "name";
-        final String OWM_COORD = "coord";
+        ForecastBatch changedDays = forecast.days;
+        long locationId = repository.findLocationId(forecast.locationSetting);
+        if (locationId != -1) {
+            forecast.days.setLocationId(locationId);
+            changedDays = dropUnchangedDays(forecast.locationSetting, forecast.days);
+        }
 
-        // Location coordinate
-        final String OWM_LATITUDE = "lat";
-        final String OWM_LONGITUDE = "lon";
+        int inserted = 0;
+        int updated = 0;
+        int unchanged = forecast.days.size() - changedDays.size();
+        if (locationId == -1 || changedDays.size() > 0 || validatorValues != null) {
+            Bundle counts;
+            try {
+                counts = repository.storeForecast(locationValues, changedDays,
+                        Utility.isPackedStorage(mContext));
+            } catch (SQLException e) {
+                Log.e(LOG_TAG, "Error storing the forecast for " + forecast.locationSetting, e);
+                return FETCH_FAILED;
+            }
+            inserted = counts.getInt(WeatherContract.EXTRA_ROWS_INSERTED);
+            updated = counts.getInt(WeatherContract.EXTRA_ROWS_UPDATED);
+            unchanged += counts.getInt(WeatherContract.EXTRA_ROWS_UNCHANGED);
+        }
 
-        // Weather information.  Each day's forecast info is an element of the "list" array.
-        final String OWM_LIST = "list";
+        // an unchanged forecast is as fresh as a new one.
+        if (forecast.days.size() > 0) {
+            SyncFreshness.markSynced(mContext, forecast.locationSetting);
+        }
 
-        final String OWM_PRESSURE = "pressure";
-        final String OWM_HUMIDITY = "humidity";
-        final String OWM_WINDSPEED = "speed";
-        final String OWM_WIND_DIRECTION = "deg";
+        Log.d(LOG_TAG, "FetchWeatherTask Complete. " + inserted + " Inserted, " + updated +
+                " Updated, " + unchanged + " Unchanged");
+        return inserted + updated;
+    }
 
-        // All temperatures are children of the "temp" object.
-        final String OWM_TEMPERATURE = "temp";
-        final String OWM_MAX = "max";
-        final String OWM_MIN = "min";
+    // the stored weather a parsed day is compared with, in the order of ForecastBatch.add.
+    private static final String[] STORED_DAY_COLUMNS = {
+            WeatherContract.WeatherEntry.COLUMN_DATE,
+            WeatherContract.WeatherEntry.COLUMN_MIN_TEMP,
+            WeatherContract.WeatherEntry.COLUMN_MAX_TEMP,
+            WeatherContract.WeatherEntry.COLUMN_HUMIDITY,
+            WeatherContract.WeatherEntry.COLUMN_PRESSURE,
+            WeatherContract.WeatherEntry.COLUMN_WIND_SPEED,
+            WeatherContract.WeatherEntry.COLUMN_DEGREES,
+            WeatherContract.WeatherEntry.COLUMN_WEATHER_ID,
+            WeatherContract.WeatherEntry.COLUMN_SHORT_DESC
+    };
 
-        final String OWM_WEATHER = "weather";
-        final String OWM_DESCRIPTION = "main";
-        final String OWM_WEATHER_ID = "id";
+    /**
+     * Compares a parsed forecast with the days stored for its location over the same dates.
+     *
+     * @param locationSetting the location the forecast is for.
+     * @param days the parsed forecast, with its location id set.
+     * @return the days that are not stored yet or whose weather changed.
+     */
+    ForecastBatch dropUnchangedDays(String locationSetting, ForecastBatch days) {
+        if (days.size() == 0) {
+            return days;
+        }
+        long firstDate = Long.MAX_VALUE;
+        long lastDate = Long.MIN_VALUE;
+        long[] dates = new long[days.size()];
+        for (int i = 0; i < days.size(); i++) {
+            dates[i] = WeatherContract.normalizeDate(days.getDate(i));
+            firstDate = Math.min(firstDate, dates[i]);
+            lastDate = Math.max(lastDate, dates[i]);
+        }
 
+        ForecastBatch stored = new ForecastBatch(days.size());
+        Map<Long, Integer> storedByDate = new HashMap<Long, Integer>();
+        Cursor cursor = WeatherRepository.getInstance(mContext).queryForecast(locationSetting,
+                firstDate, lastDate, STORED_DAY_COLUMNS, null);
         try {
-            JSONObject forecastJson = new JSONObject(forecastJsonStr);
-            JSONArray weatherArray = forecastJson.getJSONArray(OWM_LIST);
-
-            JSONObject cityJson = forecastJson.getJSONObject(OWM_CITY);
-            String cityName = cityJson.getString(OWM_CITY_NAME);
-
-            JSONObject cityCoord = cityJson.getJSONObject(OWM_COORD);
-            double cityLatitude = cityCoord.getDouble(OWM_LATITUDE);
-            double cityLongitude = cityCoord.getDouble(OWM_LONGITUDE);
-
-            long locationId = addLocation(locationSetting, cityName, cityLatitude, cityLongitude);
-
-            // Insert the new weather information into the database
-            Vector<ContentValues> cVVector = new Vector<ContentValues>(weatherArray.length());
-
-            // OWM returns daily forecasts based upon the local time of the city that is being
-            // asked for, which means that we need to know the GMT offset to translate this data
-            // properly.
-
-            // Since this data is also sent in-order and the first day is always the
-            // current day, we're going to take advantage of that to get a nice
-            // normalized UTC date for all of our weather.
-
-            Time dayTime = new Time();
-            dayTime.setToNow();
-
-            // we start at the day returned by local time. Otherwise this is a mess.
-            int julianStartDay = Time.getJulianDay(System.currentTimeMillis(), dayTime.gmtoff);
-
-            // now we work exclusively in UTC
-            dayTime = new Time();
-
-            for(int i = 0; i < weatherArray.length(); i++) {
-                // These are the values that will be collected.
-                long dateTime;
-                double pressure;
-                int humidity;
-                double windSpeed;
-                double windDirection;
-
-                double high;
-                double low;
-
-                String description;
-                int weatherId;
-
-                // Get the JSON object representing the day
-                JSONObject dayForecast = weatherArray.getJSONObject(i);
-
-                // Cheating to convert this to UTC time, which is what we want anyhow
-                dateTime = dayTime.setJulianDay(julianStartDay+i);
-
-                pressure = dayForecast.getDouble(OWM_PRESSURE);
-                humidity = dayForecast.getInt(OWM_HUMIDITY);
-                windSpeed = dayForecast.getDouble(OWM_WINDSPEED);
-                windDirection = dayForecast.getDouble(OWM_WIND_DIRECTION);
-
-                // Description is in a child array called "weather", which is 1 element long.
-                // That element also contains a weather code.
-                JSONObject weatherObject =
-                        dayForecast.getJSONArray(OWM_WEATHER).getJSONObject(0);
-                description = weatherObject.getString(OWM_DESCRIPTION);
-                weatherId = weatherObject.getInt(OWM_WEATHER_ID);
-
-                // Temperatures are in a child object called "temp".  Try not to name variables
-                // "temp" when working with temperature.  It confuses everybody.
-                JSONObject temperatureObject = dayForecast.getJSONObject(OWM_TEMPERATURE);
-                high = temperatureObject.getDouble(OWM_MAX);
-                low = temperatureObject.getDouble(OWM_MIN);
-
-                ContentValues weatherValues = new ContentValues();
-
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_LOC_KEY, locationId);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_DATE, dateTime);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_HUMIDITY, humidity);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_PRESSURE, pressure);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_WIND_SPEED, windSpeed);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_DEGREES, windDirection);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_MAX_TEMP, high);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_MIN_TEMP, low);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_SHORT_DESC, description);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_WEATHER_ID, weatherId);
-
-                cVVector.add(weatherValues);
+            while (cursor.moveToNext()) {
+                storedByDate.put(cursor.getLong(0), stored.size());
+                stored.add(cursor.getLong(0), cursor.getDouble(1), cursor.getDouble(2),
+                        cursor.getInt(3), cursor.getDouble(4), cursor.getDouble(5),
+                        cursor.getDouble(6), cursor.getInt(7), cursor.getString(8));
+            }
+        } finally {
+            cursor.close();
+        }
+        if (stored.size() == 0) {
+            return days;
+        }
+
+        ForecastBatch changed = new ForecastBatch(days.size());
+        changed.setLocationId(days.getLocationId());
+        for (int i = 0; i < days.size(); i++) {
+            Integer storedDay = storedByDate.get(dates[i]);
+            if (storedDay == null || !days.hasSameWeather(i, stored, storedDay)) {
+                changed.add(days, i);
             }
+        }
+        return changed;
+    }
 
-            int inserted = 0;
+    /**
+     * Looks up the http validators stored with the last forecast for a location.
+     *
+     * @param locationSetting The location string used to request updates from the server.
+     * @return {etag, last modified}, either may be null. Both are null for a new location.
+     */
+    String[] getValidators(String locationSetting) {
+        String[] validators = new String[2];
 
-            // add to database
-            if ( cVVector.size() > 0 ) {
-                ContentValues[] cvArray = new ContentValues[cVVector.size()];
-                cVVector.toArray(cvArray);
-                inserted = mContext.getContentResolver().bulkInsert(WeatherContract.WeatherEntry.CONTENT_URI, cvArray);
+        Cursor locationCursor = mContext.getContentResolver().query(
+                WeatherContract.LocationEntry.CONTENT_URI,
+                new String[]{WeatherContract.LocationEntry.COLUMN_ETAG,
+                        WeatherContract.LocationEntry.COLUMN_LAST_MODIFIED},
+                WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ?",
+                new String[]{locationSetting},
+                null);
 
-            }
+        if (locationCursor.moveToFirst()) {
+            validators[0] = locationCursor.getString(0);
+            validators[1] = locationCursor.getString(1);
+        }
+        locationCursor.close();
 
-            Log.d(LOG_TAG, "FetchWeatherTask Complete. " + inserted + " Inserted");
+        return validators;
+    }
 
-        } catch (JSONException e) {
-            Log.e(LOG_TAG, e.getMessage(), e);
-            e.printStackTrace();
+    /**
+     * @return the http validators of a freshly downloaded forecast to store with its location,
+     * or null if they are the ones already stored.
+     */
+    private static ContentValues buildValidatorValues(String[] oldValidators,
+                                                      String etag, String lastModified) {
+        if (equals(etag, oldValidators[0]) && equals(lastModified, oldValidators[1])) {
+            return null;
         }
+
+        ContentValues validatorValues = new ContentValues();
+        validatorValues.put(WeatherContract.LocationEntry.COLUMN_ETAG, etag);
+        validatorValues.put(WeatherContract.LocationEntry.COLUMN_LAST_MODIFIED, lastModified);
+        return validatorValues;
+    }
+
+    private static boolean equals(String a, String b) {
+        return a == null ? b == null : a.equals(b);
     }
 
     @Override
@@ -251,94 +387,168 @@ public class FetchWeatherTask extends AsyncTask<String, Void, Void> {
         if (params.length == 0) {
             return null;
         }
-        String locationQuery = params[0];
-
-        // These two need to be declared outside the try/catch
-        // so that they can be closed in the finally block.
-        HttpURLConnection urlConnection = null;
-        BufferedReader reader = null;
-
-        // Will contain the raw JSON response as a string.
-        String forecastJsonStr = null;
-
-        String format = "json";
-        String units = "metric";
-        int numDays = 14;
-
-        try {
-            // Construct the URL for the OpenWeatherMap query
-            // Possible parameters are avaiable at OWM's forecast API page, at
-            // http://openweathermap.org/API#forecast
-            final String FORECAST_BASE_URL =
-                    "http://api.openweathermap.org/data/2.5/forecast/daily?";
-            final String QUERY_PARAM = "q";
-            final String FORMAT_PARAM = "mode";
-            final String UNITS_PARAM = "units";
-            final String DAYS_PARAM = "cnt";
-            final String APPID_PARAM = "APPID";
-
-            Uri builtUri = Uri.parse(FORECAST_BASE_URL).buildUpon()
-                    .appendQueryParameter(QUERY_PARAM, params[0])
-                    .appendQueryParameter(FORMAT_PARAM, format)
-                    .appendQueryParameter(UNITS_PARAM, units)
-                    .appendQueryParameter(DAYS_PARAM, Integer.toString(numDays))
-                    .appendQueryParameter(APPID_PARAM, OPEN_WEATHER_API_KEY)
-                    .build();
-
-            URL url = new URL(builtUri.toString());
-
-            // Create the request to OpenWeatherMap, and open the connection
-            urlConnection = (HttpURLConnection) url.openConnection();
-            urlConnection.setRequestMethod("GET");
-            urlConnection.connect();
-
-            // Read the input stream into a String
-            InputStream inputStream = urlConnection.getInputStream();
-            StringBuffer buffer = new StringBuffer();
-            if (inputStream == null) {
-                // Nothing to do.
+        // the app asks for one location, that needs no worker pool. several go through the
+        // engine, which fetches them side by side.
+        if (params.length == 1) {
+            fetchWeather(params[0]);
+        } else {
+            try {
+                new WeatherSyncEngine(mContext, mForecastBaseUrl,
+                        WeatherSyncEngine.DEFAULT_WORKER_COUNT,
+                        WeatherSyncEngine.DEFAULT_PER_HOST_LIMIT).sync(Arrays.asList(params));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
                 return null;
             }
-            reader = new BufferedReader(new InputStreamReader(inputStream));
-
-            String line;
-            while ((line = reader.readLine()) != null) {
-                // Since it's JSON, adding a newline isn't necessary (it won't affect parsing)
-                // But it does make debugging a *lot* easier if you print out the completed
-                // buffer for debugging.
-                buffer.append(line + "\n");
-            }
+        }
+        WeatherRetention.pruneIfDue(mContext);
 
-            if (buffer.length() == 0) {
-                // Stream was empty.  No point in parsing.
-                return null;
+        return null;
+    }
+
+    /**
+     * Downloads the forecast for a location and stores it in the database. If the same location
+     * is already being fetched this waits for that fetch and shares its result.
+     *
+     * @param locationQuery The location string used to request updates from the server.
+     * @return number of weather rows written, 0 if the forecast was not modified or did not
+     * change, FETCH_FAILED if it could not be downloaded or stored.
+     */
+    int fetchWeather(final String locationQuery) {
+        return FetchCoalescer.fetch(locationQuery, new Callable<Integer>() {
+            @Override
+            public Integer call() {
+                return downloadWeather(locationQuery);
             }
-            forecastJsonStr = buffer.toString();
+        });
+    }
 
-            //parse json object
-            getWeatherDataFromJson(forecastJsonStr, locationQuery);
+    /**
+     * Downloads the forecast for a location and stores it in the database.
+     *
+     * @param locationQuery The location string used to request updates from the server.
+     * @return number of weather rows written, 0 if the forecast was not modified or did not
+     * change, FETCH_FAILED if it could not be downloaded or stored.
+     */
+    private int downloadWeather(String locationQuery) {
+        try {
+            Forecast forecast = downloadForecast(locationQuery);
+            return forecast == null ? 0 : storeForecast(forecast);
         } catch (IOException e) {
             Log.e(LOG_TAG, "Error ", e);
             // If the code didn't successfully get the weather data, there's no point in attempting
             // to parse it.
-            return null;
-        } catch (JSONException e) {
-            Log.e(LOG_TAG, e.getMessage(), e);
-            e.printStackTrace();
-        } finally {
-            if (urlConnection != null) {
-                urlConnection.disconnect();
-            }
-            if (reader != null) {
-                try {
-                    reader.close();
-                } catch (final IOException e) {
-                    Log.e(LOG_TAG, "Error closing stream", e);
+            return FETCH_FAILED;
+        }
+    }
+
+    /**
+     * Downloads and parses the forecast for a location, without touching the weather table.
+     *
+     * The validators of the previous download are sent along, so when the forecast has not
+     * changed upstream the server answers 304 and nothing is parsed.
+     *
+     * @param locationQuery The location string used to request updates from the server.
+     * @return the forecast to store, or null if it was not modified or the response was empty.
+     * @throws IOException if the forecast could not be downloaded or parsed.
+     */
+    Forecast downloadForecast(String locationQuery) throws IOException {
+
+        Uri builtUri = buildForecastUri(locationQuery);
+
+        // Make the request conditional on the forecast we already have.
+        String[] validators = getValidators(locationQuery);
+        Map<String, String> headers = new HashMap<String, String>();
+        if (validators[0] != null) {
+            headers.put("If-None-Match", validators[0]);
+        }
+        if (validators[1] != null) {
+            headers.put("If-Modified-Since", validators[1]);
+        }
+
+        // Create the request to OpenWeatherMap, on a pooled connection if there is one. The
+        // host permit is held until the body has been read.
+        acquireHostPermit();
+        try {
+            WeatherHttpTransport.Response response =
+                    mTransport.get(new URL(builtUri.toString()), headers);
+            try {
+                if (response.getStatusCode() == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                    // Nothing changed upstream, what is in the db is still current.
+                    Log.d(LOG_TAG, "Forecast for " + locationQuery + " not modified");
+                    SyncFreshness.markSynced(mContext, locationQuery);
+                    return null;
+                }
+                checkStatus(response);
+
+                // Parse the forecast straight off the connection.
+                Forecast forecast = getWeatherDataFromStream(response.getBody(), locationQuery);
+                if (forecast != null) {
+                    forecast.oldValidators = validators;
+                    forecast.etag = response.getHeader("ETag");
+                    forecast.lastModified = response.getHeader("Last-Modified");
                 }
+                return forecast;
+            } finally {
+                // hands the connection back to the pool rather than disconnecting it.
+                response.close();
+                Log.v(LOG_TAG, "Forecast for " + locationQuery + ": " + response);
             }
+        } finally {
+            releaseHostPermit();
         }
+    }
 
-        return null;
+    private void acquireHostPermit() throws IOException {
+        if (mHostPermits == null) {
+            return;
+        }
+        try {
+            mHostPermits.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for the forecast host");
+        }
+    }
+
+    private void releaseHostPermit() {
+        if (mHostPermits != null) {
+            mHostPermits.release();
+        }
+    }
+
+    /**
+     * @throws IOException unless the response carries a forecast.
+     */
+    private static void checkStatus(WeatherHttpTransport.Response response) throws IOException {
+        if (response.getStatusCode() != HttpURLConnection.HTTP_OK) {
+            throw new IOException("Unexpected response " + response.getStatusCode());
+        }
+    }
+
+    /**
+     * Construct the URL for the OpenWeatherMap query
+     * Possible parameters are avaiable at OWM's forecast API page, at
+     * http://openweathermap.org/API#forecast
+     */
+    private Uri buildForecastUri(String locationQuery) {
+        final String QUERY_PARAM = "q";
+        final String FORMAT_PARAM = "mode";
+        final String UNITS_PARAM = "units";
+        final String DAYS_PARAM = "cnt";
+        final String APPID_PARAM = "APPID";
+
+        String format = "json";
+        String units = "metric";
+        int numDays = 14;
+
+        return Uri.parse(mForecastBaseUrl).buildUpon()
+                .appendQueryParameter(QUERY_PARAM, locationQuery)
+                .appendQueryParameter(FORMAT_PARAM, format)
+                .appendQueryParameter(UNITS_PARAM, units)
+                .appendQueryParameter(DAYS_PARAM, Integer.toString(numDays))
+                .appendQueryParameter(APPID_PARAM, OPEN_WEATHER_API_KEY)
+                .build();
     }
 
 }
@@ -1,12 +1,10 @@
 package com.kenano.android.mysunshine;
 
 import android.database.Cursor;
-import android.net.Uri;
 import android.os.Bundle;
 import android.support.annotation.Nullable;
 import android.support.v4.app.Fragment;
 import android.support.v4.app.LoaderManager;
-import android.support.v4.content.CursorLoader;
 import android.support.v4.content.Loader;
 import android.view.LayoutInflater;
 import android.view.Menu;
@@ -33,21 +31,16 @@ public class ForecastFragment extends Fragment implements LoaderManager.LoaderCa
     // For the forecast view we're showing only a small subset of the stored data.
     // Specify the columns we need.
     private static final String[] FORECAST_COLUMNS = {
-            // In this case the id needs to be fully qualified with a table name, since
-            // the content provider joins the location & weather tables in the background
-            // (both have an _id column)
-            // On the one hand, that's annoying.  On the other, you can search the weather table
-            // using the location set by the user, which is only in the Location table.
-            // So the convenience is worth it.
+            // the list only shows weather columns, so the provider answers it from the weather
+            // table alone, without joining the location table. the id stays qualified with the
+            // table name so the projection still works on a query that does join (both tables
+            // have an _id column).
             WeatherContract.WeatherEntry.TABLE_NAME + "." + WeatherContract.WeatherEntry._ID,
             WeatherContract.WeatherEntry.COLUMN_DATE,
             WeatherContract.WeatherEntry.COLUMN_SHORT_DESC,
             WeatherContract.WeatherEntry.COLUMN_MAX_TEMP,
             WeatherContract.WeatherEntry.COLUMN_MIN_TEMP,
-            WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING,
-            WeatherContract.WeatherEntry.COLUMN_WEATHER_ID,
-            WeatherContract.LocationEntry.COLUMN_COORD_LAT,
-            WeatherContract.LocationEntry.COLUMN_COORD_LONG
+            WeatherContract.WeatherEntry.COLUMN_WEATHER_ID
     };
 
     // These indices are tied to FORECAST_COLUMNS.  If FORECAST_COLUMNS changes, these
@@ -57,10 +50,7 @@ public class ForecastFragment extends Fragment implements LoaderManager.LoaderCa
     static final int COL_WEATHER_DESC = 2;
     static final int COL_WEATHER_MAX_TEMP = 3;
     static final int COL_WEATHER_MIN_TEMP = 4;
-    static final int COL_LOCATION_SETTING = 5;
-    static final int COL_WEATHER_CONDITION_ID = 6;
-    static final int COL_COORD_LAT = 7;
-    static final int COL_COORD_LONG = 8;
+    static final int COL_WEATHER_CONDITION_ID = 5;
 
 
     //binds data to display to the listview ui widget. ForecastAdapter is a cursoradapter
@@ -77,7 +67,9 @@ public class ForecastFragment extends Fragment implements LoaderManager.LoaderCa
     @Override
     public void onStart() {
         super.onStart();
-        updateWeather();
+
+        // coming back to the screen only refetches once the stored forecast has gone stale.
+        updateWeather(false);
     }
 
     @Override
@@ -93,7 +85,8 @@ public class ForecastFragment extends Fragment implements LoaderManager.LoaderCa
         int id = item.getItemId();
         if (id == R.id.action_refresh) {
 
-            updateWeather();
+            // an explicit refresh always goes to the network.
+            updateWeather(true);
             return true;
         }
         return super.onOptionsItemSelected(item);
@@ -126,11 +119,17 @@ public class ForecastFragment extends Fragment implements LoaderManager.LoaderCa
 
     /**
      * updates the weather data based preferred location in saved preferences
+     *
+     * @param force fetch even if the stored forecast is still fresh.
      */
-    private void updateWeather() {
+    private void updateWeather(boolean force) {
 
-        FetchWeatherTask weatherTask = new FetchWeatherTask(getActivity());
         String location = Utility.getPreferredLocation(getActivity());
+        if (!force && SyncFreshness.isFresh(getActivity(), location)) {
+            return;
+        }
+
+        FetchWeatherTask weatherTask = new FetchWeatherTask(getActivity());
         weatherTask.execute(location);
 
     }
@@ -144,17 +143,11 @@ public class ForecastFragment extends Fragment implements LoaderManager.LoaderCa
         // Sort order:  Ascending, by date.
         String sortOrder = WeatherContract.WeatherEntry.COLUMN_DATE + " ASC";
 
-        //create the uri for query
-        Uri weatherForLocationUri = WeatherContract.WeatherEntry.buildWeatherLocationWithStartDate(
-                locationSetting, System.currentTimeMillis());
-
-
-        //return a new cursor loader
-        return new CursorLoader(getActivity(),
-                weatherForLocationUri,
+        //return a loader reading the forecast from today on, straight from the provider.
+        return new ForecastLoader(getActivity(),
+                locationSetting,
+                WeatherContract.getTodayDate(),
                 FORECAST_COLUMNS,
-                null,
-                null,
                 sortOrder);
     }
 
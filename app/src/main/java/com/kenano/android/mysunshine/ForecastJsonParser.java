@@ -0,0 +1,254 @@
+package com.kenano.android.mysunshine;
+
+import android.util.JsonReader;
+import android.util.JsonToken;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+
+/**
+ * Pull based parser for the OpenWeatherMap daily forecast response.
+ *
+ * Reads straight from the connection's InputStream and hands each day to a {@link Listener}
+ * as soon as its array element has been read, so the full response is never held as a String
+ * or as a JSONObject tree.
+ *
+ * Like the JSONObject getters did, every value a row needs must be in the response. A day or
+ * a city missing one fails the whole response rather than storing made up readings.
+ */
+public class ForecastJsonParser {
+
+    // Location information
+    private static final String OWM_CITY = "city";
+    private static final String OWM_CITY_NAME = "name";
+    private static final String OWM_COORD = "coord";
+
+    // Location coordinate
+    private static final String OWM_LATITUDE = "lat";
+    private static final String OWM_LONGITUDE = "lon";
+
+    // Weather information.  Each day's forecast info is an element of the "list" array.
+    private static final String OWM_LIST = "list";
+
+    private static final String OWM_PRESSURE = "pressure";
+    private static final String OWM_HUMIDITY = "humidity";
+    private static final String OWM_WINDSPEED = "speed";
+    private static final String OWM_WIND_DIRECTION = "deg";
+
+    // All temperatures are children of the "temp" object.
+    private static final String OWM_TEMPERATURE = "temp";
+    private static final String OWM_MAX = "max";
+    private static final String OWM_MIN = "min";
+
+    private static final String OWM_WEATHER = "weather";
+    private static final String OWM_DESCRIPTION = "main";
+    private static final String OWM_WEATHER_ID = "id";
+
+    // the values of a day, one bit each. a day is only reported if it has all of them.
+    private static final int PRESSURE = 1;
+    private static final int HUMIDITY = 1 << 1;
+    private static final int WIND_SPEED = 1 << 2;
+    private static final int WIND_DIRECTION = 1 << 3;
+    private static final int HIGH = 1 << 4;
+    private static final int LOW = 1 << 5;
+    private static final int DESCRIPTION = 1 << 6;
+    private static final int WEATHER_ID = 1 << 7;
+    private static final int ALL_DAY_VALUES = (1 << 8) - 1;
+
+    /**
+     * Receives the values pulled out of the response, in the order they appear in the stream.
+     */
+    public interface Listener {
+
+        /**
+         * Called once the "city" object has been read.
+         */
+        void onCity(String cityName, double lat, double lon);
+
+        /**
+         * Called for every element of the "list" array that has all the values of a day.
+         *
+         * @param index position of the day in the forecast, 0 being today.
+         */
+        void onDay(int index, double pressure, int humidity, double windSpeed,
+                   double windDirection, double high, double low,
+                   String description, int weatherId);
+    }
+
+    // values of the day currently being read. reused for every element of the list so a
+    // 14 day forecast does not allocate 14 holders.
+    private double mPressure;
+    private int mHumidity;
+    private double mWindSpeed;
+    private double mWindDirection;
+    private double mHigh;
+    private double mLow;
+    private String mDescription;
+    private int mWeatherId;
+    // the values of the current day read so far.
+    private int mDayValues;
+
+    /**
+     * Parses the forecast and reports it to the listener. The stream is read to the end of the
+     * top level object but not closed, that is left to the caller.
+     *
+     * @param in the raw response body.
+     * @param listener receives the city and each day as they are read.
+     * @throws IOException if the stream can not be read or is not the expected json.
+     */
+    public void parse(InputStream in, Listener listener) throws IOException {
+        JsonReader reader = new JsonReader(new InputStreamReader(in, "UTF-8"));
+        try {
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                if (OWM_CITY.equals(name)) {
+                    readCity(reader, listener);
+                } else if (OWM_LIST.equals(name)) {
+                    readDays(reader, listener);
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+        } catch (IllegalStateException e) {
+            // JsonReader reports an unexpected token this way, surface it like any other bad
+            // response.
+            throw new IOException("Unexpected forecast json: " + e.getMessage());
+        } catch (NumberFormatException e) {
+            throw new IOException("Unexpected forecast json: " + e.getMessage());
+        }
+    }
+
+    private void readCity(JsonReader reader, Listener listener) throws IOException {
+        String cityName = null;
+        Double lat = null;
+        Double lon = null;
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (OWM_CITY_NAME.equals(name)) {
+                cityName = reader.nextString();
+            } else if (OWM_COORD.equals(name)) {
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    String coordName = reader.nextName();
+                    if (OWM_LATITUDE.equals(coordName)) {
+                        lat = reader.nextDouble();
+                    } else if (OWM_LONGITUDE.equals(coordName)) {
+                        lon = reader.nextDouble();
+                    } else {
+                        reader.skipValue();
+                    }
+                }
+                reader.endObject();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        if (cityName == null || lat == null || lon == null) {
+            throw new IOException("City without a name or coordinates");
+        }
+        listener.onCity(cityName, lat, lon);
+    }
+
+    private void readDays(JsonReader reader, Listener listener) throws IOException {
+        int index = 0;
+
+        reader.beginArray();
+        while (reader.hasNext()) {
+            readDay(reader);
+            if (mDayValues != ALL_DAY_VALUES) {
+                throw new IOException("Day " + index + " of the forecast is missing values");
+            }
+            listener.onDay(index, mPressure, mHumidity, mWindSpeed, mWindDirection,
+                    mHigh, mLow, mDescription, mWeatherId);
+            index++;
+        }
+        reader.endArray();
+    }
+
+    private void readDay(JsonReader reader) throws IOException {
+        mPressure = 0;
+        mHumidity = 0;
+        mWindSpeed = 0;
+        mWindDirection = 0;
+        mHigh = 0;
+        mLow = 0;
+        mDescription = null;
+        mWeatherId = 0;
+        mDayValues = 0;
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (OWM_PRESSURE.equals(name)) {
+                mPressure = reader.nextDouble();
+                mDayValues |= PRESSURE;
+            } else if (OWM_HUMIDITY.equals(name)) {
+                mHumidity = (int) reader.nextDouble();
+                mDayValues |= HUMIDITY;
+            } else if (OWM_WINDSPEED.equals(name)) {
+                mWindSpeed = reader.nextDouble();
+                mDayValues |= WIND_SPEED;
+            } else if (OWM_WIND_DIRECTION.equals(name)) {
+                mWindDirection = reader.nextDouble();
+                mDayValues |= WIND_DIRECTION;
+            } else if (OWM_TEMPERATURE.equals(name)) {
+                // Temperatures are in a child object called "temp".
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    String tempName = reader.nextName();
+                    if (OWM_MAX.equals(tempName)) {
+                        mHigh = reader.nextDouble();
+                        mDayValues |= HIGH;
+                    } else if (OWM_MIN.equals(tempName)) {
+                        mLow = reader.nextDouble();
+                        mDayValues |= LOW;
+                    } else {
+                        reader.skipValue();
+                    }
+                }
+                reader.endObject();
+            } else if (OWM_WEATHER.equals(name)) {
+                // Description is in a child array called "weather", which is 1 element long.
+                // That element also contains a weather code.
+                reader.beginArray();
+                boolean first = true;
+                while (reader.hasNext()) {
+                    if (first && reader.peek() == JsonToken.BEGIN_OBJECT) {
+                        readWeather(reader);
+                        first = false;
+                    } else {
+                        reader.skipValue();
+                    }
+                }
+                reader.endArray();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+    }
+
+    private void readWeather(JsonReader reader) throws IOException {
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (OWM_DESCRIPTION.equals(name)) {
+                mDescription = reader.nextString();
+                mDayValues |= DESCRIPTION;
+            } else if (OWM_WEATHER_ID.equals(name)) {
+                mWeatherId = (int) reader.nextDouble();
+                mDayValues |= WEATHER_ID;
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+    }
+}
@@ -0,0 +1,59 @@
+package com.kenano.android.mysunshine;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.support.v4.content.CursorLoader;
+
+import com.kenano.android.mysunshine.data.WeatherRepository;
+
+/**
+ * Loads the weather of a location from a start date on through {@link WeatherRepository},
+ * where a plain CursorLoader would query the provider through the resolver. Reloads when the
+ * weather of the location changes, like a CursorLoader does.
+ */
+public class ForecastLoader extends CursorLoader {
+
+    private final ForceLoadContentObserver mObserver = new ForceLoadContentObserver();
+
+    private final String mLocationSetting;
+    private final long mStartDate;
+    private final String[] mProjection;
+    private final String mSortOrder;
+
+    public ForecastLoader(Context context, String locationSetting, long startDate,
+                          String[] projection, String sortOrder) {
+        super(context);
+        mLocationSetting = locationSetting;
+        mStartDate = startDate;
+        mProjection = projection;
+        mSortOrder = sortOrder;
+    }
+
+    /**
+     * @return the forecast, or null if the load was canceled before it got back.
+     */
+    @Override
+    public Cursor loadInBackground() {
+        if (isLoadInBackgroundCanceled()) {
+            return null;
+        }
+        Cursor cursor = WeatherRepository.getInstance(getContext()).queryForecast(
+                mLocationSetting, mStartDate, 0, mProjection, mSortOrder);
+        if (cursor != null) {
+            // a canceled load is thrown away, don't fill a window nobody reads.
+            if (isLoadInBackgroundCanceled()) {
+                cursor.close();
+                return null;
+            }
+            // fill the window here and not on the main thread, then watch for changes.
+            try {
+                cursor.getCount();
+                cursor.registerContentObserver(mObserver);
+            } catch (RuntimeException e) {
+                cursor.close();
+                throw e;
+            }
+        }
+        return cursor;
+    }
+}
@@ -23,6 +23,8 @@ public class SettingsFragment extends PreferenceFragment
         // updated when the preference changes.
         bindPreferenceSummaryToValue(findPreference(getString(R.string.pref_location_key)));
         bindPreferenceSummaryToValue(findPreference(getString(R.string.pref_units_key)));
+        bindPreferenceSummaryToValue(findPreference(getString(R.string.pref_refresh_key)));
+        bindPreferenceSummaryToValue(findPreference(getString(R.string.pref_history_key)));
     }
 
     /*
@@ -0,0 +1,55 @@
+package com.kenano.android.mysunshine;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+/**
+ * Remembers when the forecast of each location was last synced successfully, so screens can
+ * skip the network when what is in the db is still young enough.
+ *
+ * A sync counts as successful when the forecast was stored or when the server said it had
+ * not changed. How long data stays fresh comes from the refresh preference.
+ */
+public class SyncFreshness {
+
+    // kept apart from the default preferences, these are bookkeeping and not settings.
+    private static final String PREFS_NAME = "sync_freshness";
+
+    private static final String KEY_LAST_SYNC_PREFIX = "last_sync_";
+
+    /**
+     * Records that the forecast for a location is up to date as of now.
+     *
+     * @param locationSetting The location string used to request updates from the server.
+     */
+    public static void markSynced(Context context, String locationSetting) {
+        getPrefs(context).edit()
+                .putLong(KEY_LAST_SYNC_PREFIX + locationSetting, System.currentTimeMillis())
+                .apply();
+    }
+
+    /**
+     * @param locationSetting The location string used to request updates from the server.
+     * @return time of the last successful sync in millis, or 0 if it never synced.
+     */
+    public static long getLastSync(Context context, String locationSetting) {
+        return getPrefs(context).getLong(KEY_LAST_SYNC_PREFIX + locationSetting, 0);
+    }
+
+    /**
+     * @param locationSetting The location string used to request updates from the server.
+     * @return true if the location synced within the refresh interval, so a fetch can be
+     * skipped.
+     */
+    public static boolean isFresh(Context context, String locationSetting) {
+        long lastSync = getLastSync(context, locationSetting);
+        long age = System.currentTimeMillis() - lastSync;
+
+        // a negative age means the clock moved back since the sync, don't trust it.
+        return lastSync > 0 && age >= 0 && age < Utility.getRefreshIntervalMillis(context);
+    }
+
+    private static SharedPreferences getPrefs(Context context) {
+        return context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+}
@@ -6,6 +6,7 @@ import android.preference.PreferenceManager;
 
 import java.text.DateFormat;
 import java.util.Date;
+import java.util.TimeZone;
 
 /**
  * Created by KenanO on 10/2/16.
@@ -26,6 +27,44 @@ public class Utility {
         return prefs.getString(context.getString(R.string.pref_location_key), context.getString(R.string.pref_location_default));
     }
 
+    /**
+     * Get how long a downloaded forecast is considered fresh before it is fetched again.
+     * @param context used to access static strings
+     * @return freshness window in milliseconds
+     */
+    public static long getRefreshIntervalMillis(Context context) {
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+
+        String minutes = prefs.getString(context.getString(R.string.pref_refresh_key),
+                context.getString(R.string.pref_refresh_default));
+        return Long.parseLong(minutes) * 60 * 1000;
+    }
+
+    /**
+     * Get how many past days of weather are kept in the database.
+     * @param context used to access static strings
+     * @return history window in days
+     */
+    public static int getHistoryDays(Context context) {
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+
+        String days = prefs.getString(context.getString(R.string.pref_history_key),
+                context.getString(R.string.pref_history_default));
+        return Integer.parseInt(days);
+    }
+
+    /**
+     * Whether a sync stores the forecast of a location packed into one row, see
+     * WeatherContract.PackedForecastEntry.
+     * @param context used to access static strings
+     * @return true to store forecasts packed
+     */
+    public static boolean isPackedStorage(Context context) {
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+
+        return prefs.getBoolean(context.getString(R.string.pref_packed_storage_key), false);
+    }
+
     public static boolean isMetric(Context context) {
         SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
         return prefs.getString(context.getString(R.string.pref_units_key),
@@ -45,6 +84,10 @@ public class Utility {
 
     static String formatDate(long dateInMillis) {
         Date date = new Date(dateInMillis);
-        return DateFormat.getDateInstance().format(date);
+        // dates are stored as the UTC start of their day, in local time they may fall the day
+        // before.
+        DateFormat format = DateFormat.getDateInstance();
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        return format.format(date);
     }
 }
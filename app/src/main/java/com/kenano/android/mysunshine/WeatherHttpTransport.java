@@ -0,0 +1,265 @@
+package com.kenano.android.mysunshine;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Shared http transport for the forecast downloads.
+ *
+ * HttpURLConnection keeps idle sockets in a pool and hands them to the next request for the same
+ * host, but only when the previous response was read to the end and its stream closed. Calling
+ * disconnect() throws the socket away instead. {@link Response#close()} therefore drains and
+ * closes the body and never disconnects, so back to back fetches skip the TCP/TLS setup.
+ *
+ * Every request has connect and read timeouts, asks for a gzip body and decodes it while it is
+ * read. Each response records how long connecting, waiting for the first byte and reading the
+ * body took.
+ */
+public class WeatherHttpTransport {
+
+    private static final String LOG_TAG = WeatherHttpTransport.class.getSimpleName();
+
+    public static final int DEFAULT_CONNECT_TIMEOUT_MILLIS = 15 * 1000;
+    public static final int DEFAULT_READ_TIMEOUT_MILLIS = 20 * 1000;
+
+    // a body left unread past this is not worth draining, the socket is dropped instead.
+    private static final int MAX_DRAIN_BYTES = 64 * 1024;
+
+    private static WeatherHttpTransport sInstance;
+
+    private final int mConnectTimeoutMillis;
+    private final int mReadTimeoutMillis;
+
+    private final AtomicLong mRequestCount = new AtomicLong();
+    // responses closed so far, the only ones whose times are in the totals below.
+    private final AtomicLong mCompletedCount = new AtomicLong();
+    private final AtomicLong mConnectMillis = new AtomicLong();
+    private final AtomicLong mFirstByteMillis = new AtomicLong();
+    private final AtomicLong mBodyMillis = new AtomicLong();
+
+    /**
+     * @return the transport shared by every fetch in the process, so they share one pool.
+     */
+    public static synchronized WeatherHttpTransport getInstance() {
+        if (sInstance == null) {
+            sInstance = new WeatherHttpTransport(DEFAULT_CONNECT_TIMEOUT_MILLIS,
+                    DEFAULT_READ_TIMEOUT_MILLIS);
+        }
+        return sInstance;
+    }
+
+    WeatherHttpTransport(int connectTimeoutMillis, int readTimeoutMillis) {
+        mConnectTimeoutMillis = connectTimeoutMillis;
+        mReadTimeoutMillis = readTimeoutMillis;
+    }
+
+    /**
+     * Sends a GET and waits for the status line and headers. The body is left on the
+     * connection, read it from {@link Response#getBody()} and always close the response.
+     *
+     * @param url what to ask for.
+     * @param headers extra request headers, may be null.
+     * @return the response, with its body not read yet.
+     * @throws IOException if the server could not be reached or did not answer in time.
+     */
+    public Response get(URL url, Map<String, String> headers) throws IOException {
+        mRequestCount.incrementAndGet();
+
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        connection.setRequestMethod("GET");
+        connection.setConnectTimeout(mConnectTimeoutMillis);
+        connection.setReadTimeout(mReadTimeoutMillis);
+        // asking explicitly turns off transparent decoding, Response does it instead.
+        connection.setRequestProperty("Accept-Encoding", "gzip");
+        if (headers != null) {
+            for (Map.Entry<String, String> header : headers.entrySet()) {
+                connection.setRequestProperty(header.getKey(), header.getValue());
+            }
+        }
+
+        long start = SystemClock.elapsedRealtime();
+        boolean answered = false;
+        try {
+            connection.connect();
+            long connected = SystemClock.elapsedRealtime();
+
+            int statusCode = connection.getResponseCode();
+            long firstByte = SystemClock.elapsedRealtime();
+            answered = true;
+
+            return new Response(connection, statusCode, connected - start, firstByte - connected);
+        } finally {
+            if (!answered) {
+                // nothing came back, the socket is in an unknown state.
+                connection.disconnect();
+            }
+        }
+    }
+
+    /**
+     * @return how many requests this transport has sent.
+     */
+    public long getRequestCount() {
+        return mRequestCount.get();
+    }
+
+    /**
+     * @return how many of those requests got a response that has been closed. Requests that
+     * failed or are still open are not in the averages.
+     */
+    public long getCompletedCount() {
+        return mCompletedCount.get();
+    }
+
+    /**
+     * @return average connect time in millis, close to 0 once sockets are being reused.
+     */
+    public long getAverageConnectMillis() {
+        return average(mConnectMillis);
+    }
+
+    /**
+     * @return average time between the end of connect and the response headers, in millis.
+     */
+    public long getAverageFirstByteMillis() {
+        return average(mFirstByteMillis);
+    }
+
+    /**
+     * @return average time spent reading response bodies, in millis.
+     */
+    public long getAverageBodyMillis() {
+        return average(mBodyMillis);
+    }
+
+    private long average(AtomicLong total) {
+        long count = mCompletedCount.get();
+        return count == 0 ? 0 : total.get() / count;
+    }
+
+    /**
+     * One http response. Must be closed so its connection can go back to the pool.
+     */
+    public class Response {
+
+        private final HttpURLConnection mConnection;
+        private final int mStatusCode;
+        private final long mConnectMillis;
+        private final long mFirstByteMillis;
+        private final long mBodyStart;
+        private long mBodyMillis = -1;
+
+        private InputStream mRawBody;
+        private InputStream mBody;
+
+        Response(HttpURLConnection connection, int statusCode, long connectMillis,
+                 long firstByteMillis) {
+            mConnection = connection;
+            mStatusCode = statusCode;
+            mConnectMillis = connectMillis;
+            mFirstByteMillis = firstByteMillis;
+            mBodyStart = SystemClock.elapsedRealtime();
+        }
+
+        public int getStatusCode() {
+            return mStatusCode;
+        }
+
+        public String getHeader(String name) {
+            return mConnection.getHeaderField(name);
+        }
+
+        /**
+         * @return the body, already gunzipped if the server compressed it. Empty if there is
+         * no body.
+         */
+        public InputStream getBody() throws IOException {
+            if (mBody == null) {
+                mRawBody = mStatusCode >= HttpURLConnection.HTTP_BAD_REQUEST
+                        ? mConnection.getErrorStream()
+                        : mConnection.getInputStream();
+                if (mRawBody == null) {
+                    mRawBody = new ByteArrayInputStream(new byte[0]);
+                }
+                // close() drains the raw stream, the decoder must not close it first.
+                InputStream body = new FilterInputStream(mRawBody) {
+                    @Override
+                    public void close() {
+                    }
+                };
+                if ("gzip".equalsIgnoreCase(mConnection.getContentEncoding())) {
+                    body = new GZIPInputStream(body);
+                }
+                mBody = body;
+            }
+            return mBody;
+        }
+
+        public long getConnectMillis() {
+            return mConnectMillis;
+        }
+
+        public long getFirstByteMillis() {
+            return mFirstByteMillis;
+        }
+
+        /**
+         * @return time from the response headers to close(), or -1 while still open.
+         */
+        public long getBodyMillis() {
+            return mBodyMillis;
+        }
+
+        /**
+         * Reads whatever is left of the body and closes it, which hands the socket back to
+         * the pool.
+         */
+        public void close() {
+            if (mBodyMillis >= 0) {
+                return;
+            }
+            try {
+                InputStream raw = mRawBody;
+                if (raw == null) {
+                    getBody();
+                    raw = mRawBody;
+                }
+                byte[] buffer = new byte[4096];
+                int drained = 0;
+                int read;
+                while (drained < MAX_DRAIN_BYTES && (read = raw.read(buffer)) != -1) {
+                    drained += read;
+                }
+                if (drained >= MAX_DRAIN_BYTES) {
+                    mConnection.disconnect();
+                }
+                raw.close();
+            } catch (IOException e) {
+                Log.w(LOG_TAG, "Error closing response", e);
+                mConnection.disconnect();
+            }
+
+            mBodyMillis = SystemClock.elapsedRealtime() - mBodyStart;
+            WeatherHttpTransport.this.mConnectMillis.addAndGet(mConnectMillis);
+            WeatherHttpTransport.this.mFirstByteMillis.addAndGet(mFirstByteMillis);
+            WeatherHttpTransport.this.mBodyMillis.addAndGet(mBodyMillis);
+            mCompletedCount.incrementAndGet();
+        }
+
+        @Override
+        public String toString() {
+            return mStatusCode + " connect " + mConnectMillis + " ms, first byte " +
+                    mFirstByteMillis + " ms, body " + mBodyMillis + " ms";
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package com.kenano.android.mysunshine;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Bundle;
+import android.text.format.DateUtils;
+
+import com.kenano.android.mysunshine.data.WeatherContract;
+
+/**
+ * Keeps the weather table from growing forever. Every sync adds days, nothing else ever removes
+ * the ones that have gone by.
+ *
+ * Days older than the history preference are pruned by the provider in chunks, followed by an
+ * incremental vacuum. It runs at most once a day, from the background fetch paths.
+ */
+public class WeatherRetention {
+
+    // kept apart from the default preferences, these are bookkeeping and not settings.
+    private static final String PREFS_NAME = "weather_retention";
+
+    private static final String KEY_LAST_RUN = "last_run";
+
+    private static final long RUN_INTERVAL_MILLIS = DateUtils.DAY_IN_MILLIS;
+
+    /**
+     * Prunes old weather if the last run was more than a day ago. Call it off the main thread.
+     *
+     * @return the metrics of the run, see {@link #prune}, or null if it was not due.
+     */
+    public static Bundle pruneIfDue(Context context) {
+        SharedPreferences prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        long lastRun = prefs.getLong(KEY_LAST_RUN, 0);
+        long now = System.currentTimeMillis();
+        // a negative age means the clock moved back since the run, run again.
+        if (lastRun > 0 && now - lastRun >= 0 && now - lastRun < RUN_INTERVAL_MILLIS) {
+            return null;
+        }
+
+        Bundle metrics = prune(context, Utility.getHistoryDays(context));
+        prefs.edit().putLong(KEY_LAST_RUN, now).apply();
+        return metrics;
+    }
+
+    /**
+     * Deletes every day of weather older than the history window, for all locations.
+     *
+     * @param historyDays how many days before today to keep.
+     * @return the WeatherContract.EXTRA_ROWS_* and EXTRA_PAGES_* metrics of the run.
+     */
+    public static Bundle prune(Context context, int historyDays) {
+        Bundle extras = new Bundle();
+        extras.putLong(WeatherContract.EXTRA_CUTOFF_DATE, getCutoffDate(historyDays));
+        return context.getContentResolver().call(WeatherContract.BASE_CONTENT_URI,
+                WeatherContract.METHOD_PRUNE_WEATHER, null, extras);
+    }
+
+    /**
+     * @return the normalized date of the oldest day kept with the given history window.
+     */
+    static long getCutoffDate(int historyDays) {
+        long today = WeatherContract.getTodayDate();
+        return today - historyDays * DateUtils.DAY_IN_MILLIS;
+    }
+}
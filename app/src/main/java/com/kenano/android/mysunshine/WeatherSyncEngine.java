@@ -0,0 +1,196 @@
+package com.kenano.android.mysunshine;
+
+import android.content.Context;
+import android.net.Uri;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Syncs the forecast of many locations in one run.
+ *
+ * Every location goes through {@link FetchWeatherTask#fetchWeather}, so a location that is
+ * already being fetched elsewhere in the process is joined rather than downloaded again. The
+ * fetches run on a small pool of worker threads, with a cap on how many requests may be open
+ * against one host at a time. While one worker waits on the network another parses and a third
+ * writes, so the network, the parser and the database all work at once. sqlite takes the writes
+ * one at a time, with WAL the loaders keep reading meanwhile.
+ *
+ * {@link #sync(Collection)} blocks until the run is done, call it off the main thread.
+ */
+public class WeatherSyncEngine {
+
+    private static final String LOG_TAG = WeatherSyncEngine.class.getSimpleName();
+
+    public static final int DEFAULT_WORKER_COUNT = 4;
+    public static final int DEFAULT_PER_HOST_LIMIT = 2;
+
+    // host -> permits for requests open against it. shared by every engine in the process, so
+    // runs started at the same time stay under the limit together. the first to reach a host
+    // sets its limit.
+    private static final ConcurrentMap<String, Semaphore> sHostPermits =
+            new ConcurrentHashMap<String, Semaphore>();
+
+    private final Context mContext;
+    private final String mForecastBaseUrl;
+    private final int mWorkerCount;
+    private final int mPerHostLimit;
+
+    public WeatherSyncEngine(Context context) {
+        this(context, FetchWeatherTask.FORECAST_BASE_URL,
+                DEFAULT_WORKER_COUNT, DEFAULT_PER_HOST_LIMIT);
+    }
+
+    /**
+     * @param forecastBaseUrl where the daily forecast is requested from.
+     * @param workerCount number of threads fetching.
+     * @param perHostLimit number of requests that may be open against one host at a time.
+     */
+    WeatherSyncEngine(Context context, String forecastBaseUrl, int workerCount,
+                      int perHostLimit) {
+        mContext = context;
+        mForecastBaseUrl = forecastBaseUrl;
+        mWorkerCount = workerCount;
+        mPerHostLimit = perHostLimit;
+    }
+
+    /**
+     * Counters for one run of the engine.
+     */
+    public static class Stats {
+        public final int requested;
+        // locations whose forecast wrote rows.
+        public final int synced;
+        // locations that were not modified upstream or came back with the stored forecast.
+        public final int unchanged;
+        public final int failed;
+        public final int rows;
+        public final long elapsedMillis;
+
+        Stats(int requested, int synced, int unchanged, int failed, int rows,
+              long elapsedMillis) {
+            this.requested = requested;
+            this.synced = synced;
+            this.unchanged = unchanged;
+            this.failed = failed;
+            this.rows = rows;
+            this.elapsedMillis = elapsedMillis;
+        }
+
+        /**
+         * @return locations handled per second, whether they wrote rows or not.
+         */
+        public double getLocationsPerSecond() {
+            return perSecond(synced + unchanged);
+        }
+
+        /**
+         * @return weather rows written per second.
+         */
+        public double getRowsPerSecond() {
+            return perSecond(rows);
+        }
+
+        private double perSecond(int count) {
+            return elapsedMillis == 0 ? count : count * 1000.0 / elapsedMillis;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "%d locations in %d ms (%d synced, %d unchanged, " +
+                            "%d failed), %d rows, %.1f locations/s, %.1f rows/s",
+                    requested, elapsedMillis, synced, unchanged, failed, rows,
+                    getLocationsPerSecond(), getRowsPerSecond());
+        }
+    }
+
+    /**
+     * Fetches and stores the forecast of every location passed. Duplicates are synced once.
+     *
+     * @param locationSettings The location strings used to request updates from the server.
+     * @return counters and throughput of the run.
+     * @throws InterruptedException if the calling thread is interrupted while waiting.
+     */
+    public Stats sync(Collection<String> locationSettings) throws InterruptedException {
+        final Set<String> locations = new LinkedHashSet<String>(locationSettings);
+        final long start = SystemClock.elapsedRealtime();
+
+        final FetchWeatherTask fetcher = new FetchWeatherTask(mContext, mForecastBaseUrl,
+                getHostPermits(Uri.parse(mForecastBaseUrl).getHost()));
+
+        final AtomicInteger synced = new AtomicInteger();
+        final AtomicInteger unchanged = new AtomicInteger();
+        final AtomicInteger failed = new AtomicInteger();
+        final AtomicInteger rows = new AtomicInteger();
+
+        ExecutorService workers = Executors.newFixedThreadPool(
+                Math.max(1, Math.min(mWorkerCount, locations.size())), new ThreadFactory() {
+            private final AtomicInteger mCount = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                return new Thread(r, "WeatherSyncEngine-worker-" + mCount.incrementAndGet());
+            }
+        });
+
+        for (final String location : locations) {
+            workers.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        int written = fetcher.fetchWeather(location);
+                        if (written == FetchWeatherTask.FETCH_FAILED) {
+                            failed.incrementAndGet();
+                        } else if (written == 0) {
+                            unchanged.incrementAndGet();
+                        } else {
+                            rows.addAndGet(written);
+                            synced.incrementAndGet();
+                        }
+                    } catch (RuntimeException e) {
+                        // the pool would drop the exception, count it with the other failures.
+                        Log.e(LOG_TAG, "Error syncing " + location, e);
+                        failed.incrementAndGet();
+                    }
+                }
+            });
+        }
+
+        try {
+            workers.shutdown();
+            workers.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            workers.shutdownNow();
+            throw e;
+        }
+
+        Stats stats = new Stats(locations.size(), synced.get(), unchanged.get(), failed.get(),
+                rows.get(), SystemClock.elapsedRealtime() - start);
+        Log.d(LOG_TAG, "Sync complete. " + stats);
+        return stats;
+    }
+
+    private Semaphore getHostPermits(String host) {
+        Semaphore permits = sHostPermits.get(host);
+        if (permits == null) {
+            Semaphore newPermits = new Semaphore(mPerHostLimit);
+            permits = sHostPermits.putIfAbsent(host, newPermits);
+            if (permits == null) {
+                permits = newPermits;
+            }
+        }
+        return permits;
+    }
+}
@@ -0,0 +1,282 @@
+package com.kenano.android.mysunshine.data;
+
+import android.content.ContentValues;
+import android.os.Bundle;
+
+import java.util.Arrays;
+
+/**
+ * Weather rows for one location, held column by column in primitive arrays.
+ *
+ * The parser appends days to it and {@link WeatherProvider} binds the arrays straight into its
+ * insert statement, so a forecast reaches the database without a ContentValues map or a boxed
+ * number per value. {@link #toBundle()} carries it to a provider in another process the same
+ * way, {@link #toContentValues()} is there for the regular bulkInsert.
+ */
+public class ForecastBatch {
+
+    private static final int DEFAULT_CAPACITY = 14;
+
+    // the keys of toBundle, one array per column.
+    private static final String KEY_LOCATION_ID = "location_id";
+    private static final String KEY_DATES = "dates";
+    private static final String KEY_MIN_TEMPS = "min_temps";
+    private static final String KEY_MAX_TEMPS = "max_temps";
+    private static final String KEY_HUMIDITY = "humidity";
+    private static final String KEY_PRESSURE = "pressure";
+    private static final String KEY_WIND_SPEED = "wind_speed";
+    private static final String KEY_DEGREES = "degrees";
+    private static final String KEY_WEATHER_IDS = "weather_ids";
+    private static final String KEY_SHORT_DESCS = "short_descs";
+
+    private long mLocationId = -1;
+    private int mSize;
+
+    private long[] mDates;
+    private double[] mMinTemps;
+    private double[] mMaxTemps;
+    private int[] mHumidity;
+    private double[] mPressure;
+    private double[] mWindSpeed;
+    private double[] mDegrees;
+    private int[] mWeatherIds;
+    private String[] mShortDescs;
+    // the weather row ids the provider keeps with packed days, 0 for a day without one.
+    private long[] mIds;
+
+    public ForecastBatch() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param capacity number of days to make room for, the batch grows past it if needed.
+     */
+    public ForecastBatch(int capacity) {
+        mDates = new long[capacity];
+        mMinTemps = new double[capacity];
+        mMaxTemps = new double[capacity];
+        mHumidity = new int[capacity];
+        mPressure = new double[capacity];
+        mWindSpeed = new double[capacity];
+        mDegrees = new double[capacity];
+        mWeatherIds = new int[capacity];
+        mShortDescs = new String[capacity];
+        mIds = new long[capacity];
+    }
+
+    /**
+     * Appends one day.
+     *
+     * @param date in millis, normalized by the provider when the batch is written.
+     */
+    public void add(long date, double minTemp, double maxTemp, int humidity, double pressure,
+                    double windSpeed, double degrees, int weatherId, String shortDesc) {
+        if (mSize == mDates.length) {
+            grow();
+        }
+        mDates[mSize] = date;
+        mMinTemps[mSize] = minTemp;
+        mMaxTemps[mSize] = maxTemp;
+        mHumidity[mSize] = humidity;
+        mPressure[mSize] = pressure;
+        mWindSpeed[mSize] = windSpeed;
+        mDegrees[mSize] = degrees;
+        mWeatherIds[mSize] = weatherId;
+        mShortDescs[mSize] = shortDesc;
+        mIds[mSize] = 0;
+        mSize++;
+    }
+
+    /**
+     * Appends day i of another batch.
+     */
+    public void add(ForecastBatch other, int i) {
+        add(other.mDates[i], other.mMinTemps[i], other.mMaxTemps[i], other.mHumidity[i],
+                other.mPressure[i], other.mWindSpeed[i], other.mDegrees[i], other.mWeatherIds[i],
+                other.mShortDescs[i]);
+        mIds[mSize - 1] = other.mIds[i];
+    }
+
+    /**
+     * @return true if day i of this batch has the same weather as day j of the other one.
+     * Measurements are compared as precisely as the weather table stores them, dates and
+     * locations are not compared.
+     */
+    public boolean hasSameWeather(int i, ForecastBatch other, int j) {
+        return sameStoredValue(mMinTemps[i], other.mMinTemps[j])
+                && sameStoredValue(mMaxTemps[i], other.mMaxTemps[j])
+                && mHumidity[i] == other.mHumidity[j]
+                && sameStoredValue(mPressure[i], other.mPressure[j])
+                && sameStoredValue(mWindSpeed[i], other.mWindSpeed[j])
+                && sameStoredValue(mDegrees[i], other.mDegrees[j])
+                && mWeatherIds[i] == other.mWeatherIds[j]
+                && (mShortDescs[i] == null ? other.mShortDescs[j] == null
+                        : mShortDescs[i].equals(other.mShortDescs[j]));
+    }
+
+    private static boolean sameStoredValue(double a, double b) {
+        return WeatherDbHelper.toFixedPoint(a) == WeatherDbHelper.toFixedPoint(b);
+    }
+
+    private void grow() {
+        int capacity = Math.max(mDates.length * 2, DEFAULT_CAPACITY);
+        mDates = Arrays.copyOf(mDates, capacity);
+        mMinTemps = Arrays.copyOf(mMinTemps, capacity);
+        mMaxTemps = Arrays.copyOf(mMaxTemps, capacity);
+        mHumidity = Arrays.copyOf(mHumidity, capacity);
+        mPressure = Arrays.copyOf(mPressure, capacity);
+        mWindSpeed = Arrays.copyOf(mWindSpeed, capacity);
+        mDegrees = Arrays.copyOf(mDegrees, capacity);
+        mWeatherIds = Arrays.copyOf(mWeatherIds, capacity);
+        mShortDescs = Arrays.copyOf(mShortDescs, capacity);
+        mIds = Arrays.copyOf(mIds, capacity);
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    /**
+     * @param locationId row id in the location table every day of the batch belongs to.
+     */
+    public void setLocationId(long locationId) {
+        mLocationId = locationId;
+    }
+
+    public long getLocationId() {
+        return mLocationId;
+    }
+
+    public long getDate(int i) {
+        return mDates[i];
+    }
+
+    public double getMinTemp(int i) {
+        return mMinTemps[i];
+    }
+
+    public double getMaxTemp(int i) {
+        return mMaxTemps[i];
+    }
+
+    public int getHumidity(int i) {
+        return mHumidity[i];
+    }
+
+    public double getPressure(int i) {
+        return mPressure[i];
+    }
+
+    public double getWindSpeed(int i) {
+        return mWindSpeed[i];
+    }
+
+    public double getDegrees(int i) {
+        return mDegrees[i];
+    }
+
+    public int getWeatherId(int i) {
+        return mWeatherIds[i];
+    }
+
+    public String getShortDesc(int i) {
+        return mShortDescs[i];
+    }
+
+    /**
+     * @return the weather row id of day i, 0 if it has none yet.
+     */
+    long getId(int i) {
+        return mIds[i];
+    }
+
+    void setId(int i, long id) {
+        mIds[i] = id;
+    }
+
+    /**
+     * @return the batch as a Bundle holding one array per column, to go through
+     * ContentResolver.call without a ContentValues per day. Row ids are left out, they only
+     * mean something inside the provider.
+     */
+    public Bundle toBundle() {
+        Bundle bundle = new Bundle();
+        bundle.putLong(KEY_LOCATION_ID, mLocationId);
+        bundle.putLongArray(KEY_DATES, Arrays.copyOf(mDates, mSize));
+        bundle.putDoubleArray(KEY_MIN_TEMPS, Arrays.copyOf(mMinTemps, mSize));
+        bundle.putDoubleArray(KEY_MAX_TEMPS, Arrays.copyOf(mMaxTemps, mSize));
+        bundle.putIntArray(KEY_HUMIDITY, Arrays.copyOf(mHumidity, mSize));
+        bundle.putDoubleArray(KEY_PRESSURE, Arrays.copyOf(mPressure, mSize));
+        bundle.putDoubleArray(KEY_WIND_SPEED, Arrays.copyOf(mWindSpeed, mSize));
+        bundle.putDoubleArray(KEY_DEGREES, Arrays.copyOf(mDegrees, mSize));
+        bundle.putIntArray(KEY_WEATHER_IDS, Arrays.copyOf(mWeatherIds, mSize));
+        bundle.putStringArray(KEY_SHORT_DESCS, Arrays.copyOf(mShortDescs, mSize));
+        return bundle;
+    }
+
+    /**
+     * @param bundle written by {@link #toBundle()}.
+     * @return the batch it holds.
+     * @throws IllegalArgumentException if a column is missing or the columns differ in length.
+     */
+    public static ForecastBatch fromBundle(Bundle bundle) {
+        ForecastBatch batch = new ForecastBatch(0);
+        batch.mLocationId = bundle.getLong(KEY_LOCATION_ID, -1);
+        batch.mDates = bundle.getLongArray(KEY_DATES);
+        batch.mMinTemps = bundle.getDoubleArray(KEY_MIN_TEMPS);
+        batch.mMaxTemps = bundle.getDoubleArray(KEY_MAX_TEMPS);
+        batch.mHumidity = bundle.getIntArray(KEY_HUMIDITY);
+        batch.mPressure = bundle.getDoubleArray(KEY_PRESSURE);
+        batch.mWindSpeed = bundle.getDoubleArray(KEY_WIND_SPEED);
+        batch.mDegrees = bundle.getDoubleArray(KEY_DEGREES);
+        batch.mWeatherIds = bundle.getIntArray(KEY_WEATHER_IDS);
+        batch.mShortDescs = bundle.getStringArray(KEY_SHORT_DESCS);
+        if (batch.mDates == null || batch.mMinTemps == null || batch.mMaxTemps == null
+                || batch.mHumidity == null || batch.mPressure == null || batch.mWindSpeed == null
+                || batch.mDegrees == null || batch.mWeatherIds == null
+                || batch.mShortDescs == null) {
+            throw new IllegalArgumentException("Not a forecast batch: " + bundle);
+        }
+        batch.mSize = batch.mDates.length;
+        batch.mIds = new long[batch.mSize];
+        if (batch.mMinTemps.length != batch.mSize || batch.mMaxTemps.length != batch.mSize
+                || batch.mHumidity.length != batch.mSize || batch.mPressure.length != batch.mSize
+                || batch.mWindSpeed.length != batch.mSize || batch.mDegrees.length != batch.mSize
+                || batch.mWeatherIds.length != batch.mSize
+                || batch.mShortDescs.length != batch.mSize) {
+            throw new IllegalArgumentException("Forecast batch columns differ in length");
+        }
+        return batch;
+    }
+
+    /**
+     * @return the batch as one ContentValues per day, for the regular bulkInsert.
+     */
+    public ContentValues[] toContentValues() {
+        ContentValues[] rows = new ContentValues[mSize];
+        for (int i = 0; i < mSize; i++) {
+            rows[i] = toContentValues(i);
+        }
+        return rows;
+    }
+
+    /**
+     * @return day i as the values of a weather row.
+     */
+    public ContentValues toContentValues(int i) {
+        ContentValues weatherValues = new ContentValues();
+
+        weatherValues.put(WeatherContract.WeatherEntry.COLUMN_LOC_KEY, mLocationId);
+        weatherValues.put(WeatherContract.WeatherEntry.COLUMN_DATE, mDates[i]);
+        weatherValues.put(WeatherContract.WeatherEntry.COLUMN_HUMIDITY, mHumidity[i]);
+        weatherValues.put(WeatherContract.WeatherEntry.COLUMN_PRESSURE, mPressure[i]);
+        weatherValues.put(WeatherContract.WeatherEntry.COLUMN_WIND_SPEED, mWindSpeed[i]);
+        weatherValues.put(WeatherContract.WeatherEntry.COLUMN_DEGREES, mDegrees[i]);
+        weatherValues.put(WeatherContract.WeatherEntry.COLUMN_MAX_TEMP, mMaxTemps[i]);
+        weatherValues.put(WeatherContract.WeatherEntry.COLUMN_MIN_TEMP, mMinTemps[i]);
+        weatherValues.put(WeatherContract.WeatherEntry.COLUMN_SHORT_DESC, mShortDescs[i]);
+        weatherValues.put(WeatherContract.WeatherEntry.COLUMN_WEATHER_ID, mWeatherIds[i]);
+
+        return weatherValues;
+    }
+}
@@ -0,0 +1,105 @@
+package com.kenano.android.mysunshine.data;
+
+import android.content.Context;
+import android.database.ContentObserver;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Process wide map of location setting -> row id of the location table, so a fetch does not
+ * have to query the provider to find the location its weather rows belong to.
+ *
+ * The cache watches {@link WeatherContract.LocationEntry#CONTENT_URI} itself, not its
+ * descendants. The provider notifies that uri whenever a setting may have been remapped:
+ * location rows deleted or updated in bulk, or a single row given another setting or id. The
+ * cache is emptied then. Inserting a location or updating other columns of a single row
+ * notifies the row's own uri, which leaves the cache alone.
+ */
+public class LocationIdCache {
+
+    private static LocationIdCache sInstance;
+
+    private final ConcurrentMap<String, Long> mIds = new ConcurrentHashMap<String, Long>();
+
+    // bumped on every clear, an id looked up before a clear must not be cached after it.
+    private final AtomicInteger mGeneration = new AtomicInteger();
+
+    private final AtomicLong mHitCount = new AtomicLong();
+    private final AtomicLong mMissCount = new AtomicLong();
+
+    /**
+     * @return the cache shared by the whole process, watching the provider from first use.
+     */
+    public static synchronized LocationIdCache getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new LocationIdCache();
+            // no handler, the cache is cleared on the binder thread delivering the change.
+            // that may be after notifyChange returned, WeatherProvider clears it itself first.
+            context.getApplicationContext().getContentResolver().registerContentObserver(
+                    WeatherContract.LocationEntry.CONTENT_URI, false,
+                    new ContentObserver(null) {
+                        @Override
+                        public void onChange(boolean selfChange) {
+                            sInstance.clear();
+                        }
+                    });
+        }
+        return sInstance;
+    }
+
+    LocationIdCache() {
+    }
+
+    /**
+     * @param locationSetting The location string used to request updates from the server.
+     * @return the row id of the location, or -1 if it is not cached.
+     */
+    public long getId(String locationSetting) {
+        Long id = mIds.get(locationSetting);
+        if (id == null) {
+            mMissCount.incrementAndGet();
+            return -1;
+        }
+        mHitCount.incrementAndGet();
+        return id;
+    }
+
+    /**
+     * Take this before looking an id up in the provider and hand it to
+     * {@link #put(String, long, int)} afterwards.
+     */
+    public int getGeneration() {
+        return mGeneration.get();
+    }
+
+    /**
+     * Caches the row id of a location, unless the cache was cleared since generation was taken.
+     *
+     * @param locationSetting The location string used to request updates from the server.
+     * @param id the row id the provider returned for it.
+     * @param generation {@link #getGeneration()} from before the lookup.
+     */
+    public void put(String locationSetting, long id, int generation) {
+        mIds.put(locationSetting, id);
+        if (mGeneration.get() != generation) {
+            // a clear raced with the lookup, the id may already be stale.
+            mIds.remove(locationSetting, id);
+        }
+    }
+
+    public void clear() {
+        mGeneration.incrementAndGet();
+        mIds.clear();
+    }
+
+    public long getHitCount() {
+        return mHitCount.get();
+    }
+
+    public long getMissCount() {
+        return mMissCount.get();
+    }
+}
@@ -0,0 +1,125 @@
+package com.kenano.android.mysunshine.data;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.TreeMap;
+
+/**
+ * Packs the days of a forecast into the blob the packed_forecast table keeps per location, and
+ * back into a {@link ForecastBatch}.
+ *
+ * A blob is a format version and a day count followed by the days in date order, each one its
+ * day key, its weather row id, the six measurements in fixed point like the weather table
+ * stores them, the weather id and the short description. A day takes around 50 bytes and a
+ * location one row, where the weather table takes a row and two index entries a day. Humidity
+ * is kept in whole percent, as ForecastBatch holds it. The row id is what queries return as the
+ * _id of the day, and what it gets back when it is unpacked into a weather row.
+ */
+public class PackedForecast {
+
+    // 1 had no row ids, WeatherDbHelper drops those blobs on upgrade.
+    static final int FORMAT_VERSION = 2;
+
+    // version and day count, then a day without its description.
+    private static final int HEADER_BYTES = 5;
+    private static final int DAY_BYTES = 44;
+
+    /**
+     * @param days the days to pack, in any order, with their row ids. A day found twice is
+     *             packed as its last occurrence, days without a description are left out like
+     *             the weather table refuses them.
+     * @return the packed days.
+     */
+    public static byte[] pack(ForecastBatch days) {
+        ForecastBatch sorted = merge(days);
+        ByteArrayOutputStream bytes =
+                new ByteArrayOutputStream(HEADER_BYTES + sorted.size() * (DAY_BYTES + 16));
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeByte(FORMAT_VERSION);
+            out.writeInt(sorted.size());
+            for (int i = 0; i < sorted.size(); i++) {
+                out.writeInt((int) WeatherContract.dateToDay(sorted.getDate(i)));
+                out.writeLong(sorted.getId(i));
+                out.writeInt((int) WeatherDbHelper.toFixedPoint(sorted.getMinTemp(i)));
+                out.writeInt((int) WeatherDbHelper.toFixedPoint(sorted.getMaxTemp(i)));
+                out.writeInt((int) WeatherDbHelper.toFixedPoint(sorted.getHumidity(i)));
+                out.writeInt((int) WeatherDbHelper.toFixedPoint(sorted.getPressure(i)));
+                out.writeInt((int) WeatherDbHelper.toFixedPoint(sorted.getWindSpeed(i)));
+                out.writeInt((int) WeatherDbHelper.toFixedPoint(sorted.getDegrees(i)));
+                out.writeInt(sorted.getWeatherId(i));
+                out.writeUTF(sorted.getShortDesc(i));
+            }
+        } catch (IOException e) {
+            // a ByteArrayOutputStream never throws.
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * @param packed days as {@link #pack} wrote them.
+     * @param locationId the location the days belong to.
+     * @return the days, in date order, with normalized dates and their row ids.
+     * @throws IllegalArgumentException if the blob is not a packed forecast.
+     */
+    public static ForecastBatch unpack(byte[] packed, long locationId) {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(packed));
+        try {
+            int version = in.readUnsignedByte();
+            if (version != FORMAT_VERSION) {
+                throw new IllegalArgumentException("Unknown packed forecast version " + version);
+            }
+            int size = in.readInt();
+            ForecastBatch days = new ForecastBatch(size);
+            days.setLocationId(locationId);
+            for (int i = 0; i < size; i++) {
+                long date = WeatherContract.dayToDate(in.readInt());
+                long id = in.readLong();
+                double minTemp = fromFixedPoint(in.readInt());
+                double maxTemp = fromFixedPoint(in.readInt());
+                int humidity = (int) Math.round(fromFixedPoint(in.readInt()));
+                double pressure = fromFixedPoint(in.readInt());
+                double windSpeed = fromFixedPoint(in.readInt());
+                double degrees = fromFixedPoint(in.readInt());
+                days.add(date, minTemp, maxTemp, humidity, pressure, windSpeed, degrees,
+                        in.readInt(), in.readUTF());
+                days.setId(i, id);
+            }
+            return days;
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Truncated packed forecast", e);
+        }
+    }
+
+    /**
+     * Merges batches into one, in date order. Where batches have the same day the one passed
+     * last wins, days without a description are dropped.
+     */
+    static ForecastBatch merge(ForecastBatch... batches) {
+        // day key to {batch, index}
+        TreeMap<Long, int[]> days = new TreeMap<Long, int[]>();
+        for (int b = 0; b < batches.length; b++) {
+            for (int i = 0; i < batches[b].size(); i++) {
+                if (batches[b].getShortDesc(i) != null) {
+                    days.put(WeatherContract.dateToDay(batches[b].getDate(i)), new int[]{b, i});
+                }
+            }
+        }
+        ForecastBatch merged = new ForecastBatch(days.size());
+        if (batches.length > 0) {
+            merged.setLocationId(batches[batches.length - 1].getLocationId());
+        }
+        for (int[] day : days.values()) {
+            merged.add(batches[day[0]], day[1]);
+        }
+        return merged;
+    }
+
+    private static double fromFixedPoint(int value) {
+        return value / (double) WeatherDbHelper.FIXED_POINT_SCALE;
+    }
+}
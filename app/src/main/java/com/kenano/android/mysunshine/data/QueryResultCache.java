@@ -0,0 +1,217 @@
+package com.kenano.android.mysunshine.data;
+
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.util.LruCache;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Results of weather/* queries, copied out of their cursors and kept by {@link WeatherProvider}
+ * so a loader restarting on the same uri does not run the same query again.
+ *
+ * The cache is bounded by an estimate of the memory the copied rows take and evicts the least
+ * recently used result first. The provider drops the results a write may have changed once
+ * the write is committed, by location and by day.
+ */
+public class QueryResultCache {
+
+    static final int DEFAULT_MAX_BYTES = 256 * 1024;
+
+    // rough per object overheads, only used to weigh results against each other.
+    private static final int ROW_OVERHEAD_BYTES = 32;
+    private static final int VALUE_OVERHEAD_BYTES = 16;
+
+    /**
+     * A query result copied out of its cursor.
+     */
+    private static class Result {
+        final String locationSetting;
+        // the day of a single day query, or the start date of a location query, 0 for none.
+        final long date;
+        // the last day of a location query over a range, 0 for none.
+        final long endDate;
+        final boolean singleDay;
+
+        final String[] columns;
+        final Object[][] rows;
+        final int bytes;
+
+        Result(String locationSetting, long date, long endDate, boolean singleDay,
+               String[] columns, Object[][] rows, int bytes) {
+            this.locationSetting = locationSetting;
+            this.date = date;
+            this.endDate = endDate;
+            this.singleDay = singleDay;
+            this.columns = columns;
+            this.rows = rows;
+            this.bytes = bytes;
+        }
+
+        /**
+         * @param day a normalized date, or 0 for every day.
+         * @return true if a write to the day of the location may change this result.
+         */
+        boolean covers(String changedLocation, long day) {
+            if (!locationSetting.equals(changedLocation)) {
+                return false;
+            }
+            if (day == 0) {
+                return true;
+            }
+            if (singleDay) {
+                return date == day;
+            }
+            return day >= date && (endDate == 0 || day <= endDate);
+        }
+
+        Cursor newCursor() {
+            MatrixCursor cursor = new MatrixCursor(columns, rows.length);
+            for (Object[] row : rows) {
+                cursor.addRow(row);
+            }
+            return cursor;
+        }
+    }
+
+    private final LruCache<String, Result> mResults;
+
+    // bumped on every invalidation, a result read before one must not be cached after it.
+    private final AtomicInteger mGeneration = new AtomicInteger();
+
+    public QueryResultCache() {
+        this(DEFAULT_MAX_BYTES);
+    }
+
+    /**
+     * @param maxBytes roughly how much memory the cached results may take.
+     */
+    public QueryResultCache(int maxBytes) {
+        mResults = new LruCache<String, Result>(maxBytes) {
+            @Override
+            protected int sizeOf(String key, Result result) {
+                return result.bytes;
+            }
+        };
+    }
+
+    /**
+     * Builds the key of a query from the parts of its uri, so two uris for the same rows share
+     * a result however they were written.
+     *
+     * @param date the day of a single day query, or the start date of a location query.
+     * @param endDate the last day of a location query over a range, 0 for none.
+     */
+    static String buildKey(String locationSetting, long date, long endDate, boolean singleDay,
+                           String[] projection, String sortOrder) {
+        return locationSetting + (singleDay ? "/" : "?") + date + "-" + endDate + "|" +
+                Arrays.toString(projection) + "|" + sortOrder;
+    }
+
+    /**
+     * @return a new cursor over the cached result, or null if it is not cached.
+     */
+    public Cursor get(String key) {
+        Result result = mResults.get(key);
+        return result == null ? null : result.newCursor();
+    }
+
+    /**
+     * Take this before running a query and hand it to {@link #put} with the result.
+     */
+    public int getGeneration() {
+        return mGeneration.get();
+    }
+
+    /**
+     * Copies a query result and caches it, unless the cache was invalidated since generation
+     * was taken. The cursor is closed.
+     *
+     * @return a cursor over the copied rows, to return in place of the one passed.
+     */
+    public Cursor put(String key, String locationSetting, long date, long endDate,
+                      boolean singleDay, Cursor cursor, int generation) {
+        String[] columns = cursor.getColumnNames();
+        Object[][] rows = new Object[cursor.getCount()][];
+        int bytes = 0;
+        try {
+            for (int r = 0; cursor.moveToNext(); r++) {
+                Object[] row = new Object[columns.length];
+                for (int c = 0; c < columns.length; c++) {
+                    switch (cursor.getType(c)) {
+                        case Cursor.FIELD_TYPE_INTEGER:
+                            row[c] = cursor.getLong(c);
+                            break;
+                        case Cursor.FIELD_TYPE_FLOAT:
+                            row[c] = cursor.getDouble(c);
+                            break;
+                        case Cursor.FIELD_TYPE_STRING:
+                            row[c] = cursor.getString(c);
+                            bytes += 2 * ((String) row[c]).length();
+                            break;
+                        case Cursor.FIELD_TYPE_BLOB:
+                            row[c] = cursor.getBlob(c);
+                            bytes += ((byte[]) row[c]).length;
+                            break;
+                        default:
+                            row[c] = null;
+                    }
+                    bytes += VALUE_OVERHEAD_BYTES;
+                }
+                rows[r] = row;
+                bytes += ROW_OVERHEAD_BYTES;
+            }
+        } finally {
+            cursor.close();
+        }
+
+        Result result = new Result(locationSetting, date, endDate, singleDay, columns, rows,
+                Math.max(bytes, 1));
+        mResults.put(key, result);
+        if (mGeneration.get() != generation) {
+            // a write was committed while the query ran, the rows may already be stale.
+            mResults.remove(key);
+        }
+        return result.newCursor();
+    }
+
+    /**
+     * Drops the results a write to the weather of a location may have changed.
+     *
+     * @param date the normalized day written, or 0 for any day of the location.
+     */
+    public void invalidate(String locationSetting, long date) {
+        mGeneration.incrementAndGet();
+        for (Map.Entry<String, Result> entry : mResults.snapshot().entrySet()) {
+            if (entry.getValue().covers(locationSetting, date)) {
+                mResults.remove(entry.getKey());
+            }
+        }
+    }
+
+    public void clear() {
+        mGeneration.incrementAndGet();
+        mResults.evictAll();
+    }
+
+    public int getHitCount() {
+        return mResults.hitCount();
+    }
+
+    public int getMissCount() {
+        return mResults.missCount();
+    }
+
+    public int getEvictionCount() {
+        return mResults.evictionCount();
+    }
+
+    /**
+     * @return roughly how much memory the cached results take.
+     */
+    public int getSizeBytes() {
+        return mResults.size();
+    }
+}
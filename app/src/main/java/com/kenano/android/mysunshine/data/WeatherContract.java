@@ -4,7 +4,9 @@ import android.content.ContentResolver;
 import android.content.ContentUris;
 import android.net.Uri;
 import android.provider.BaseColumns;
-import android.text.format.Time;
+import android.text.format.DateUtils;
+
+import java.util.TimeZone;
 
 /**
  * Created by KenanO on 8/30/16.
@@ -31,21 +33,95 @@ public class WeatherContract {
     // At least, let's hope not.  Don't be that dev, reader.  Don't be that dev.
     public static final String PATH_WEATHER = "weather";
     public static final String PATH_LOCATION = "location";
+    public static final String PATH_PACKED_FORECAST = "packed_forecast";
+
+    // Provider methods reached through ContentResolver.call(BASE_CONTENT_URI, ...).
+
+    // Deletes weather rows older than EXTRA_CUTOFF_DATE, EXTRA_CHUNK_SIZE rows per transaction,
+    // then gives the freed pages back to the file system. The result holds the EXTRA_ROWS_*
+    // and EXTRA_PAGES_* metrics of the run.
+    public static final String METHOD_PRUNE_WEATHER = "prune_weather";
+
+    public static final String EXTRA_CUTOFF_DATE = "cutoff_date";
+    public static final String EXTRA_CHUNK_SIZE = "chunk_size";
+    public static final String EXTRA_ROWS_DELETED = "rows_deleted";
+    public static final String EXTRA_CHUNKS = "chunks";
+    public static final String EXTRA_PAGES_BEFORE = "pages_before";
+    public static final String EXTRA_PAGES_RECLAIMED = "pages_reclaimed";
+    public static final String EXTRA_ELAPSED_MILLIS = "elapsed_millis";
+
+    // Writes the days of EXTRA_FORECAST, a ForecastBatch.toBundle(), or the full weather rows
+    // in EXTRA_VALUES, updating a day of a location in place when it is already stored instead
+    // of replacing its row. The result holds EXTRA_ROWS_INSERTED, EXTRA_ROWS_UPDATED and
+    // EXTRA_ROWS_UNCHANGED.
+    public static final String METHOD_UPSERT_WEATHER = "upsert_weather";
+
+    public static final String EXTRA_FORECAST = "forecast";
+    public static final String EXTRA_VALUES = "values";
+    public static final String EXTRA_ROWS_INSERTED = "rows_inserted";
+    public static final String EXTRA_ROWS_UPDATED = "rows_updated";
+    public static final String EXTRA_ROWS_UNCHANGED = "rows_unchanged";
+
+    // Stores a downloaded forecast in one transaction: the location in EXTRA_LOCATION, its
+    // LocationEntry values, inserted if it is new, and the days of EXTRA_FORECAST, as packed
+    // storage if EXTRA_PACKED is true. The result holds EXTRA_LOCATION_ID and the
+    // EXTRA_ROWS_INSERTED, _UPDATED and _UNCHANGED counts of the days.
+    public static final String METHOD_STORE_FORECAST = "store_forecast";
+
+    public static final String EXTRA_LOCATION = "location";
+    public static final String EXTRA_PACKED = "packed";
+    public static final String EXTRA_LOCATION_ID = "location_id";
+
+    // Reports how the provider's cache of weather query results is doing, in EXTRA_CACHE_*.
+    public static final String METHOD_GET_QUERY_CACHE_STATS = "get_query_cache_stats";
+
+    public static final String EXTRA_CACHE_HITS = "cache_hits";
+    public static final String EXTRA_CACHE_MISSES = "cache_misses";
+    public static final String EXTRA_CACHE_EVICTIONS = "cache_evictions";
+    public static final String EXTRA_CACHE_BYTES = "cache_bytes";
 
 
     /**
      * To make it easy to query for the exact date, we normalize all dates that go into
      * the database to the start of the the Julian day at UTC.
      *
+     * This is plain arithmetic, it allocates nothing and is safe to call from any thread.
+     *
      * @param startDate
      * @return
      */
     public static long normalizeDate(long startDate) {
-        // normalize the start date to the beginning of the (UTC) day
-        Time time = new Time();
-        time.set(startDate);
-        int julianDay = Time.getJulianDay(startDate, time.gmtoff);
-        return time.setJulianDay(julianDay);
+        // floor to the start of the UTC day. the remainder is negative before the epoch, in
+        // which case the day started one more day back.
+        long remainder = startDate % DateUtils.DAY_IN_MILLIS;
+        if (remainder < 0) {
+            remainder += DateUtils.DAY_IN_MILLIS;
+        }
+        return startDate - remainder;
+    }
+
+    /**
+     * @param date in millis, normalized or not.
+     * @return the day key the weather table stores for the date, days since the epoch.
+     */
+    public static long dateToDay(long date) {
+        return normalizeDate(date) / DateUtils.DAY_IN_MILLIS;
+    }
+
+    /**
+     * @return the normalized date of a day key.
+     */
+    public static long dayToDate(long day) {
+        return day * DateUtils.DAY_IN_MILLIS;
+    }
+
+    /**
+     * A day is stored under the UTC start of its calendar date, whatever the device's time
+     * zone is. This is the date today is stored under.
+     */
+    public static long getTodayDate() {
+        long now = System.currentTimeMillis();
+        return normalizeDate(now + TimeZone.getDefault().getOffset(now));
     }
 
     /**
@@ -86,6 +162,12 @@ public class WeatherContract {
         public static final String COLUMN_COORD_LAT = "coord_lat";
         public static final String COLUMN_COORD_LONG = "coord_long";
 
+        // Validators sent back by openweathermap with the last forecast for this location.
+        // They are replayed as If-None-Match / If-Modified-Since so an unchanged forecast
+        // comes back as a 304 with no body. Either may be null.
+        public static final String COLUMN_ETAG = "etag";
+        public static final String COLUMN_LAST_MODIFIED = "last_modified";
+
         /**
          *
          * @param id
@@ -96,6 +178,47 @@ public class WeatherContract {
         }
     }
 
+    /**
+     * Inner class that defines the contents of the packed forecast table, the optional way of
+     * storing the weather of a location as one row. Its days are read back through the
+     * weather/<location> uris, like the days of the weather table. A query of the weather uri
+     * itself only reaches weather rows. A delete through it removes the packed days it
+     * matches, an insert or update turns the days of the locations it reaches into rows first.
+     *
+     * A packed day keeps the _id of the weather row it was, a new one gets an id no row will
+     * take, so a day has the same _id whichever way it is stored.
+     */
+    public static final class PackedForecastEntry {
+
+        // Inserting here replaces the days of the location in COLUMN_DAYS, the ones already
+        // stored for it are kept.
+        public static final Uri CONTENT_URI =
+                BASE_CONTENT_URI.buildUpon().appendPath(PATH_PACKED_FORECAST).build();
+
+        public static final String CONTENT_TYPE =
+                ContentResolver.CURSOR_DIR_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/"
+                        + PATH_PACKED_FORECAST;
+        public static final String CONTENT_ITEM_TYPE =
+                ContentResolver.CURSOR_ITEM_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/"
+                        + PATH_PACKED_FORECAST;
+
+        public static final String TABLE_NAME = "packed_forecast";
+
+        // Column with the foreign key into the location table, one row per location.
+        public static final String COLUMN_LOC_KEY = "location_id";
+
+        // Day keys of the first and last day of the row, see WeatherContract.dateToDay.
+        public static final String COLUMN_FIRST_DAY = "first_day";
+        public static final String COLUMN_LAST_DAY = "last_day";
+
+        // The days themselves, as PackedForecast.pack writes them.
+        public static final String COLUMN_DAYS = "days";
+
+        public static Uri buildPackedForecastUri(long locationId) {
+            return ContentUris.withAppendedId(CONTENT_URI, locationId);
+        }
+    }
+
     /**
      * Inner class that defines the contents of the weather table
      *  Since it implements BaseColumns it will already have _id property for the primary key.
@@ -121,8 +244,15 @@ public class WeatherContract {
 
         // Column with the foreign key into the location table.
         public static final String COLUMN_LOC_KEY = "location_id";
-        // Date, stored as long in milliseconds since the epoch
+        // Date, as long in milliseconds since the epoch. This is what the provider takes and
+        // returns, the table itself stores COLUMN_DAY.
         public static final String COLUMN_DATE = "date";
+        // The day key the table stores in place of the date, see WeatherContract.dateToDay.
+        public static final String COLUMN_DAY = "day";
+
+        // Query parameter of the last day of a range, see buildWeatherLocationWithDateRange.
+        public static final String PARAM_END_DATE = "end_date";
+
         // Weather id as returned by API, to identify the icon to be used
         public static final String COLUMN_WEATHER_ID = "weather_id";
 
@@ -181,6 +311,22 @@ public class WeatherContract {
                     .appendQueryParameter(COLUMN_DATE, Long.toString(normalizedDate)).build();
         }
 
+        /**
+         * Builds a uri for the days of a location from startDate to endDate, both included.
+         * example: "content://com.kenano.android.mysunshine.data/weather/94040?date=..&end_date=.."
+         *
+         * @param locationSetting - represents the location we are searching.
+         * @param startDate first day of the range.
+         * @param endDate last day of the range.
+         * @return a uri for the days of the range.
+         */
+        public static Uri buildWeatherLocationWithDateRange(
+                String locationSetting, long startDate, long endDate) {
+            return buildWeatherLocationWithStartDate(locationSetting, startDate).buildUpon()
+                    .appendQueryParameter(PARAM_END_DATE, Long.toString(normalizeDate(endDate)))
+                    .build();
+        }
+
         /**
          * parses the a uri for the date segment which is a number.
          *
@@ -215,6 +361,20 @@ public class WeatherContract {
                 return 0;
         }
 
+        /**
+         * parses uri for an "end_date" parameter, the last day of a range.
+         *
+         * @param uri to be parsed.
+         * @return number representing the date or 0 if the uri has no end.
+         */
+        public static long getEndDateFromUri(Uri uri) {
+            String dateString = uri.getQueryParameter(PARAM_END_DATE);
+            if (null != dateString && dateString.length() > 0)
+                return Long.parseLong(dateString);
+            else
+                return 0;
+        }
+
         /**
          *
          * @param id
@@ -1,10 +1,17 @@
 package com.kenano.android.mysunshine.data;
 
 import android.content.Context;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.os.Build;
+import android.text.format.DateUtils;
+
 import com.kenano.android.mysunshine.data.WeatherContract.WeatherEntry;
 import com.kenano.android.mysunshine.data.WeatherContract.LocationEntry;
+import com.kenano.android.mysunshine.data.WeatherContract.PackedForecastEntry;
+
+import java.util.TimeZone;
 
 /**
  * Created by KenanO on 8/30/16.
@@ -12,32 +19,212 @@ import com.kenano.android.mysunshine.data.WeatherContract.LocationEntry;
  * Helps to create db and upgrade when schema changes.
  * Notice how column names are defined from the contract class.
  *
+ * The db runs in write-ahead log mode, so a sync committing a large batch does not block the
+ * loaders reading the forecast. The app shares one helper through {@link #getInstance}, which
+ * keeps every write on the single primary connection while reads get pooled connections of
+ * their own.
  */
 public class WeatherDbHelper extends SQLiteOpenHelper {
 
-    // If you change the database schema, you must increment the database version.
-    private static final int DATABASE_VERSION = 1;
+    // If you change the database schema, you must increment the database version and add the
+    // migration to it in getMigration.
+    static final int DATABASE_VERSION = 8;
 
     static final String DATABASE_NAME = "weather.db";
 
+    private static WeatherDbHelper sInstance;
+
+    /**
+     * @return the helper shared by the whole process.
+     */
+    public static synchronized WeatherDbHelper getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new WeatherDbHelper(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
     public WeatherDbHelper(Context context) {
-        super(context, DATABASE_NAME, null, DATABASE_VERSION);
+        this(context, DATABASE_NAME);
+    }
+
+    /**
+     * @param name file name of the db, tests use their own to build old schemas in.
+     */
+    WeatherDbHelper(Context context, String name) {
+        super(context, name, null, DATABASE_VERSION);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+            setWriteAheadLoggingEnabled(true);
+        }
+    }
+
+    // PRAGMA auto_vacuum value for INCREMENTAL.
+    private static final long AUTO_VACUUM_INCREMENTAL = 2;
+
+    // pages freed by the retention job are only returned to the file system with auto_vacuum
+    // on. it only takes effect if set before the first table is created, so a new db gets it
+    // for free and an older one keeps what it has until enableIncrementalVacuum.
+    private static final String SQL_AUTO_VACUUM_INCREMENTAL = "PRAGMA auto_vacuum = INCREMENTAL";
+
+    @Override
+    public void onConfigure(SQLiteDatabase db) {
+        super.onConfigure(db);
+        if (!db.isReadOnly()) {
+            db.execSQL(SQL_AUTO_VACUUM_INCREMENTAL);
+        }
+    }
+
+    @Override
+    public void onOpen(SQLiteDatabase db) {
+        super.onOpen(db);
+        // before jelly bean the helper can't be asked for WAL, turn it on once the db is open.
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN && !db.isReadOnly()) {
+            db.enableWriteAheadLogging();
+        }
+    }
+
+
+
+    // The forecast list asks for the days of one location from a start date on, in date order.
+    // The UNIQUE (day, location_id) index has its columns the wrong way round for that, this one
+    // finds the location's days and returns them already sorted. It also holds every weather
+    // column the list shows, so those queries never touch the table itself.
+    static final String INDEX_WEATHER_LOCATION_DATE = "weather_location_date";
+
+    static final String SQL_CREATE_WEATHER_LOCATION_DATE_INDEX = "CREATE INDEX " +
+            INDEX_WEATHER_LOCATION_DATE + " ON " + WeatherEntry.TABLE_NAME + " (" +
+            WeatherEntry.COLUMN_LOC_KEY + ", " +
+            WeatherEntry.COLUMN_DAY + ", " +
+            WeatherEntry.COLUMN_SHORT_DESC + ", " +
+            WeatherEntry.COLUMN_MAX_TEMP + ", " +
+            WeatherEntry.COLUMN_MIN_TEMP + ", " +
+            WeatherEntry.COLUMN_WEATHER_ID + ");";
+
+    // Min, max, humidity, pressure, wind and degrees are stored as INTEGER hundredths, which
+    // sqlite packs into 2 or 3 bytes where a REAL always takes 8. The provider scales them on
+    // the way in and back in the columns of its queries, callers only ever see the REAL values.
+    static final int FIXED_POINT_SCALE = 100;
+
+    static final String[] FIXED_POINT_COLUMNS = {
+            WeatherEntry.COLUMN_MIN_TEMP,
+            WeatherEntry.COLUMN_MAX_TEMP,
+            WeatherEntry.COLUMN_HUMIDITY,
+            WeatherEntry.COLUMN_PRESSURE,
+            WeatherEntry.COLUMN_WIND_SPEED,
+            WeatherEntry.COLUMN_DEGREES
+    };
+
+    // The weather table with its day keys turned back into dates and its fixed point columns
+    // back into REALs, for the provider to run the selections of other apps against. The CASTs
+    // give the columns INTEGER and REAL affinity, so they compare with a value passed as a
+    // string arg.
+    static final String VIEW_WEATHER_DATES = "weather_dates";
+
+    // the date of the day key of a weather row, as WeatherContract.dayToDate works it out.
+    static final String SQL_DATE_OF_DAY = "CAST(" + WeatherEntry.COLUMN_DAY + " * " +
+            DateUtils.DAY_IN_MILLIS + " AS INTEGER)";
+
+    static final String SQL_CREATE_WEATHER_DATES_VIEW = "CREATE VIEW " + VIEW_WEATHER_DATES +
+            " AS " + buildWeatherDatesSql(WeatherEntry.TABLE_NAME) + ";";
+
+    // One row per location holding its days packed, for the optional packed storage. A location
+    // has its days either here or in the weather table, never in both.
+    static final String SQL_CREATE_PACKED_FORECAST_TABLE = "CREATE TABLE " +
+            PackedForecastEntry.TABLE_NAME + " (" +
+            PackedForecastEntry.COLUMN_LOC_KEY + " INTEGER PRIMARY KEY, " +
+            PackedForecastEntry.COLUMN_FIRST_DAY + " INTEGER NOT NULL, " +
+            PackedForecastEntry.COLUMN_LAST_DAY + " INTEGER NOT NULL, " +
+            PackedForecastEntry.COLUMN_DAYS + " BLOB NOT NULL, " +
+            " FOREIGN KEY (" + PackedForecastEntry.COLUMN_LOC_KEY + ") REFERENCES " +
+            LocationEntry.TABLE_NAME + " (" + LocationEntry._ID + "));";
+
+    /**
+     * @param weatherTable the weather table, or a subquery with the same columns.
+     * @return the select of VIEW_WEATHER_DATES, run against weatherTable.
+     */
+    static String buildWeatherDatesSql(String weatherTable) {
+        return "SELECT " + WeatherEntry._ID + ", " +
+                WeatherEntry.COLUMN_LOC_KEY + ", " +
+                WeatherEntry.COLUMN_DAY + ", " +
+                SQL_DATE_OF_DAY + " AS " + WeatherEntry.COLUMN_DATE + ", " +
+                WeatherEntry.COLUMN_SHORT_DESC + ", " +
+                WeatherEntry.COLUMN_WEATHER_ID + ", " +
+                buildFixedPointColumnsSql() + " FROM " + weatherTable;
+    }
+
+    /**
+     * @return the stored value of a fixed point column.
+     */
+    static long toFixedPoint(double value) {
+        return Math.round(value * FIXED_POINT_SCALE);
+    }
+
+    static boolean isFixedPointColumn(String column) {
+        for (String fixedPointColumn : FIXED_POINT_COLUMNS) {
+            if (fixedPointColumn.equals(column)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the REAL value of a stored fixed point column.
+     */
+    static String buildFixedPointValueSql(String column) {
+        return "CAST(" + column + " / " + FIXED_POINT_SCALE + ".0 AS REAL)";
     }
 
+    // "CAST(min / 100.0 AS REAL) AS min, ..." for every fixed point column.
+    private static String buildFixedPointColumnsSql() {
+        StringBuilder columns = new StringBuilder();
+        for (String column : FIXED_POINT_COLUMNS) {
+            if (columns.length() > 0) {
+                columns.append(", ");
+            }
+            columns.append(buildFixedPointValueSql(column)).append(" AS ").append(column);
+        }
+        return columns.toString();
+    }
 
+    /**
+     * Switches incremental auto vacuum on for a db created without it. That rebuilds the whole
+     * file with a VACUUM, once, so it is left to the retention job rather than done while the
+     * app waits for the db to open. Has to run outside of any transaction.
+     *
+     * @return true if the db was rebuilt, which also gave every free page back.
+     */
+    static boolean enableIncrementalVacuum(SQLiteDatabase db) {
+        if (DatabaseUtils.longForQuery(db, "PRAGMA auto_vacuum", null)
+                == AUTO_VACUUM_INCREMENTAL) {
+            return false;
+        }
+        db.execSQL(SQL_AUTO_VACUUM_INCREMENTAL);
+        db.execSQL("VACUUM");
+        return true;
+    }
 
     @Override
     public void onCreate(SQLiteDatabase sqLiteDatabase) {
         //the first time the db is used this method is used to create the tables.
 
+        // onConfigure sets auto_vacuum from jelly bean on, before that it is set here, still
+        // ahead of the first table.
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN) {
+            sqLiteDatabase.execSQL(SQL_AUTO_VACUUM_INCREMENTAL);
+        }
+
         // Create a table to hold locations.  A location consists of the string supplied in the
-        // location setting, the city name, and the latitude and longitude
+        // location setting, the city name, and the latitude and longitude, plus the http
+        // validators of the last forecast downloaded for it
         final String SQL_CREATE_LOCATION_TABLE = "CREATE TABLE " + LocationEntry.TABLE_NAME + " (" +
                 LocationEntry._ID + " INTEGER PRIMARY KEY," +
                 LocationEntry.COLUMN_LOCATION_SETTING + " TEXT UNIQUE NOT NULL, " +
                 LocationEntry.COLUMN_CITY_NAME + " TEXT NOT NULL, " +
                 LocationEntry.COLUMN_COORD_LAT + " REAL NOT NULL, " +
-                LocationEntry.COLUMN_COORD_LONG + " REAL NOT NULL" +
+                LocationEntry.COLUMN_COORD_LONG + " REAL NOT NULL, " +
+                LocationEntry.COLUMN_ETAG + " TEXT, " +
+                LocationEntry.COLUMN_LAST_MODIFIED + " TEXT" +
                 ");";
 
         //sql statement to create table
@@ -51,17 +238,19 @@ public class WeatherDbHelper extends SQLiteOpenHelper {
 
                 // the ID of the location entry associated with this weather data
                 WeatherEntry.COLUMN_LOC_KEY + " INTEGER NOT NULL, " +
-                WeatherEntry.COLUMN_DATE + " INTEGER NOT NULL, " +
+                // days since the epoch, a smaller key than the date in millis.
+                WeatherEntry.COLUMN_DAY + " INTEGER NOT NULL, " +
                 WeatherEntry.COLUMN_SHORT_DESC + " TEXT NOT NULL, " +
                 WeatherEntry.COLUMN_WEATHER_ID + " INTEGER NOT NULL," +
 
-                WeatherEntry.COLUMN_MIN_TEMP + " REAL NOT NULL, " +
-                WeatherEntry.COLUMN_MAX_TEMP + " REAL NOT NULL, " +
+                // hundredths, see FIXED_POINT_SCALE.
+                WeatherEntry.COLUMN_MIN_TEMP + " INTEGER NOT NULL, " +
+                WeatherEntry.COLUMN_MAX_TEMP + " INTEGER NOT NULL, " +
 
-                WeatherEntry.COLUMN_HUMIDITY + " REAL NOT NULL, " +
-                WeatherEntry.COLUMN_PRESSURE + " REAL NOT NULL, " +
-                WeatherEntry.COLUMN_WIND_SPEED + " REAL NOT NULL, " +
-                WeatherEntry.COLUMN_DEGREES + " REAL NOT NULL, " +
+                WeatherEntry.COLUMN_HUMIDITY + " INTEGER NOT NULL, " +
+                WeatherEntry.COLUMN_PRESSURE + " INTEGER NOT NULL, " +
+                WeatherEntry.COLUMN_WIND_SPEED + " INTEGER NOT NULL, " +
+                WeatherEntry.COLUMN_DEGREES + " INTEGER NOT NULL, " +
 
                 // Set up the location column as a foreign key to location table.
                 " FOREIGN KEY (" + WeatherEntry.COLUMN_LOC_KEY + ") REFERENCES " +
@@ -69,25 +258,186 @@ public class WeatherDbHelper extends SQLiteOpenHelper {
 
                 // To assure the application have just one weather entry per day
                 // per location, it's created a UNIQUE constraint with REPLACE strategy
-                " UNIQUE (" + WeatherEntry.COLUMN_DATE + ", " +
+                " UNIQUE (" + WeatherEntry.COLUMN_DAY + ", " +
                 WeatherEntry.COLUMN_LOC_KEY + ") ON CONFLICT REPLACE);";
 
-
-
         //create the table.
         sqLiteDatabase.execSQL(SQL_CREATE_WEATHER_TABLE);
         sqLiteDatabase.execSQL(SQL_CREATE_LOCATION_TABLE);
+        sqLiteDatabase.execSQL(SQL_CREATE_WEATHER_LOCATION_DATE_INDEX);
+        sqLiteDatabase.execSQL(SQL_CREATE_WEATHER_DATES_VIEW);
+        sqLiteDatabase.execSQL(SQL_CREATE_PACKED_FORECAST_TABLE);
     }
 
     @Override
     public void onUpgrade(SQLiteDatabase sqLiteDatabase, int oldVersion, int newVersion) {
-        // This database is only a cache for online data, so its upgrade policy is
-        // to simply to discard the data and start over
+        // This database is only a cache for online data, but throwing it away on every schema
+        // change makes every device refetch every location at once. Instead each version
+        // knows the statements that bring the schema from the version before up to it, and
+        // they are run one version at a time, carrying the rows along. onUpgrade already runs
+        // inside a transaction, so a failed step leaves the old schema as it was.
         // Note that this only fires if you change the version number for your database.
         // It does NOT depend on the version number for your application.
-        // If you want to update the schema without wiping data, commenting out the next 2 lines
-        // should be your top priority before modifying this method.
-        // to modify a table use ALTER TABLE (https://www.sqlite.org/lang_altertable.html)
+        for (int version = oldVersion + 1; version <= newVersion; version++) {
+            String[] migration = getMigration(version);
+            if (migration == null) {
+                // no way forward from here, fall back to discarding the data and starting over
+                dropAndCreate(sqLiteDatabase);
+                return;
+            }
+            for (String statement : migration) {
+                sqLiteDatabase.execSQL(statement);
+            }
+        }
+    }
+
+    /**
+     * When changing the schema, bump DATABASE_VERSION, change onCreate so a new install gets
+     * the new schema, and add a case here that takes an existing db from the previous version
+     * to the new one. ALTER TABLE only adds columns (https://www.sqlite.org/lang_altertable.html),
+     * anything else copies the table: create the new one, INSERT ... SELECT, drop, rename.
+     *
+     * Each case spells its statements out as literal SQL instead of building them from the
+     * contract or the create statements above. Those follow the latest schema, a migration
+     * has to keep producing the schema of its own version however often it changes after.
+     *
+     * @param version the version to upgrade to.
+     * @return the statements that take the schema from version - 1 to version, or null if
+     * there are none.
+     */
+    static String[] getMigration(int version) {
+        switch (version) {
+            case 2:
+                // http validators of the last forecast of each location.
+                return new String[]{
+                        "ALTER TABLE location ADD COLUMN etag TEXT",
+                        "ALTER TABLE location ADD COLUMN last_modified TEXT"
+                };
+            case 3:
+                // covering index for the forecast list query.
+                return new String[]{
+                        "CREATE INDEX weather_location_date ON weather (location_id, date, " +
+                                "short_desc, max, min, weather_id);"
+                };
+            case 4:
+                // dates used to be the local midnight of their day, they are the UTC midnight
+                // of the same calendar date now. adding the zone's offset gets there, up to a
+                // daylight saving shift between then and now, which rounding to the nearest
+                // UTC midnight takes out. the offset can be up to 14 hours, rounding alone
+                // would move the days of zones past +12 back by one.
+                long offset = TimeZone.getDefault().getOffset(System.currentTimeMillis());
+                return new String[]{
+                        "UPDATE weather SET date = ((date + " + offset + " + 43200000) / " +
+                                "86400000) * 86400000"
+                };
+            case 5:
+                // the date in millis becomes a day key. sqlite can't rename a column before
+                // 3.25, so the table is copied, which drops the index too.
+                return new String[]{
+                        "CREATE TABLE weather_v5 (" +
+                                "_id INTEGER PRIMARY KEY AUTOINCREMENT," +
+                                "location_id INTEGER NOT NULL, " +
+                                "day INTEGER NOT NULL, " +
+                                "short_desc TEXT NOT NULL, " +
+                                "weather_id INTEGER NOT NULL," +
+                                "min REAL NOT NULL, " +
+                                "max REAL NOT NULL, " +
+                                "humidity REAL NOT NULL, " +
+                                "pressure REAL NOT NULL, " +
+                                "wind REAL NOT NULL, " +
+                                "degrees REAL NOT NULL, " +
+                                " FOREIGN KEY (location_id) REFERENCES location (_id), " +
+                                " UNIQUE (day, location_id) ON CONFLICT REPLACE);",
+                        "INSERT INTO weather_v5 SELECT _id, location_id, date / 86400000, " +
+                                "short_desc, weather_id, min, max, humidity, pressure, wind, " +
+                                "degrees FROM weather",
+                        "DROP TABLE weather",
+                        "ALTER TABLE weather_v5 RENAME TO weather",
+                        "CREATE INDEX weather_location_date ON weather (location_id, day, " +
+                                "short_desc, max, min, weather_id);",
+                        "CREATE VIEW weather_dates AS SELECT *, " +
+                                "CAST(day * 86400000 AS INTEGER) AS date FROM weather"
+                };
+            case 6:
+                // the measurements become fixed point INTEGERs, rounded like toFixedPoint. the
+                // view names them, it goes first and comes back last.
+                return new String[]{
+                        "DROP VIEW weather_dates",
+                        "CREATE TABLE weather_v6 (" +
+                                "_id INTEGER PRIMARY KEY AUTOINCREMENT," +
+                                "location_id INTEGER NOT NULL, " +
+                                "day INTEGER NOT NULL, " +
+                                "short_desc TEXT NOT NULL, " +
+                                "weather_id INTEGER NOT NULL," +
+                                "min INTEGER NOT NULL, " +
+                                "max INTEGER NOT NULL, " +
+                                "humidity INTEGER NOT NULL, " +
+                                "pressure INTEGER NOT NULL, " +
+                                "wind INTEGER NOT NULL, " +
+                                "degrees INTEGER NOT NULL, " +
+                                " FOREIGN KEY (location_id) REFERENCES location (_id), " +
+                                " UNIQUE (day, location_id) ON CONFLICT REPLACE);",
+                        "INSERT INTO weather_v6 SELECT _id, location_id, day, short_desc, " +
+                                "weather_id, " +
+                                roundHundredthsSql("min") + ", " +
+                                roundHundredthsSql("max") + ", " +
+                                roundHundredthsSql("humidity") + ", " +
+                                roundHundredthsSql("pressure") + ", " +
+                                roundHundredthsSql("wind") + ", " +
+                                roundHundredthsSql("degrees") + " FROM weather",
+                        "DROP TABLE weather",
+                        "ALTER TABLE weather_v6 RENAME TO weather",
+                        "CREATE INDEX weather_location_date ON weather (location_id, day, " +
+                                "short_desc, max, min, weather_id);",
+                        "CREATE VIEW weather_dates AS SELECT _id, location_id, day, " +
+                                "CAST(day * 86400000 AS INTEGER) AS date, short_desc, " +
+                                "weather_id, " +
+                                "CAST(min / 100.0 AS REAL) AS min, " +
+                                "CAST(max / 100.0 AS REAL) AS max, " +
+                                "CAST(humidity / 100.0 AS REAL) AS humidity, " +
+                                "CAST(pressure / 100.0 AS REAL) AS pressure, " +
+                                "CAST(wind / 100.0 AS REAL) AS wind, " +
+                                "CAST(degrees / 100.0 AS REAL) AS degrees FROM weather;"
+                };
+            case 7:
+                // packed forecasts, empty until a sync writes one.
+                return new String[]{
+                        "CREATE TABLE packed_forecast (" +
+                                "location_id INTEGER PRIMARY KEY, " +
+                                "first_day INTEGER NOT NULL, " +
+                                "last_day INTEGER NOT NULL, " +
+                                "days BLOB NOT NULL, " +
+                                " FOREIGN KEY (location_id) REFERENCES location (_id));"
+                };
+            case 8:
+                // packed days keep their weather row id from here on, the blobs of version 7
+                // have none. They are dropped along with the validators of their locations, so
+                // the next sync downloads the days again instead of getting a 304.
+                return new String[]{
+                        "UPDATE location SET etag = NULL, last_modified = NULL " +
+                                "WHERE _id IN (SELECT location_id FROM packed_forecast);",
+                        "DELETE FROM packed_forecast;"
+                };
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Migration 6's rounding of a REAL column to hundredths, floor(x * 100 + 0.5) like the
+     * Math.round of toFixedPoint. sqlite's ROUND takes halves away from zero, -12.5 would
+     * become -13 instead of -12. CAST truncates towards zero, a negative sum that is not whole
+     * ends up one above its floor and gets 1 taken off.
+     */
+    private static String roundHundredthsSql(String column) {
+        String half = "(" + column + " * 100 + 0.5)";
+        return "(CAST(" + half + " AS INTEGER) - (" + half + " < CAST(" + half +
+                " AS INTEGER)))";
+    }
+
+    private void dropAndCreate(SQLiteDatabase sqLiteDatabase) {
+        sqLiteDatabase.execSQL("DROP VIEW IF EXISTS " + VIEW_WEATHER_DATES);
+        sqLiteDatabase.execSQL("DROP TABLE IF EXISTS " + PackedForecastEntry.TABLE_NAME);
         sqLiteDatabase.execSQL("DROP TABLE IF EXISTS " + LocationEntry.TABLE_NAME);
         sqLiteDatabase.execSQL("DROP TABLE IF EXISTS " + WeatherEntry.TABLE_NAME);
         onCreate(sqLiteDatabase);
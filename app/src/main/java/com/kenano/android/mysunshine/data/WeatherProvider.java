@@ -1,19 +1,43 @@
 package com.kenano.android.mysunshine.data;
 
 import android.content.ContentProvider;
+import android.content.ContentProviderClient;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentValues;
+import android.content.OperationApplicationException;
 import android.content.UriMatcher;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteConstraintException;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteQueryBuilder;
+import android.database.sqlite.SQLiteStatement;
 import android.net.Uri;
+import android.os.Bundle;
+import android.os.Parcelable;
+import android.os.SystemClock;
 import android.support.annotation.Nullable;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
 
 /**
  * Created by KenanO on 9/5/16.
  */
 public class WeatherProvider extends ContentProvider {
 
+    private static final String LOG_TAG = WeatherProvider.class.getSimpleName();
+
+    static final int DEFAULT_PRUNE_CHUNK_SIZE = 500;
+
     // The URI Matcher used by this content provider.
     private static final UriMatcher sUriMatcher = buildUriMatcher();
 
@@ -21,6 +45,9 @@ public class WeatherProvider extends ContentProvider {
     static final int WEATHER_WITH_LOCATION = 101;
     static final int WEATHER_WITH_LOCATION_AND_DATE = 102;
     static final int LOCATION = 300;
+    static final int LOCATION_WITH_ID = 301;
+    static final int PACKED_FORECAST = 400;
+    static final int PACKED_FORECAST_WITH_LOCATION = 401;
 
     static UriMatcher buildUriMatcher() {
 
@@ -37,51 +64,136 @@ public class WeatherProvider extends ContentProvider {
         matcher.addURI(authority, WeatherContract.PATH_WEATHER + "/*/#", WEATHER_WITH_LOCATION_AND_DATE);
 
         matcher.addURI(authority, WeatherContract.PATH_LOCATION, LOCATION);
+        matcher.addURI(authority, WeatherContract.PATH_LOCATION + "/#", LOCATION_WITH_ID);
+
+        matcher.addURI(authority, WeatherContract.PATH_PACKED_FORECAST, PACKED_FORECAST);
+        matcher.addURI(authority, WeatherContract.PATH_PACKED_FORECAST + "/#",
+                PACKED_FORECAST_WITH_LOCATION);
         return matcher;
     }
 
-    private static final SQLiteQueryBuilder sWeatherByLocationSettingQueryBuilder;
+    private static final SQLiteQueryBuilder sWeatherByLocationSettingQueryBuilder =
+            buildWeatherByLocationSettingQueryBuilder(WeatherContract.WeatherEntry.TABLE_NAME);
 
-    static{
+    /**
+     * @param weatherTable the weather table, or the packed days of a location named like it.
+     */
+    private static SQLiteQueryBuilder buildWeatherByLocationSettingQueryBuilder(
+            String weatherTable) {
 
         //create sql query.
-        sWeatherByLocationSettingQueryBuilder = new SQLiteQueryBuilder();
+        SQLiteQueryBuilder queryBuilder = new SQLiteQueryBuilder();
 
         //build a inner join query
-        sWeatherByLocationSettingQueryBuilder.setTables(
-                WeatherContract.WeatherEntry.TABLE_NAME + " INNER JOIN " +
+        queryBuilder.setTables(
+                weatherTable + " INNER JOIN " +
                         WeatherContract.LocationEntry.TABLE_NAME +
                         " ON " + WeatherContract.WeatherEntry.TABLE_NAME +
                         "." + WeatherContract.WeatherEntry.COLUMN_LOC_KEY +
                         " = " + WeatherContract.LocationEntry.TABLE_NAME +
                         "." + WeatherContract.LocationEntry._ID);
+        return queryBuilder;
     }
 
 
     //for selection components of query use question-mark placement syntax.
     //the "?" symbols will be replaced with values placed into selectionArgs in the query method
     //location.location_setting = ?
-    private static final String sLocationSettingSelection =
+    static final String sLocationSettingSelection =
             WeatherContract.LocationEntry.TABLE_NAME +
                     "." + WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ? ";
 
-    //location.location_setting = ? AND date >= ?
-    private static final String sLocationSettingWithStartDateSelection =
+    //location.location_setting = ? AND day >= ?
+    static final String sLocationSettingWithStartDateSelection =
             WeatherContract.LocationEntry.TABLE_NAME +
                     "." + WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ? AND " +
-                    WeatherContract.WeatherEntry.COLUMN_DATE + " >= ? ";
+                    WeatherContract.WeatherEntry.COLUMN_DAY + " >= ? ";
+
+    //location.location_setting = ? AND day >= ? AND day <= ?
+    static final String sLocationSettingWithDateRangeSelection =
+            sLocationSettingWithStartDateSelection + "AND " +
+                    WeatherContract.WeatherEntry.COLUMN_DAY + " <= ? ";
+
+    //weather.location_id = ?
+    static final String sLocationKeySelection =
+            WeatherContract.WeatherEntry.COLUMN_LOC_KEY + " = ? ";
 
-    //location.location_setting = ? AND date = ?
-    private static final String sLocationSettingAndDaySelection =
+    //weather.location_id = ? AND day >= ?
+    static final String sLocationKeyWithStartDateSelection =
+            WeatherContract.WeatherEntry.COLUMN_LOC_KEY + " = ? AND " +
+                    WeatherContract.WeatherEntry.COLUMN_DAY + " >= ? ";
+
+    //weather.location_id = ? AND day >= ? AND day <= ?
+    static final String sLocationKeyWithDateRangeSelection =
+            sLocationKeyWithStartDateSelection + "AND " +
+                    WeatherContract.WeatherEntry.COLUMN_DAY + " <= ? ";
+
+    //weather.location_id = ? AND day = ?
+    static final String sLocationKeyAndDaySelection =
+            WeatherContract.WeatherEntry.COLUMN_LOC_KEY + " = ? AND " +
+                    WeatherContract.WeatherEntry.COLUMN_DAY + " = ? ";
+
+    //columns only the location table has. a weather/* query that names none of them, and no
+    //column qualified with "location.", is run against the weather table alone.
+    private static final String[] sLocationOnlyColumns = {
+            WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING,
+            WeatherContract.LocationEntry.COLUMN_CITY_NAME,
+            WeatherContract.LocationEntry.COLUMN_COORD_LAT,
+            WeatherContract.LocationEntry.COLUMN_COORD_LONG,
+            WeatherContract.LocationEntry.COLUMN_ETAG,
+            WeatherContract.LocationEntry.COLUMN_LAST_MODIFIED
+    };
+
+    //location._id = ?
+    static final String sLocationIdSelection =
+            WeatherContract.LocationEntry._ID + " = ?";
+
+    //location.location_setting = ? AND day = ?
+    static final String sLocationSettingAndDaySelection =
             WeatherContract.LocationEntry.TABLE_NAME +
                     "." + WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ? AND " +
-                    WeatherContract.WeatherEntry.COLUMN_DATE + " = ? ";
+                    WeatherContract.WeatherEntry.COLUMN_DAY + " = ? ";
+
+    //the date a query asks for, worked out from the day key the table stores.
+    private static final String sDateOfDayColumn = WeatherDbHelper.SQL_DATE_OF_DAY + " AS " +
+            WeatherContract.WeatherEntry.COLUMN_DATE;
+
+    //every column of a weather row, as a query returns them.
+    private static final String[] sAllWeatherColumns = toStoredProjection(new String[]{
+            WeatherContract.WeatherEntry.TABLE_NAME + "." + WeatherContract.WeatherEntry._ID,
+            WeatherContract.WeatherEntry.COLUMN_LOC_KEY,
+            WeatherContract.WeatherEntry.COLUMN_DAY,
+            WeatherContract.WeatherEntry.COLUMN_DATE,
+            WeatherContract.WeatherEntry.COLUMN_SHORT_DESC,
+            WeatherContract.WeatherEntry.COLUMN_WEATHER_ID,
+            WeatherContract.WeatherEntry.COLUMN_MIN_TEMP,
+            WeatherContract.WeatherEntry.COLUMN_MAX_TEMP,
+            WeatherContract.WeatherEntry.COLUMN_HUMIDITY,
+            WeatherContract.WeatherEntry.COLUMN_PRESSURE,
+            WeatherContract.WeatherEntry.COLUMN_WIND_SPEED,
+            WeatherContract.WeatherEntry.COLUMN_DEGREES
+    });
+
+    //the date column named in a sort order, on its own or after the weather table.
+    private static final Pattern sDateColumnPattern =
+            Pattern.compile("\\b" + WeatherContract.WeatherEntry.COLUMN_DATE + "\\b");
 
     private WeatherDbHelper mOpenHelper;
 
+    // results of the weather/* queries, dropped as the provider's own writes commit.
+    private final QueryResultCache mQueryCache = new QueryResultCache();
+
+    // the notifications held back while the calling thread applies a batch, null otherwise.
+    private final ThreadLocal<Set<Uri>> mBatchNotifications = new ThreadLocal<Set<Uri>>();
+
+    // whether the packed_forecast table may have rows, looked up on first use. Once true it
+    // stays true, weather/* queries only look for a packed row in a db that ever had one.
+    private boolean mPackedForecastsChecked;
+    private boolean mHasPackedForecasts;
+
     @Override
     public boolean onCreate() {
-        mOpenHelper = new WeatherDbHelper(getContext());
+        mOpenHelper = WeatherDbHelper.getInstance(getContext());
 
         return true;
     }
@@ -112,20 +224,31 @@ public class WeatherProvider extends ContentProvider {
             // "weather/*/*"
             case WEATHER_WITH_LOCATION_AND_DATE:
             {
-                //build the query and execute it.
-                retCursor = getWeatherByLocationSettingAndDate(uri, projection, sortOrder);
+                //build the query and execute it, unless the same query is cached.
+                retCursor = queryWeatherDay(
+                        WeatherContract.WeatherEntry.getLocationSettingFromUri(uri),
+                        WeatherContract.WeatherEntry.getDateFromUri(uri),
+                        projection,
+                        sortOrder);
                 break;
             }
             // "weather/*"
             case WEATHER_WITH_LOCATION: {
-                //build the query and execute it.
-                retCursor = getWeatherByLocationSetting(uri, projection, sortOrder);
+                //build the query and execute it, unless the same query is cached.
+                retCursor = queryWeather(
+                        WeatherContract.WeatherEntry.getLocationSettingFromUri(uri),
+                        WeatherContract.WeatherEntry.getStartDateFromUri(uri),
+                        WeatherContract.WeatherEntry.getEndDateFromUri(uri),
+                        projection,
+                        sortOrder);
                 break;
             }
             // "weather"
             case WEATHER: {
+                //against the dates view, the selection may name the date. packed days are only
+                //read through weather/<location>, a read never turns them into rows.
                 retCursor = mOpenHelper.getReadableDatabase().query(
-                        WeatherContract.WeatherEntry.TABLE_NAME,
+                        WeatherDbHelper.VIEW_WEATHER_DATES,
                         projection,
                         selection,
                         selectionArgs,
@@ -148,6 +271,45 @@ public class WeatherProvider extends ContentProvider {
                 );
                 break;
             }
+            // "location/#"
+            case LOCATION_WITH_ID: {
+                retCursor = mOpenHelper.getReadableDatabase().query(
+                        WeatherContract.LocationEntry.TABLE_NAME,
+                        projection,
+                        sLocationIdSelection,
+                        new String[]{uri.getLastPathSegment()},
+                        null,
+                        null,
+                        sortOrder
+                );
+                break;
+            }
+            // "packed_forecast"
+            case PACKED_FORECAST: {
+                retCursor = mOpenHelper.getReadableDatabase().query(
+                        WeatherContract.PackedForecastEntry.TABLE_NAME,
+                        projection,
+                        selection,
+                        selectionArgs,
+                        null,
+                        null,
+                        sortOrder
+                );
+                break;
+            }
+            // "packed_forecast/#"
+            case PACKED_FORECAST_WITH_LOCATION: {
+                retCursor = mOpenHelper.getReadableDatabase().query(
+                        WeatherContract.PackedForecastEntry.TABLE_NAME,
+                        projection,
+                        sPackedLocationSelection,
+                        new String[]{uri.getLastPathSegment()},
+                        null,
+                        null,
+                        sortOrder
+                );
+                break;
+            }
 
             default:
                 //if the uri didnt match any of the cases something is wrong.
@@ -184,6 +346,12 @@ public class WeatherProvider extends ContentProvider {
                 return WeatherContract.WeatherEntry.CONTENT_TYPE;
             case LOCATION:
                 return WeatherContract.LocationEntry.CONTENT_TYPE;
+            case LOCATION_WITH_ID:
+                return WeatherContract.LocationEntry.CONTENT_ITEM_TYPE;
+            case PACKED_FORECAST:
+                return WeatherContract.PackedForecastEntry.CONTENT_TYPE;
+            case PACKED_FORECAST_WITH_LOCATION:
+                return WeatherContract.PackedForecastEntry.CONTENT_ITEM_TYPE;
             default:
                 throw new UnsupportedOperationException("Unknown uri: " + uri);
         }
@@ -207,21 +375,36 @@ public class WeatherProvider extends ContentProvider {
         //determine type of request using uri matcher.
         final int match = sUriMatcher.match(uri);
         Uri returnUri;
+        Uri notifyUri;
 
         //select which table go enter data based on uri.
         switch (match) {
             case WEATHER: {
 
-                //changes date to what db uses.
-                normalizeDate(values);
+                Long locationId = values.getAsLong(WeatherContract.WeatherEntry.COLUMN_LOC_KEY);
+                boolean unpacked;
 
                 //insert weather entry, build a uri that represents entry. return it or throw
-                //exception
-                long _id = db.insert(WeatherContract.WeatherEntry.TABLE_NAME, null, values);
-                if ( _id > 0 )
-                    returnUri = WeatherContract.WeatherEntry.buildWeatherUri(_id);
-                else
-                    throw new android.database.SQLException("Failed to insert row into " + uri);
+                //exception. packed days of the location become rows in the same transaction,
+                //a failed insert leaves them packed.
+                db.beginTransactionNonExclusive();
+                try {
+                    unpacked = unpackForecast(db, locationId);
+                    long _id = db.insert(WeatherContract.WeatherEntry.TABLE_NAME, null,
+                            toStoredValues(values));
+                    if ( _id > 0 )
+                        returnUri = WeatherContract.WeatherEntry.buildWeatherUri(_id);
+                    else
+                        throw new android.database.SQLException("Failed to insert row into " + uri);
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
+
+                //only the day of the location the row belongs to changed, or all of them when
+                //they were unpacked.
+                notifyUri = getWeatherUri(db, locationId, unpacked ? null
+                        : values.getAsLong(WeatherContract.WeatherEntry.COLUMN_DATE));
                 break;
             }
             case LOCATION: {
@@ -233,6 +416,19 @@ public class WeatherProvider extends ContentProvider {
                     returnUri = WeatherContract.LocationEntry.buildLocationUri(_id);
                 else
                     throw new android.database.SQLException("Failed to insert row into " + uri);
+
+                //a new location only changes its own row, notify that so LocationIdCache keeps
+                //the settings it already knows.
+                notifyUri = returnUri;
+                break;
+            }
+            case PACKED_FORECAST: {
+                setHasPackedForecasts();
+                long locationId = insertPackedForecast(db, values);
+                returnUri = WeatherContract.PackedForecastEntry.buildPackedForecastUri(locationId);
+
+                //every day of the location may have changed.
+                notifyUri = getWeatherUri(db, locationId, null);
                 break;
             }
             default:
@@ -240,7 +436,7 @@ public class WeatherProvider extends ContentProvider {
         }
 
         //send notification th contnent provider has changed.
-        getContext().getContentResolver().notifyChange(uri, null);
+        notifyChange(notifyUri);
 
         return returnUri;
     }
@@ -272,12 +468,34 @@ public class WeatherProvider extends ContentProvider {
             selection = "1";
 
         switch (match) {
-            case WEATHER:
+            case WEATHER: {
+                Set<String> locationSettings;
+                db.beginTransactionNonExclusive();
+                try {
+                    //the locations have to be looked up before their rows are gone.
+                    locationSettings = queryWeatherLocationSettings(db, selection, selectionArgs);
 
-                //remove data or throw exception.
-                rowsDeleted = db.delete(
-                        WeatherContract.WeatherEntry.TABLE_NAME, selection, selectionArgs);
-                break;
+                    //packed days matching the selection go too, without unpacking the rest.
+                    rowsDeleted = 0;
+                    if (hasPackedForecasts()) {
+                        Set<Long> packedLocationIds = new HashSet<Long>();
+                        rowsDeleted = deletePackedDays(db, selection, selectionArgs,
+                                packedLocationIds);
+                        locationSettings.addAll(getLocationSettings(db, packedLocationIds));
+                    }
+
+                    //remove data or throw exception.
+                    rowsDeleted += db.delete(WeatherContract.WeatherEntry.TABLE_NAME,
+                            selectByDates(selection), selectionArgs);
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
+                if (rowsDeleted != 0) {
+                    notifyWeatherChange(locationSettings);
+                }
+                return rowsDeleted;
+            }
             case LOCATION:
 
                 //remove data or throw exception.
@@ -290,11 +508,174 @@ public class WeatherProvider extends ContentProvider {
 
         // Because a null deletes all rows
         if (rowsDeleted != 0) {
-            getContext().getContentResolver().notifyChange(uri, null);
+            notifyLocationChange(uri);
         }
         return rowsDeleted;
     }
 
+    /**
+     * Applies the operations in a single transaction, so a location, its weather and its
+     * validators are committed together with one sync of the log, or not at all. Back
+     * references work as usual. Observers are notified once the batch is committed, with the
+     * notifications of all operations coalesced.
+     *
+     * @param operations the operations to apply.
+     * @return the results of the operations, in order.
+     * @throws OperationApplicationException if an operation failed, nothing is written then.
+     */
+    @Override
+    public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+        final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        Set<Uri> notifications = new HashSet<Uri>();
+        boolean successful = false;
+
+        mBatchNotifications.set(notifications);
+        db.beginTransactionNonExclusive();
+        try {
+            //the operations call insert, update and delete, their transactions nest in this one.
+            ContentProviderResult[] results = super.applyBatch(operations);
+            db.setTransactionSuccessful();
+            successful = true;
+            return results;
+        } finally {
+            db.endTransaction();
+            mBatchNotifications.remove();
+            if (successful) {
+                for (Uri uri : coalesceNotifications(notifications)) {
+                    sendNotification(uri);
+                }
+            } else {
+                //ids of locations the batch inserted may have been cached, they are gone now.
+                LocationIdCache.getInstance(getContext()).clear();
+            }
+        }
+    }
+
+    /**
+     * Runs the provider methods declared in {@link WeatherContract}.
+     *
+     * @param method one of the WeatherContract.METHOD_* names.
+     * @param arg unused
+     * @param extras the arguments of the method.
+     * @return the result of the method.
+     */
+    @Nullable
+    @Override
+    public Bundle call(String method, String arg, Bundle extras) {
+        if (WeatherContract.METHOD_PRUNE_WEATHER.equals(method)) {
+            return pruneWeather(extras.getLong(WeatherContract.EXTRA_CUTOFF_DATE),
+                    extras.getInt(WeatherContract.EXTRA_CHUNK_SIZE, DEFAULT_PRUNE_CHUNK_SIZE));
+        }
+        if (WeatherContract.METHOD_GET_QUERY_CACHE_STATS.equals(method)) {
+            Bundle stats = new Bundle();
+            stats.putInt(WeatherContract.EXTRA_CACHE_HITS, mQueryCache.getHitCount());
+            stats.putInt(WeatherContract.EXTRA_CACHE_MISSES, mQueryCache.getMissCount());
+            stats.putInt(WeatherContract.EXTRA_CACHE_EVICTIONS, mQueryCache.getEvictionCount());
+            stats.putInt(WeatherContract.EXTRA_CACHE_BYTES, mQueryCache.getSizeBytes());
+            return stats;
+        }
+        if (WeatherContract.METHOD_STORE_FORECAST.equals(method)) {
+            return storeForecast(
+                    (ContentValues) extras.getParcelable(WeatherContract.EXTRA_LOCATION),
+                    ForecastBatch.fromBundle(extras.getBundle(WeatherContract.EXTRA_FORECAST)),
+                    extras.getBoolean(WeatherContract.EXTRA_PACKED));
+        }
+        if (WeatherContract.METHOD_UPSERT_WEATHER.equals(method)) {
+            if (extras == null) {
+                throw new IllegalArgumentException(method + " needs the days to upsert in " +
+                        WeatherContract.EXTRA_FORECAST + " or " + WeatherContract.EXTRA_VALUES);
+            }
+            Bundle forecast = extras.getBundle(WeatherContract.EXTRA_FORECAST);
+            if (forecast != null) {
+                return upsert(ForecastBatch.fromBundle(forecast));
+            }
+            Parcelable[] values = extras.getParcelableArray(WeatherContract.EXTRA_VALUES);
+            if (values == null) {
+                throw new IllegalArgumentException(method + " needs the days to upsert in " +
+                        WeatherContract.EXTRA_FORECAST + " or " + WeatherContract.EXTRA_VALUES);
+            }
+            ContentValues[] rows = new ContentValues[values.length];
+            for (int i = 0; i < values.length; i++) {
+                rows[i] = (ContentValues) values[i];
+            }
+            return upsert(rows);
+        }
+        return super.call(method, arg, extras);
+    }
+
+    /**
+     * Deletes the weather rows dated before the cutoff, a chunk at a time so a large backlog
+     * never holds the write lock for long, then runs an incremental vacuum to shrink the file.
+     * Same rows as a delete on the weather uri with "date < cutoff", but observers get their
+     * notification at the end instead of one per chunk.
+     *
+     * @param cutoffDate normalized date of the oldest day to keep.
+     * @param chunkSize most rows deleted per transaction.
+     * @return the metrics of the run.
+     */
+    private Bundle pruneWeather(long cutoffDate, int chunkSize) {
+        final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        long start = SystemClock.elapsedRealtime();
+        long pagesBefore = DatabaseUtils.longForQuery(db, "PRAGMA page_count", null);
+
+        String cutoffDay = Long.toString(WeatherContract.dateToDay(cutoffDate));
+        Set<String> locationSettings = queryWeatherLocationSettings(db,
+                WeatherContract.WeatherEntry.COLUMN_DAY + " < ?", new String[]{cutoffDay});
+
+        String[] args = {cutoffDay, Integer.toString(chunkSize)};
+        int rowsDeleted = 0;
+        int chunks = 0;
+        int deleted;
+        do {
+            db.beginTransactionNonExclusive();
+            try {
+                // rowid chunks, DELETE ... LIMIT is not compiled into android's sqlite.
+                db.execSQL("DELETE FROM " + WeatherContract.WeatherEntry.TABLE_NAME +
+                        " WHERE " + WeatherContract.WeatherEntry._ID + " IN (SELECT " +
+                        WeatherContract.WeatherEntry._ID + " FROM " +
+                        WeatherContract.WeatherEntry.TABLE_NAME + " WHERE " +
+                        WeatherContract.WeatherEntry.COLUMN_DAY + " < ? LIMIT ?)", args);
+                deleted = (int) DatabaseUtils.longForQuery(db, "SELECT changes()", null);
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+            rowsDeleted += deleted;
+            chunks++;
+        } while (deleted == chunkSize);
+
+        // the days of packed forecasts go too, counted with the rows.
+        Set<Long> prunedLocationIds = new HashSet<Long>();
+        rowsDeleted += prunePackedForecasts(db, Long.parseLong(cutoffDay), prunedLocationIds);
+        locationSettings.addAll(getLocationSettings(db, prunedLocationIds));
+
+        // hand the pages the deletes freed back to the file system. needs auto_vacuum, a db
+        // created before it was turned on is rebuilt with it the first time, which frees them
+        // all at once.
+        if (!WeatherDbHelper.enableIncrementalVacuum(db)) {
+            Cursor vacuum = db.rawQuery("PRAGMA incremental_vacuum", null);
+            vacuum.getCount();
+            vacuum.close();
+        }
+        long pagesAfter = DatabaseUtils.longForQuery(db, "PRAGMA page_count", null);
+
+        if (rowsDeleted > 0) {
+            notifyWeatherChange(locationSettings);
+        }
+
+        Bundle result = new Bundle();
+        result.putInt(WeatherContract.EXTRA_ROWS_DELETED, rowsDeleted);
+        result.putInt(WeatherContract.EXTRA_CHUNKS, chunks);
+        result.putLong(WeatherContract.EXTRA_PAGES_BEFORE, pagesBefore);
+        result.putLong(WeatherContract.EXTRA_PAGES_RECLAIMED, pagesBefore - pagesAfter);
+        result.putLong(WeatherContract.EXTRA_ELAPSED_MILLIS,
+                SystemClock.elapsedRealtime() - start);
+        Log.d(LOG_TAG, "Pruned " + rowsDeleted + " weather rows in " + chunks + " chunks, " +
+                (pagesBefore - pagesAfter) + " of " + pagesBefore + " pages reclaimed");
+        return result;
+    }
+
     /**
      * Update data in content provider
      *
@@ -320,98 +701,1672 @@ public class WeatherProvider extends ContentProvider {
         int rowsUpdated;
 
         switch (match) {
-            case WEATHER:
+            case WEATHER: {
 
-                //changes date to what db uses.
-                normalizeDate(values);
+                if (selection == null) {
+                    selection = "1";
+                }
+                Set<String> locationSettings;
+                Set<Long> unpackedLocationIds;
+                db.beginTransactionNonExclusive();
+                try {
+                    //only the packed locations with days the update reaches are unpacked, and
+                    //the one rows are moved to.
+                    unpackedLocationIds = hasPackedForecasts()
+                            ? unpackForecasts(db, selection, selectionArgs) : new HashSet<Long>();
+                    Long newLocationId =
+                            values.getAsLong(WeatherContract.WeatherEntry.COLUMN_LOC_KEY);
+                    if (hasPackedForecasts() && unpackForecast(db, newLocationId)) {
+                        unpackedLocationIds.add(newLocationId);
+                    }
 
-                //update or throw exception
-                rowsUpdated = db.update(WeatherContract.WeatherEntry.TABLE_NAME, values, selection,
-                        selectionArgs);
-                break;
+                    locationSettings = queryWeatherLocationSettings(db, selection, selectionArgs);
+                    locationSettings.addAll(getLocationSettings(db, unpackedLocationIds));
+                    //rows moved to another location change that one too.
+                    if (newLocationId != null) {
+                        locationSettings.addAll(queryLocationSettings(db,
+                                Long.toString(newLocationId), null));
+                    }
+
+                    //update or throw exception
+                    rowsUpdated = db.update(WeatherContract.WeatherEntry.TABLE_NAME,
+                            toStoredValues(values), selectByDates(selection), selectionArgs);
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
+                if (rowsUpdated != 0 || !unpackedLocationIds.isEmpty()) {
+                    notifyWeatherChange(locationSettings);
+                }
+                return rowsUpdated;
+            }
             case LOCATION:
 
                 //update or throw exception
                 rowsUpdated = db.update(WeatherContract.LocationEntry.TABLE_NAME, values, selection,
                         selectionArgs);
                 break;
+            case LOCATION_WITH_ID: {
+                String locationId = uri.getLastPathSegment();
+                Set<String> locationSettings;
+                db.beginTransactionNonExclusive();
+                try {
+                    //the weather of the location is cached and observed under its setting,
+                    //which the update may change. the old one is read while it is still stored.
+                    locationSettings = queryLocationSettings(db, locationId, null);
+
+                    //a single row, observers of the whole table still hear of it.
+                    rowsUpdated = db.update(WeatherContract.LocationEntry.TABLE_NAME, values,
+                            sLocationIdSelection, new String[]{locationId});
+
+                    Long newLocationId = values.getAsLong(WeatherContract.LocationEntry._ID);
+                    locationSettings.addAll(queryLocationSettings(db, newLocationId != null
+                            ? Long.toString(newLocationId) : locationId, null));
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
+                if (rowsUpdated != 0) {
+                    if (remapsLocation(values)) {
+                        //a row that takes another setting or id leaves a stale id cached for
+                        //the old setting, LocationIdCache only watches the table itself.
+                        notifyLocationChange(WeatherContract.LocationEntry.CONTENT_URI);
+                    } else {
+                        notifyChange(uri);
+                    }
+                    //weather read joined with the row is stale under either setting.
+                    notifyWeatherChange(locationSettings);
+                }
+                return rowsUpdated;
+            }
             default:
                 throw new UnsupportedOperationException("Unknown uri: " + uri);
         }
         if (rowsUpdated != 0) {
-            getContext().getContentResolver().notifyChange(uri, null);
+            notifyLocationChange(uri);
         }
         return rowsUpdated;
     }
 
     /**
-     * Executes a query for requesting weather for a specified location.
-     * Extracts query parameters from the uri.
+     * Inserts many weather rows at once. All rows go in with a single transaction and a single
+     * compiled insert statement, and observers get one notification once the batch is committed
+     * instead of one per row.
      *
-     * @param uri the location and date are passed through this uri.
-     * @param projection the columns of data requested
-     * @param sortOrder order of the results
-     * @return a cursor containing the results.
+     * @param uri used to specify request
+     * @param values the rows to be inserted into content provider.
+     * @return number of rows inserted
      */
-    private Cursor getWeatherByLocationSetting(Uri uri, String[] projection, String sortOrder) {
-        String locationSetting = WeatherContract.WeatherEntry.getLocationSettingFromUri(uri);
-        long startDate = WeatherContract.WeatherEntry.getStartDateFromUri(uri);
+    @Override
+    public int bulkInsert(Uri uri, ContentValues[] values) {
 
-        String[] selectionArgs;
-        String selection;
+        //determine type of request using uri matcher.
+        final int match = sUriMatcher.match(uri);
 
-        if (startDate == 0) {
-            selection = sLocationSettingSelection;
-            selectionArgs = new String[]{locationSetting};
+        switch (match) {
+            case WEATHER: {
+                final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+                int returnCount = 0;
+
+                // the statement is compiled for the columns of the first row. every row the
+                // FetchWeatherTask builds has the same columns, anything else falls back to insert.
+                String[] columns = null;
+                int dateIndex = -1;
+                SQLiteStatement insert = null;
+                Set<Long> locationIds = new HashSet<Long>();
+
+                // IMMEDIATE rather than EXCLUSIVE, readers carry on against the WAL meanwhile.
+                db.beginTransactionNonExclusive();
+                try {
+                    locationIds.addAll(unpackForecasts(db, values));
+                    for (ContentValues value : values) {
+                        if (insert == null) {
+                            columns = value.keySet().toArray(new String[value.size()]);
+                            Arrays.sort(columns);
+                            dateIndex = Arrays.binarySearch(columns,
+                                    WeatherContract.WeatherEntry.COLUMN_DATE);
+                            insert = db.compileStatement(buildInsertSql(
+                                    WeatherContract.WeatherEntry.TABLE_NAME,
+                                    toStoredColumns(columns)));
+                        }
+
+                        long _id;
+                        if (hasColumns(value, columns)) {
+                            _id = insertRow(insert, value, columns, dateIndex);
+                        } else {
+                            _id = db.insert(WeatherContract.WeatherEntry.TABLE_NAME, null,
+                                    toStoredValues(value));
+                        }
+                        if (_id != -1) {
+                            returnCount++;
+                            locationIds.add(
+                                    value.getAsLong(WeatherContract.WeatherEntry.COLUMN_LOC_KEY));
+                        }
+                    }
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                    if (insert != null) {
+                        insert.close();
+                    }
+                }
+
+                //send one notification per location of the batch, or unpacked by it.
+                if (!locationIds.isEmpty()) {
+                    notifyWeatherChange(getLocationSettings(db, locationIds));
+                }
+                return returnCount;
+            }
+            default:
+                return super.bulkInsert(uri, values);
+        }
+    }
+
+    // every column of a weather row, in the order insertForecast binds them.
+    private static final String[] FORECAST_COLUMNS = {
+            WeatherContract.WeatherEntry.COLUMN_LOC_KEY,
+            WeatherContract.WeatherEntry.COLUMN_DAY,
+            WeatherContract.WeatherEntry.COLUMN_MIN_TEMP,
+            WeatherContract.WeatherEntry.COLUMN_MAX_TEMP,
+            WeatherContract.WeatherEntry.COLUMN_HUMIDITY,
+            WeatherContract.WeatherEntry.COLUMN_PRESSURE,
+            WeatherContract.WeatherEntry.COLUMN_WIND_SPEED,
+            WeatherContract.WeatherEntry.COLUMN_DEGREES,
+            WeatherContract.WeatherEntry.COLUMN_WEATHER_ID,
+            WeatherContract.WeatherEntry.COLUMN_SHORT_DESC
+    };
+
+    private static final String sInsertForecastSql =
+            buildInsertSql(WeatherContract.WeatherEntry.TABLE_NAME, FORECAST_COLUMNS);
+
+    /**
+     * @param client a client of the weather uris. It has to be held, not released, for as long
+     *               as the provider is called directly.
+     * @return the provider behind the weather uris when it lives in this process, so it can be
+     * called directly, or null when it can only be reached through the resolver.
+     */
+    static WeatherProvider getLocalProvider(ContentProviderClient client) {
+        ContentProvider provider = client.getLocalContentProvider();
+        return provider instanceof WeatherProvider ? (WeatherProvider) provider : null;
+    }
+
+    /**
+     * Same as bulkInsert on the weather uri, binding the batch's arrays straight into the
+     * insert statement.
+     *
+     * @param batch the days to insert, with the location they belong to.
+     * @return number of rows inserted
+     */
+    public int bulkInsert(ForecastBatch batch) {
+        final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        int returnCount = 0;
+        boolean unpacked;
+
+        SQLiteStatement insert = db.compileStatement(sInsertForecastSql);
+        db.beginTransactionNonExclusive();
+        try {
+            unpacked = unpackForecast(db, batch.getLocationId());
+            for (int i = 0; i < batch.size(); i++) {
+                bindForecastRow(insert, batch, i);
+                if (executeInsert(insert, batch.getShortDesc(i)) != -1) {
+                    returnCount++;
+                }
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            insert.close();
+        }
+
+        //send one notification for the whole batch, to the location it belongs to.
+        if (returnCount > 0 || unpacked) {
+            notifyChange(getWeatherUri(db, batch.getLocationId(), null));
+        }
+        return returnCount;
+    }
+
+    private static void bindForecastRow(SQLiteStatement insert, ForecastBatch batch, int i) {
+        insert.bindLong(1, batch.getLocationId());
+        insert.bindLong(2, WeatherContract.dateToDay(batch.getDate(i)));
+        insert.bindLong(3, WeatherDbHelper.toFixedPoint(batch.getMinTemp(i)));
+        insert.bindLong(4, WeatherDbHelper.toFixedPoint(batch.getMaxTemp(i)));
+        insert.bindLong(5, WeatherDbHelper.toFixedPoint(batch.getHumidity(i)));
+        insert.bindLong(6, WeatherDbHelper.toFixedPoint(batch.getPressure(i)));
+        insert.bindLong(7, WeatherDbHelper.toFixedPoint(batch.getWindSpeed(i)));
+        insert.bindLong(8, WeatherDbHelper.toFixedPoint(batch.getDegrees(i)));
+        insert.bindLong(9, batch.getWeatherId(i));
+        if (batch.getShortDesc(i) == null) {
+            insert.bindNull(10);
         } else {
-            selectionArgs = new String[]{locationSetting, Long.toString(startDate)};
-            selection = sLocationSettingWithStartDateSelection;
+            insert.bindString(10, batch.getShortDesc(i));
         }
+    }
 
-        return sWeatherByLocationSettingQueryBuilder.query(mOpenHelper.getReadableDatabase(),
-                projection,
-                selection,
-                selectionArgs,
-                null,
-                null,
-                sortOrder
-        );
+    //packed_forecast.location_id = ?
+    private static final String sPackedLocationSelection =
+            WeatherContract.PackedForecastEntry.COLUMN_LOC_KEY + " = ?";
+
+    // the weather of a day, in the order of ForecastBatch.add, and the id of its row.
+    private static final String[] sForecastDayColumns = toStoredProjection(new String[]{
+            WeatherContract.WeatherEntry.COLUMN_DATE,
+            WeatherContract.WeatherEntry.COLUMN_MIN_TEMP,
+            WeatherContract.WeatherEntry.COLUMN_MAX_TEMP,
+            WeatherContract.WeatherEntry.COLUMN_HUMIDITY,
+            WeatherContract.WeatherEntry.COLUMN_PRESSURE,
+            WeatherContract.WeatherEntry.COLUMN_WIND_SPEED,
+            WeatherContract.WeatherEntry.COLUMN_DEGREES,
+            WeatherContract.WeatherEntry.COLUMN_WEATHER_ID,
+            WeatherContract.WeatherEntry.COLUMN_SHORT_DESC,
+            WeatherContract.WeatherEntry._ID
+    });
+
+    // an unpacked day goes back in with the row id it was packed with.
+    private static final String sUnpackForecastSql = buildUnpackForecastSql();
+
+    private static String buildUnpackForecastSql() {
+        String[] columns = Arrays.copyOf(FORECAST_COLUMNS, FORECAST_COLUMNS.length + 1);
+        columns[FORECAST_COLUMNS.length] = WeatherContract.WeatherEntry._ID;
+        return buildInsertSql(WeatherContract.WeatherEntry.TABLE_NAME, columns);
     }
 
     /**
-     * Executes a query for requesting weather for a specified location and date.
-     * Extracts query parameters from the uri.
+     * Same as {@link #insertPackedForecast(SQLiteDatabase, long, ForecastBatch)} for an insert
+     * on the packed_forecast uri.
      *
-     * @param uri the location and date are passed through this uri.
-     * @param projection the columns of data requested
-     * @param sortOrder order of the results
-     * @return a cursor containing the results.
+     * @param values the PackedForecastEntry.COLUMN_LOC_KEY and COLUMN_DAYS to write.
+     * @return the id of the location.
      */
-    private Cursor getWeatherByLocationSettingAndDate(
-            Uri uri, String[] projection, String sortOrder) {
-        String locationSetting = WeatherContract.WeatherEntry.getLocationSettingFromUri(uri);
-        long date = WeatherContract.WeatherEntry.getDateFromUri(uri);
+    private static long insertPackedForecast(SQLiteDatabase db, ContentValues values) {
+        Long locationId = values.getAsLong(WeatherContract.PackedForecastEntry.COLUMN_LOC_KEY);
+        byte[] packed = values.getAsByteArray(WeatherContract.PackedForecastEntry.COLUMN_DAYS);
+        if (locationId == null || packed == null) {
+            throw new IllegalArgumentException("A packed forecast needs a location and its " +
+                    "days: " + values);
+        }
+        insertPackedForecast(db, locationId, PackedForecast.unpack(packed, locationId));
+        return locationId;
+    }
 
-        return sWeatherByLocationSettingQueryBuilder.query(mOpenHelper.getReadableDatabase(),
-                projection,
-                sLocationSettingAndDaySelection,
-                new String[]{locationSetting, Long.toString(date)},
-                null,
-                null,
-                sortOrder
-        );
+    /**
+     * Writes the days of a location as its packed row, merged with the days already stored for
+     * it. Weather rows of the location are moved into the packed row with them, so a location
+     * has its days in one place only. In the usual case, a location already packed, that is a
+     * read and a write of one row. A day keeps the _id it had, as a row or packed, a new day
+     * gets one from the weather table's sequence.
+     *
+     * @param newDays the days to write.
+     * @return the UPSERT_INSERTED, UPSERT_UPDATED and UPSERT_UNCHANGED counts of the new days.
+     */
+    private static int[] insertPackedForecast(SQLiteDatabase db, long locationId,
+                                              ForecastBatch newDays) {
+        String[] args = {Long.toString(locationId)};
+        int[] counts = new int[3];
+
+        db.beginTransactionNonExclusive();
+        try {
+            ForecastBatch rows = new ForecastBatch();
+            Cursor cursor = db.query(WeatherContract.WeatherEntry.TABLE_NAME,
+                    sForecastDayColumns, sLocationKeySelection, args, null, null, null);
+            try {
+                while (cursor.moveToNext()) {
+                    rows.add(cursor.getLong(0), cursor.getDouble(1), cursor.getDouble(2),
+                            cursor.getInt(3), cursor.getDouble(4), cursor.getDouble(5),
+                            cursor.getDouble(6), cursor.getInt(7), cursor.getString(8));
+                    rows.setId(rows.size() - 1, cursor.getLong(9));
+                }
+            } finally {
+                cursor.close();
+            }
+            ForecastBatch stored = readPackedForecast(db, locationId);
+            ForecastBatch oldDays = PackedForecast.merge(rows,
+                    stored == null ? new ForecastBatch(0) : stored);
+
+            Map<Long, Integer> oldDayIndex = new HashMap<Long, Integer>();
+            for (int i = 0; i < oldDays.size(); i++) {
+                oldDayIndex.put(WeatherContract.dateToDay(oldDays.getDate(i)), i);
+            }
+            newDays = PackedForecast.merge(newDays);
+            int newDayCount = 0;
+            for (int i = 0; i < newDays.size(); i++) {
+                Integer old = oldDayIndex.get(WeatherContract.dateToDay(newDays.getDate(i)));
+                counts[old == null ? UPSERT_INSERTED : newDays.hasSameWeather(i, oldDays, old)
+                        ? UPSERT_UNCHANGED : UPSERT_UPDATED]++;
+                // ids the days came with are not trusted, they could be anyone's.
+                newDays.setId(i, old != null ? oldDays.getId(old) : 0);
+                if (old == null) {
+                    newDayCount++;
+                }
+            }
+            long nextId = newDayCount > 0 ? allocateWeatherIds(db, newDayCount) : 0;
+            for (int i = 0; i < newDays.size(); i++) {
+                if (newDays.getId(i) == 0) {
+                    newDays.setId(i, nextId++);
+                }
+            }
+
+            // weather rows are moved over even when no day changed.
+            if (counts[UPSERT_INSERTED] + counts[UPSERT_UPDATED] > 0 || rows.size() > 0) {
+                writePackedForecast(db, locationId, PackedForecast.merge(oldDays, newDays));
+            }
+            if (rows.size() > 0) {
+                db.delete(WeatherContract.WeatherEntry.TABLE_NAME, sLocationKeySelection, args);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        return counts;
     }
 
     /**
-     * Extracts date from contentvalues obj and normalizes date to db date class used
-     * ( Julian day at UTC.)
-     * @param values obj which the date is inside.
+     * Takes row ids for new packed days from the AUTOINCREMENT sequence of the weather table,
+     * so no weather row is ever given one of them and a day unpacked into a row keeps its id.
+     *
+     * @param count number of ids to take.
+     * @return the first of the ids, the others follow it.
      */
-    private void normalizeDate(ContentValues values) {
-        // normalize the date value
-        if (values.containsKey(WeatherContract.WeatherEntry.COLUMN_DATE)) {
-            long dateValue = values.getAsLong(WeatherContract.WeatherEntry.COLUMN_DATE);
-            values.put(WeatherContract.WeatherEntry.COLUMN_DATE, WeatherContract.normalizeDate(dateValue));
+    private static long allocateWeatherIds(SQLiteDatabase db, int count) {
+        String[] table = {WeatherContract.WeatherEntry.TABLE_NAME};
+        long last = DatabaseUtils.longForQuery(db, "SELECT IFNULL(MAX(seq), 0) FROM " +
+                SQLITE_SEQUENCE + " WHERE name = ?", table);
+        ContentValues sequence = new ContentValues();
+        sequence.put("seq", last + count);
+        if (db.update(SQLITE_SEQUENCE, sequence, "name = ?", table) == 0) {
+            sequence.put("name", WeatherContract.WeatherEntry.TABLE_NAME);
+            db.insert(SQLITE_SEQUENCE, null, sequence);
+        }
+        return last + 1;
+    }
+
+    private static final String SQLITE_SEQUENCE = "sqlite_sequence";
+
+    /**
+     * @return the packed days of a location, or null if it has no packed row.
+     */
+    private static ForecastBatch readPackedForecast(SQLiteDatabase db, long locationId) {
+        Cursor cursor = db.query(WeatherContract.PackedForecastEntry.TABLE_NAME,
+                new String[]{WeatherContract.PackedForecastEntry.COLUMN_DAYS},
+                sPackedLocationSelection, new String[]{Long.toString(locationId)},
+                null, null, null);
+        try {
+            return cursor.moveToFirst() ? PackedForecast.unpack(cursor.getBlob(0), locationId)
+                    : null;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Replaces the packed row of a location, or deletes it when there are no days left.
+     *
+     * @param days the days of the location, in date order.
+     */
+    private static void writePackedForecast(SQLiteDatabase db, long locationId,
+                                            ForecastBatch days) {
+        if (days.size() == 0) {
+            db.delete(WeatherContract.PackedForecastEntry.TABLE_NAME, sPackedLocationSelection,
+                    new String[]{Long.toString(locationId)});
+            return;
+        }
+        ContentValues row = new ContentValues();
+        row.put(WeatherContract.PackedForecastEntry.COLUMN_LOC_KEY, locationId);
+        row.put(WeatherContract.PackedForecastEntry.COLUMN_FIRST_DAY,
+                WeatherContract.dateToDay(days.getDate(0)));
+        row.put(WeatherContract.PackedForecastEntry.COLUMN_LAST_DAY,
+                WeatherContract.dateToDay(days.getDate(days.size() - 1)));
+        row.put(WeatherContract.PackedForecastEntry.COLUMN_DAYS, PackedForecast.pack(days));
+        db.insertWithOnConflict(WeatherContract.PackedForecastEntry.TABLE_NAME, null, row,
+                SQLiteDatabase.CONFLICT_REPLACE);
+    }
+
+    /**
+     * Moves the packed days of a location into the weather table, ahead of a write that works
+     * on weather rows. Runs in the transaction of the write, so a failed write leaves the days
+     * packed. The days keep their _id, the caller still notifies the weather of the location
+     * once it commits so the results cached for it are dropped.
+     *
+     * @param locationId the location, nothing is done for null or a location without a
+     *                   packed row.
+     * @return true if the location had a packed row.
+     */
+    private static boolean unpackForecast(SQLiteDatabase db, Long locationId) {
+        if (locationId == null) {
+            return false;
+        }
+        ForecastBatch days = readPackedForecast(db, locationId);
+        if (days == null) {
+            return false;
+        }
+        SQLiteStatement insert = db.compileStatement(sUnpackForecastSql);
+        try {
+            for (int i = 0; i < days.size(); i++) {
+                bindForecastRow(insert, days, i);
+                insert.bindLong(FORECAST_COLUMNS.length + 1, days.getId(i));
+                executeInsert(insert, days.getShortDesc(i));
+            }
+        } finally {
+            insert.close();
+        }
+        db.delete(WeatherContract.PackedForecastEntry.TABLE_NAME, sPackedLocationSelection,
+                new String[]{Long.toString(locationId)});
+        return true;
+    }
+
+    /**
+     * Unpacks the locations of the rows about to be written.
+     *
+     * @return the locations that had a packed row.
+     */
+    private static Set<Long> unpackForecasts(SQLiteDatabase db, ContentValues[] values) {
+        Set<Long> locationIds = new HashSet<Long>();
+        for (ContentValues value : values) {
+            locationIds.add(value.getAsLong(WeatherContract.WeatherEntry.COLUMN_LOC_KEY));
+        }
+        Set<Long> unpacked = new HashSet<Long>();
+        for (Long locationId : locationIds) {
+            if (unpackForecast(db, locationId)) {
+                unpacked.add(locationId);
+            }
+        }
+        return unpacked;
+    }
+
+    /**
+     * Unpacks the locations with packed days matching a selection of the weather uri, ahead of
+     * an update that can only be run against weather rows. Other locations stay packed.
+     *
+     * @return the locations unpacked.
+     */
+    private static Set<Long> unpackForecasts(SQLiteDatabase db, String selection,
+                                             String[] selectionArgs) {
+        Set<Long> unpacked = new HashSet<Long>();
+        for (Long locationId : queryPackedLocationIds(db, null, null)) {
+            if (!queryPackedDayIds(db, readPackedForecast(db, locationId), selection,
+                    selectionArgs).isEmpty()) {
+                unpackForecast(db, locationId);
+                unpacked.add(locationId);
+            }
+        }
+        return unpacked;
+    }
+
+    /**
+     * Deletes the packed days matching a selection of the weather uri, rewriting the packed
+     * rows that had some. Nothing is unpacked.
+     *
+     * @param locationIds receives the locations that lost days.
+     * @return number of days deleted.
+     */
+    private static int deletePackedDays(SQLiteDatabase db, String selection,
+                                        String[] selectionArgs, Set<Long> locationIds) {
+        int daysDeleted = 0;
+        for (Long locationId : queryPackedLocationIds(db, null, null)) {
+            ForecastBatch days = readPackedForecast(db, locationId);
+            Set<Long> deleted = queryPackedDayIds(db, days, selection, selectionArgs);
+            if (deleted.isEmpty()) {
+                continue;
+            }
+            ForecastBatch kept = new ForecastBatch(days.size());
+            for (int i = 0; i < days.size(); i++) {
+                if (!deleted.contains(days.getId(i))) {
+                    kept.add(days, i);
+                }
+            }
+            writePackedForecast(db, locationId, kept);
+            daysDeleted += deleted.size();
+            locationIds.add(locationId);
+        }
+        return daysDeleted;
+    }
+
+    /**
+     * Drops the packed days before the cutoff, rewriting the packed rows that have some.
+     *
+     * @param prunedLocationIds receives the locations that lost days.
+     * @return number of days dropped.
+     */
+    private static int prunePackedForecasts(SQLiteDatabase db, long cutoffDay,
+                                            Set<Long> prunedLocationIds) {
+        int daysDeleted = 0;
+        for (Long locationId : queryPackedLocationIds(db,
+                WeatherContract.PackedForecastEntry.COLUMN_FIRST_DAY + " < ?",
+                new String[]{Long.toString(cutoffDay)})) {
+            db.beginTransactionNonExclusive();
+            try {
+                ForecastBatch days = readPackedForecast(db, locationId);
+                ForecastBatch kept = new ForecastBatch(days.size());
+                for (int i = 0; i < days.size(); i++) {
+                    if (WeatherContract.dateToDay(days.getDate(i)) >= cutoffDay) {
+                        kept.add(days, i);
+                    }
+                }
+                writePackedForecast(db, locationId, kept);
+                db.setTransactionSuccessful();
+                daysDeleted += days.size() - kept.size();
+            } finally {
+                db.endTransaction();
+            }
+            prunedLocationIds.add(locationId);
+        }
+        return daysDeleted;
+    }
+
+    /**
+     * @return the locations of the packed rows matching the selection, null for all of them.
+     */
+    private static List<Long> queryPackedLocationIds(SQLiteDatabase db, String selection,
+                                                     String[] selectionArgs) {
+        List<Long> locationIds = new ArrayList<Long>();
+        Cursor cursor = db.query(WeatherContract.PackedForecastEntry.TABLE_NAME,
+                new String[]{WeatherContract.PackedForecastEntry.COLUMN_LOC_KEY},
+                selection, selectionArgs, null, null, null);
+        try {
+            while (cursor.moveToNext()) {
+                locationIds.add(cursor.getLong(0));
+            }
+        } finally {
+            cursor.close();
+        }
+        return locationIds;
+    }
+
+    /**
+     * Runs a selection of the weather uri against packed days, the way it runs against
+     * weather rows, through WeatherDbHelper.VIEW_WEATHER_DATES.
+     *
+     * @return the _id of the days it matches.
+     */
+    private static Set<Long> queryPackedDayIds(SQLiteDatabase db, ForecastBatch days,
+                                               String selection, String[] selectionArgs) {
+        Set<Long> ids = new HashSet<Long>();
+        if (days.size() == 0) {
+            return ids;
         }
+        Cursor cursor = db.rawQuery("SELECT " + WeatherContract.WeatherEntry._ID + " FROM (" +
+                WeatherDbHelper.buildWeatherDatesSql(buildPackedWeatherSql(days)) + ") WHERE " +
+                selection, selectionArgs);
+        try {
+            while (cursor.moveToNext()) {
+                ids.add(cursor.getLong(0));
+            }
+        } finally {
+            cursor.close();
+        }
+        return ids;
+    }
+
+    /**
+     * @return true if the packed_forecast table may have rows.
+     */
+    private synchronized boolean hasPackedForecasts() {
+        if (!mPackedForecastsChecked) {
+            mHasPackedForecasts = DatabaseUtils.queryNumEntries(
+                    mOpenHelper.getReadableDatabase(),
+                    WeatherContract.PackedForecastEntry.TABLE_NAME) > 0;
+            mPackedForecastsChecked = true;
+        }
+        return mHasPackedForecasts;
+    }
+
+    /**
+     * Called ahead of a write to the packed_forecast table.
+     */
+    private synchronized void setHasPackedForecasts() {
+        mHasPackedForecasts = true;
+        mPackedForecastsChecked = true;
+    }
+
+    /**
+     * @return the table a weather/* query of the location runs against: the weather table, or
+     * its packed days as a subquery named like it. The packed row is never unpacked by a read.
+     */
+    private String getWeatherTable(String locationSetting) {
+        if (!hasPackedForecasts()) {
+            return WeatherContract.WeatherEntry.TABLE_NAME;
+        }
+        long locationId = getLocationId(locationSetting);
+        ForecastBatch days = locationId == -1 ? null
+                : readPackedForecast(mOpenHelper.getReadableDatabase(), locationId);
+        if (days == null || days.size() == 0) {
+            return WeatherContract.WeatherEntry.TABLE_NAME;
+        }
+        return buildPackedWeatherSql(days) + " AS " + WeatherContract.WeatherEntry.TABLE_NAME;
+    }
+
+    // the columns of the weather table, in the order buildPackedWeatherSql selects them.
+    private static final String[] sPackedWeatherColumns = {
+            WeatherContract.WeatherEntry._ID,
+            WeatherContract.WeatherEntry.COLUMN_LOC_KEY,
+            WeatherContract.WeatherEntry.COLUMN_DAY,
+            WeatherContract.WeatherEntry.COLUMN_SHORT_DESC,
+            WeatherContract.WeatherEntry.COLUMN_WEATHER_ID,
+            WeatherContract.WeatherEntry.COLUMN_MIN_TEMP,
+            WeatherContract.WeatherEntry.COLUMN_MAX_TEMP,
+            WeatherContract.WeatherEntry.COLUMN_HUMIDITY,
+            WeatherContract.WeatherEntry.COLUMN_PRESSURE,
+            WeatherContract.WeatherEntry.COLUMN_WIND_SPEED,
+            WeatherContract.WeatherEntry.COLUMN_DEGREES
+    };
+
+    // most selects sqlite takes in one compound select, its SQLITE_MAX_COMPOUND_SELECT.
+    private static final int MAX_COMPOUND_SELECT = 500;
+
+    /**
+     * Builds "(SELECT 7 AS _id, 1 AS location_id, ... UNION ALL SELECT 8, 1, ...)", one select
+     * of literals per day, holding the days as the weather table stores them: fixed point
+     * measurements, day keys and row ids. A query runs against it the same as against the
+     * table, with the same selections, expressions, orders and _id.
+     *
+     * @param days at least one day.
+     */
+    static String buildPackedWeatherSql(ForecastBatch days) {
+        List<String> selects = new ArrayList<String>(days.size());
+        for (int i = 0; i < days.size(); i++) {
+            Object[] values = {
+                    days.getId(i),
+                    days.getLocationId(),
+                    WeatherContract.dateToDay(days.getDate(i)),
+                    DatabaseUtils.sqlEscapeString(days.getShortDesc(i)),
+                    days.getWeatherId(i),
+                    WeatherDbHelper.toFixedPoint(days.getMinTemp(i)),
+                    WeatherDbHelper.toFixedPoint(days.getMaxTemp(i)),
+                    WeatherDbHelper.toFixedPoint(days.getHumidity(i)),
+                    WeatherDbHelper.toFixedPoint(days.getPressure(i)),
+                    WeatherDbHelper.toFixedPoint(days.getWindSpeed(i)),
+                    WeatherDbHelper.toFixedPoint(days.getDegrees(i))
+            };
+            StringBuilder select = new StringBuilder("SELECT ");
+            for (int c = 0; c < values.length; c++) {
+                select.append(c > 0 ? ", " : "").append(values[c]);
+                // the first select names the columns.
+                if (i == 0) {
+                    select.append(" AS ").append(sPackedWeatherColumns[c]);
+                }
+            }
+            selects.add(select.toString());
+        }
+        // a long history is split into nested compound selects.
+        while (selects.size() > MAX_COMPOUND_SELECT) {
+            List<String> nested = new ArrayList<String>();
+            for (int i = 0; i < selects.size(); i += MAX_COMPOUND_SELECT) {
+                nested.add("SELECT * FROM " + joinUnionAll(selects.subList(i,
+                        Math.min(i + MAX_COMPOUND_SELECT, selects.size()))));
+            }
+            selects = nested;
+        }
+        return joinUnionAll(selects);
+    }
+
+    /**
+     * @return "(a UNION ALL b ...)"
+     */
+    private static String joinUnionAll(List<String> selects) {
+        StringBuilder sql = new StringBuilder("(");
+        for (int i = 0; i < selects.size(); i++) {
+            sql.append(i > 0 ? " UNION ALL " : "").append(selects.get(i));
+        }
+        return sql.append(")").toString();
+    }
+
+    // the columns of a weather row in the order the upsert statements number their
+    // parameters, the key last.
+    private static final String[] UPSERT_COLUMNS = {
+            WeatherContract.WeatherEntry.COLUMN_MIN_TEMP,
+            WeatherContract.WeatherEntry.COLUMN_MAX_TEMP,
+            WeatherContract.WeatherEntry.COLUMN_HUMIDITY,
+            WeatherContract.WeatherEntry.COLUMN_PRESSURE,
+            WeatherContract.WeatherEntry.COLUMN_WIND_SPEED,
+            WeatherContract.WeatherEntry.COLUMN_DEGREES,
+            WeatherContract.WeatherEntry.COLUMN_WEATHER_ID,
+            WeatherContract.WeatherEntry.COLUMN_SHORT_DESC,
+            WeatherContract.WeatherEntry.COLUMN_LOC_KEY,
+            WeatherContract.WeatherEntry.COLUMN_DAY
+    };
+
+    private static final int UPSERT_KEY_COLUMNS = 2;
+
+    // the keys of UPSERT_COLUMNS in a row's ContentValues, which carry the date.
+    private static final String[] UPSERT_VALUES_COLUMNS = toValuesColumns(UPSERT_COLUMNS);
+
+    private static final String sUpsertUpdateSql = buildUpsertUpdateSql();
+
+    // only run once sUpsertExistsSql found no stored day, so a failed constraint is an error.
+    private static final String sUpsertInsertSql = buildInsertSql(
+            WeatherContract.WeatherEntry.TABLE_NAME, UPSERT_COLUMNS);
+
+    private static final String sUpsertExistsSql =
+            "SELECT COUNT(*) FROM " + WeatherContract.WeatherEntry.TABLE_NAME +
+                    " WHERE " + WeatherContract.WeatherEntry.COLUMN_LOC_KEY + " = ? AND " +
+                    WeatherContract.WeatherEntry.COLUMN_DAY + " = ?";
+
+    private static final int UPSERT_INSERTED = 0;
+    private static final int UPSERT_UPDATED = 1;
+    private static final int UPSERT_UNCHANGED = 2;
+
+    /**
+     * Upserts the days of the batch in one transaction, updating days that are already stored
+     * in place so their row ids are kept, where {@link #bulkInsert(ForecastBatch)} replaces
+     * them.
+     *
+     * @return the WeatherContract.EXTRA_ROWS_INSERTED, _UPDATED and _UNCHANGED counts.
+     */
+    public Bundle upsert(ForecastBatch batch) {
+        final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        int[] counts = new int[3];
+        boolean unpacked;
+
+        SQLiteStatement update = db.compileStatement(sUpsertUpdateSql);
+        SQLiteStatement exists = db.compileStatement(sUpsertExistsSql);
+        SQLiteStatement insert = db.compileStatement(sUpsertInsertSql);
+        db.beginTransactionNonExclusive();
+        try {
+            unpacked = unpackForecast(db, batch.getLocationId());
+            for (int i = 0; i < batch.size(); i++) {
+                bindUpsertRow(update, batch, i);
+                bindUpsertRow(insert, batch, i);
+                exists.bindLong(1, batch.getLocationId());
+                exists.bindLong(2, WeatherContract.dateToDay(batch.getDate(i)));
+                counts[executeUpsert(update, exists, insert)]++;
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            update.close();
+            exists.close();
+            insert.close();
+        }
+
+        //rows left as they were change nothing an observer could see.
+        if (counts[UPSERT_INSERTED] + counts[UPSERT_UPDATED] > 0 || unpacked) {
+            notifyChange(getWeatherUri(db, batch.getLocationId(), null));
+        }
+        return buildUpsertResult(counts);
+    }
+
+    /**
+     * Upserts full weather rows, for METHOD_UPSERT_WEATHER.
+     *
+     * @return the WeatherContract.EXTRA_ROWS_INSERTED, _UPDATED and _UNCHANGED counts.
+     */
+    private Bundle upsert(ContentValues[] values) {
+        final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        int[] counts = new int[3];
+        Set<Long> locationIds = new HashSet<Long>();
+
+        SQLiteStatement update = db.compileStatement(sUpsertUpdateSql);
+        SQLiteStatement exists = db.compileStatement(sUpsertExistsSql);
+        SQLiteStatement insert = db.compileStatement(sUpsertInsertSql);
+        db.beginTransactionNonExclusive();
+        try {
+            locationIds.addAll(unpackForecasts(db, values));
+            for (ContentValues value : values) {
+                bindUpsertRow(update, value);
+                bindUpsertRow(insert, value);
+                exists.bindLong(1, value.getAsLong(WeatherContract.WeatherEntry.COLUMN_LOC_KEY));
+                exists.bindLong(2, WeatherContract.dateToDay(
+                        value.getAsLong(WeatherContract.WeatherEntry.COLUMN_DATE)));
+                int outcome = executeUpsert(update, exists, insert);
+                counts[outcome]++;
+                if (outcome != UPSERT_UNCHANGED) {
+                    locationIds.add(value.getAsLong(WeatherContract.WeatherEntry.COLUMN_LOC_KEY));
+                }
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            update.close();
+            exists.close();
+            insert.close();
+        }
+
+        if (!locationIds.isEmpty()) {
+            notifyWeatherChange(getLocationSettings(db, locationIds));
+        }
+        return buildUpsertResult(counts);
+    }
+
+    /**
+     * Stores a downloaded forecast in one transaction: its location, inserted if it is new, the
+     * http validators that came with it and its days. The days of a new location go in through
+     * {@link #bulkInsert(ForecastBatch)}, those of a stored one through
+     * {@link #upsert(ForecastBatch)} so days that did not change are left alone, and with
+     * packed storage they are merged into the location's packed row. Observers are notified
+     * once it is all committed, and nothing is written if any of it fails.
+     *
+     * @param location the LocationEntry values of the location: its setting, city and
+     *                 coordinates, and its etag and last modified when they changed. Only the
+     *                 validators are written for a location already stored.
+     * @param days the days to write, they get the id of the location.
+     * @param packed true to merge the days into the location's packed row.
+     * @return the id of the location in WeatherContract.EXTRA_LOCATION_ID, and the
+     * EXTRA_ROWS_INSERTED, _UPDATED and _UNCHANGED counts of the days.
+     */
+    public Bundle storeForecast(ContentValues location, ForecastBatch days, boolean packed) {
+        final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        String locationSetting =
+                location.getAsString(WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING);
+        Set<Uri> notifications = new HashSet<Uri>();
+        Bundle result;
+        boolean successful = false;
+
+        mBatchNotifications.set(notifications);
+        db.beginTransactionNonExclusive();
+        try {
+            long locationId = getLocationId(locationSetting);
+            boolean newLocation = locationId == -1;
+            if (newLocation) {
+                locationId = db.insert(WeatherContract.LocationEntry.TABLE_NAME, null, location);
+                if (locationId <= 0) {
+                    throw new android.database.SQLException("Failed to insert location " +
+                            locationSetting);
+                }
+                notifyChange(WeatherContract.LocationEntry.buildLocationUri(locationId));
+            } else {
+                ContentValues validators = new ContentValues();
+                for (String column : new String[]{WeatherContract.LocationEntry.COLUMN_ETAG,
+                        WeatherContract.LocationEntry.COLUMN_LAST_MODIFIED}) {
+                    if (location.containsKey(column)) {
+                        validators.put(column, location.getAsString(column));
+                    }
+                }
+                if (validators.size() > 0 && db.update(WeatherContract.LocationEntry.TABLE_NAME,
+                        validators, sLocationIdSelection,
+                        new String[]{Long.toString(locationId)}) > 0) {
+                    notifyChange(WeatherContract.LocationEntry.buildLocationUri(locationId));
+                }
+            }
+
+            days.setLocationId(locationId);
+            if (packed) {
+                setHasPackedForecasts();
+                int[] counts = insertPackedForecast(db, locationId, days);
+                if (counts[UPSERT_INSERTED] + counts[UPSERT_UPDATED] > 0) {
+                    notifyChange(getWeatherUri(db, locationId, null));
+                }
+                result = buildUpsertResult(counts);
+            } else if (newLocation) {
+                result = buildUpsertResult(new int[]{bulkInsert(days), 0, 0});
+            } else {
+                result = upsert(days);
+            }
+            result.putLong(WeatherContract.EXTRA_LOCATION_ID, locationId);
+            db.setTransactionSuccessful();
+            successful = true;
+        } finally {
+            db.endTransaction();
+            mBatchNotifications.remove();
+            if (successful) {
+                for (Uri uri : coalesceNotifications(notifications)) {
+                    sendNotification(uri);
+                }
+            } else {
+                //the id of a location inserted here may have been cached, it is gone now.
+                LocationIdCache.getInstance(getContext()).clear();
+            }
+        }
+        return result;
+    }
+
+    private static void bindUpsertRow(SQLiteStatement statement, ForecastBatch batch, int i) {
+        statement.bindLong(1, WeatherDbHelper.toFixedPoint(batch.getMinTemp(i)));
+        statement.bindLong(2, WeatherDbHelper.toFixedPoint(batch.getMaxTemp(i)));
+        statement.bindLong(3, WeatherDbHelper.toFixedPoint(batch.getHumidity(i)));
+        statement.bindLong(4, WeatherDbHelper.toFixedPoint(batch.getPressure(i)));
+        statement.bindLong(5, WeatherDbHelper.toFixedPoint(batch.getWindSpeed(i)));
+        statement.bindLong(6, WeatherDbHelper.toFixedPoint(batch.getDegrees(i)));
+        statement.bindLong(7, batch.getWeatherId(i));
+        if (batch.getShortDesc(i) == null) {
+            statement.bindNull(8);
+        } else {
+            statement.bindString(8, batch.getShortDesc(i));
+        }
+        statement.bindLong(9, batch.getLocationId());
+        statement.bindLong(10, WeatherContract.dateToDay(batch.getDate(i)));
+    }
+
+    private static void bindUpsertRow(SQLiteStatement statement, ContentValues values) {
+        String[] keys = UPSERT_VALUES_COLUMNS;
+        for (String key : keys) {
+            if (!values.containsKey(key)) {
+                throw new IllegalArgumentException("Upsert needs a full weather row, missing " +
+                        key + " in " + values);
+            }
+        }
+        for (int i = 0; i < keys.length - 1; i++) {
+            bindStoredValue(statement, i + 1, values, keys[i]);
+        }
+        statement.bindLong(keys.length, WeatherContract.dateToDay(
+                values.getAsLong(WeatherContract.WeatherEntry.COLUMN_DATE)));
+    }
+
+    /**
+     * Runs a row through the bound upsert statements. The update only matches a stored day
+     * whose values differ, when it matches nothing the day is either stored already with the
+     * same values or new, and only then inserted.
+     *
+     * @return UPSERT_INSERTED, UPSERT_UPDATED or UPSERT_UNCHANGED.
+     * @throws android.database.SQLException if the new day breaks a constraint of the table.
+     */
+    private static int executeUpsert(SQLiteStatement update, SQLiteStatement exists,
+                                     SQLiteStatement insert) {
+        if (update.executeUpdateDelete() > 0) {
+            return UPSERT_UPDATED;
+        }
+        if (exists.simpleQueryForLong() > 0) {
+            return UPSERT_UNCHANGED;
+        }
+        insert.executeInsert();
+        return UPSERT_INSERTED;
+    }
+
+    private static Bundle buildUpsertResult(int[] counts) {
+        Bundle result = new Bundle();
+        result.putInt(WeatherContract.EXTRA_ROWS_INSERTED, counts[UPSERT_INSERTED]);
+        result.putInt(WeatherContract.EXTRA_ROWS_UPDATED, counts[UPSERT_UPDATED]);
+        result.putInt(WeatherContract.EXTRA_ROWS_UNCHANGED, counts[UPSERT_UNCHANGED]);
+        return result;
+    }
+
+    /**
+     * Builds "UPDATE weather SET a = ?1, b = ?2 WHERE key = ?3 AND NOT (a IS ?1 AND b IS ?2)"
+     * for UPSERT_COLUMNS, so a day is only rewritten when one of its values changed.
+     */
+    private static String buildUpsertUpdateSql() {
+        int valueColumns = UPSERT_COLUMNS.length - UPSERT_KEY_COLUMNS;
+        StringBuilder set = new StringBuilder();
+        StringBuilder same = new StringBuilder();
+        for (int i = 0; i < valueColumns; i++) {
+            set.append(i > 0 ? ", " : "").append(UPSERT_COLUMNS[i]).append(" = ?").append(i + 1);
+            same.append(i > 0 ? " AND " : "").append(UPSERT_COLUMNS[i]).append(" IS ?")
+                    .append(i + 1);
+        }
+        StringBuilder key = new StringBuilder();
+        for (int i = valueColumns; i < UPSERT_COLUMNS.length; i++) {
+            key.append(i > valueColumns ? " AND " : "").append(UPSERT_COLUMNS[i]).append(" = ?")
+                    .append(i + 1);
+        }
+        return "UPDATE " + WeatherContract.WeatherEntry.TABLE_NAME + " SET " + set +
+                " WHERE " + key + " AND NOT (" + same + ")";
+    }
+
+    /**
+     * Builds "INSERT INTO table (a, b) VALUES (?, ?)" for the given columns.
+     */
+    private static String buildInsertSql(String table, String[] columns) {
+        StringBuilder sql = new StringBuilder("INSERT INTO ").append(table).append(" (");
+        for (int i = 0; i < columns.length; i++) {
+            sql.append(i > 0 ? ", " : "").append(columns[i]);
+        }
+        sql.append(") VALUES (");
+        for (int i = 0; i < columns.length; i++) {
+            sql.append(i > 0 ? ", ?" : "?");
+        }
+        return sql.append(")").toString();
+    }
+
+    /**
+     * @return true if values holds exactly the passed columns.
+     */
+    private static boolean hasColumns(ContentValues values, String[] columns) {
+        if (values.size() != columns.length) {
+            return false;
+        }
+        Set<String> keys = values.keySet();
+        for (String column : columns) {
+            if (!keys.contains(column)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Binds a row to the compiled insert statement and runs it. The date is turned into its day
+     * key and the measurements into fixed point here, once, instead of being written back into
+     * the ContentValues.
+     *
+     * @return the row id or -1 if the row was rejected.
+     */
+    private static long insertRow(SQLiteStatement insert, ContentValues values,
+                                  String[] columns, int dateIndex) {
+        insert.clearBindings();
+        for (int i = 0; i < columns.length; i++) {
+            if (i == dateIndex) {
+                insert.bindLong(i + 1, WeatherContract.dateToDay(
+                        values.getAsLong(WeatherContract.WeatherEntry.COLUMN_DATE)));
+            } else {
+                bindStoredValue(insert, i + 1, values, columns[i]);
+            }
+        }
+        return executeInsert(insert, values);
+    }
+
+    /**
+     * Binds the value of a column of a weather row as the table stores it.
+     */
+    private static void bindStoredValue(SQLiteStatement statement, int index,
+                                        ContentValues values, String column) {
+        Double fixedPointValue = WeatherDbHelper.isFixedPointColumn(column)
+                ? values.getAsDouble(column) : null;
+        if (fixedPointValue != null) {
+            statement.bindLong(index, WeatherDbHelper.toFixedPoint(fixedPointValue));
+        } else {
+            DatabaseUtils.bindObjectToProgram(statement, index, values.get(column));
+        }
+    }
+
+    /**
+     * Runs a bound insert. Same as SQLiteDatabase.insert, a bad row is logged and skipped.
+     *
+     * @param row what the statement was bound with, for the log.
+     * @return the row id or -1 if the row was rejected.
+     */
+    private static long executeInsert(SQLiteStatement insert, Object row) {
+        try {
+            return insert.executeInsert();
+        } catch (SQLiteConstraintException e) {
+            Log.e(LOG_TAG, "Error inserting " + row, e);
+            return -1;
+        }
+    }
+
+    /**
+     * @return the sql run for a weather/* query with the given selection, so tests can check
+     * its query plan.
+     */
+    static String buildWeatherByLocationSettingQuery(String[] projection, String selection,
+                                                     String sortOrder) {
+        return sWeatherByLocationSettingQueryBuilder.buildQuery(toJoinedProjection(projection),
+                selection, null, null, toStoredSortOrder(sortOrder), null);
+    }
+
+    /**
+     * Executes a query for requesting weather for a specified location.
+     *
+     * @param locationSetting the location the weather is requested for.
+     * @param startDate the first date requested, 0 for none.
+     * @param endDate the last date requested, 0 for none.
+     * @param projection the columns of data requested
+     * @param sortOrder order of the results
+     * @return a cursor containing the results.
+     */
+    private Cursor getWeatherByLocationSetting(String locationSetting, long startDate,
+                                               long endDate, String[] projection,
+                                               String sortOrder) {
+        // a range without a start runs from the first day there is.
+        String startDay = startDate == 0 && endDate != 0 ? Long.toString(Long.MIN_VALUE)
+                : Long.toString(WeatherContract.dateToDay(startDate));
+        String endDay = Long.toString(WeatherContract.dateToDay(endDate));
+        String weatherTable = getWeatherTable(locationSetting);
+
+        if (!needsLocationJoin(projection, sortOrder)) {
+            String locationId = Long.toString(getLocationId(locationSetting));
+            if (endDate != 0) {
+                return queryWeatherByLocationId(weatherTable, projection,
+                        sLocationKeyWithDateRangeSelection,
+                        new String[]{locationId, startDay, endDay}, sortOrder);
+            }
+            if (startDate == 0) {
+                return queryWeatherByLocationId(weatherTable, projection, sLocationKeySelection,
+                        new String[]{locationId}, sortOrder);
+            }
+            return queryWeatherByLocationId(weatherTable, projection,
+                    sLocationKeyWithStartDateSelection, new String[]{locationId, startDay},
+                    sortOrder);
+        }
+
+        String[] selectionArgs;
+        String selection;
+
+        if (endDate != 0) {
+            selectionArgs = new String[]{locationSetting, startDay, endDay};
+            selection = sLocationSettingWithDateRangeSelection;
+        } else if (startDate == 0) {
+            selection = sLocationSettingSelection;
+            selectionArgs = new String[]{locationSetting};
+        } else {
+            selectionArgs = new String[]{locationSetting, startDay};
+            selection = sLocationSettingWithStartDateSelection;
+        }
+
+        return getWeatherByLocationSettingQueryBuilder(weatherTable).query(
+                mOpenHelper.getReadableDatabase(),
+                toJoinedProjection(projection),
+                selection,
+                selectionArgs,
+                null,
+                null,
+                toStoredSortOrder(sortOrder)
+        );
+    }
+
+    /**
+     * Executes a query for requesting weather for a specified location and date.
+     *
+     * @param locationSetting the location the weather is requested for.
+     * @param date the date requested.
+     * @param projection the columns of data requested
+     * @param sortOrder order of the results
+     * @return a cursor containing the results.
+     */
+    private Cursor getWeatherByLocationSettingAndDate(
+            String locationSetting, long date, String[] projection, String sortOrder) {
+        String day = Long.toString(WeatherContract.dateToDay(date));
+        String weatherTable = getWeatherTable(locationSetting);
+
+        if (!needsLocationJoin(projection, sortOrder)) {
+            return queryWeatherByLocationId(weatherTable, projection, sLocationKeyAndDaySelection,
+                    new String[]{Long.toString(getLocationId(locationSetting)), day},
+                    sortOrder);
+        }
+
+        return getWeatherByLocationSettingQueryBuilder(weatherTable).query(
+                mOpenHelper.getReadableDatabase(),
+                toJoinedProjection(projection),
+                sLocationSettingAndDaySelection,
+                new String[]{locationSetting, day},
+                null,
+                null,
+                toStoredSortOrder(sortOrder)
+        );
+    }
+
+    /**
+     * Same as a query on a weather/location uri, without building and matching one. The
+     * cursor is not registered for notifications.
+     *
+     * @param startDate the first date requested, 0 for none.
+     * @param endDate the last date requested, 0 for none.
+     */
+    Cursor queryWeather(String locationSetting, long startDate, long endDate,
+                        String[] projection, String sortOrder) {
+        return queryWeatherCached(locationSetting, startDate, endDate, false, projection,
+                sortOrder);
+    }
+
+    /**
+     * Same as a query on a weather/location/date uri, without building and matching one. The
+     * cursor is not registered for notifications.
+     */
+    Cursor queryWeatherDay(String locationSetting, long date, String[] projection,
+                           String sortOrder) {
+        return queryWeatherCached(locationSetting, date, 0, true, projection, sortOrder);
+    }
+
+    /**
+     * Runs a query for the weather of a location, or of one of its days, through the query
+     * result cache.
+     *
+     * @param singleDay true for a weather/location/date uri, false for a weather/location one.
+     */
+    private Cursor queryWeatherCached(String locationSetting, long date, long endDate,
+                                      boolean singleDay, String[] projection,
+                                      String sortOrder) {
+        String key = QueryResultCache.buildKey(locationSetting, date, endDate, singleDay,
+                projection, sortOrder);
+
+        Cursor cached = mQueryCache.get(key);
+        if (cached != null) {
+            return cached;
+        }
+        int generation = mQueryCache.getGeneration();
+        Cursor cursor = singleDay
+                ? getWeatherByLocationSettingAndDate(locationSetting, date, projection,
+                        sortOrder)
+                : getWeatherByLocationSetting(locationSetting, date, endDate, projection,
+                        sortOrder);
+        return mQueryCache.put(key, locationSetting, date, endDate, singleDay, cursor,
+                generation);
+    }
+
+    private static SQLiteQueryBuilder getWeatherByLocationSettingQueryBuilder(
+            String weatherTable) {
+        return WeatherContract.WeatherEntry.TABLE_NAME.equals(weatherTable)
+                ? sWeatherByLocationSettingQueryBuilder
+                : buildWeatherByLocationSettingQueryBuilder(weatherTable);
+    }
+
+    /**
+     * @param weatherTable from {@link #getWeatherTable}.
+     */
+    private Cursor queryWeatherByLocationId(String weatherTable, String[] projection,
+                                            String selection, String[] selectionArgs,
+                                            String sortOrder) {
+        return mOpenHelper.getReadableDatabase().query(
+                weatherTable,
+                toStoredProjection(projection),
+                selection,
+                selectionArgs,
+                null,
+                null,
+                toStoredSortOrder(sortOrder)
+        );
+    }
+
+    /**
+     * @return false if the projection and sort order only name weather columns, so the query
+     * can skip the join with the location table. A null projection asks for every column of
+     * both tables.
+     */
+    static boolean needsLocationJoin(String[] projection, String sortOrder) {
+        if (projection == null) {
+            return true;
+        }
+        for (String column : projection) {
+            if (isLocationColumn(column)) {
+                return true;
+            }
+        }
+        return sortOrder != null && isLocationColumn(sortOrder);
+    }
+
+    /**
+     * @param sql a projection column or sort order, which may be an expression.
+     * @return true if one of the names in sql is a location column. Names are compared whole,
+     * a weather column or alias that merely contains a location column's name does not count.
+     */
+    private static boolean isLocationColumn(String sql) {
+        String locationPrefix = WeatherContract.LocationEntry.TABLE_NAME + ".";
+        String weatherPrefix = WeatherContract.WeatherEntry.TABLE_NAME + ".";
+        for (String name : sql.split("[^A-Za-z0-9_.]+")) {
+            if (name.regionMatches(true, 0, locationPrefix, 0, locationPrefix.length())) {
+                return true;
+            }
+            if (name.regionMatches(true, 0, weatherPrefix, 0, weatherPrefix.length())) {
+                name = name.substring(weatherPrefix.length());
+            }
+            for (String locationColumn : sLocationOnlyColumns) {
+                if (locationColumn.equalsIgnoreCase(name)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Notifies observers of uri, or holds the notification back until the batch the calling
+     * thread applies is committed.
+     */
+    private void notifyChange(Uri uri) {
+        Set<Uri> batch = mBatchNotifications.get();
+        if (batch != null) {
+            batch.add(uri);
+        } else {
+            sendNotification(uri);
+        }
+    }
+
+    /**
+     * Notifies observers of a committed change, after dropping the cached query results it
+     * may have changed.
+     */
+    private void sendNotification(Uri uri) {
+        switch (sUriMatcher.match(uri)) {
+            case WEATHER_WITH_LOCATION_AND_DATE:
+                mQueryCache.invalidate(WeatherContract.WeatherEntry.getLocationSettingFromUri(uri),
+                        WeatherContract.WeatherEntry.getDateFromUri(uri));
+                break;
+            case WEATHER_WITH_LOCATION:
+                mQueryCache.invalidate(
+                        WeatherContract.WeatherEntry.getLocationSettingFromUri(uri), 0);
+                break;
+            case LOCATION_WITH_ID:
+                //the weather of the location is cached joined with its row. only a row whose
+                //setting stays the same notifies its own uri, update() notifies the weather of
+                //the old and the new setting of a renamed row itself.
+                for (String locationSetting : queryLocationSettings(
+                        mOpenHelper.getReadableDatabase(), uri.getLastPathSegment(), null)) {
+                    mQueryCache.invalidate(locationSetting, 0);
+                }
+                break;
+            default:
+                mQueryCache.clear();
+        }
+        getContext().getContentResolver().notifyChange(uri, null);
+    }
+
+    /**
+     * Merges the notifications of a batch. Several days of the same location become one
+     * notification of the location, and a uri is dropped when one of its ancestors is notified,
+     * which reaches its observers already.
+     *
+     * @return the uris to notify.
+     */
+    static Set<Uri> coalesceNotifications(Set<Uri> uris) {
+        Map<Uri, Integer> daysPerLocation = new HashMap<Uri, Integer>();
+        for (Uri uri : uris) {
+            Uri location = getDayLocation(uri);
+            if (location != null) {
+                Integer days = daysPerLocation.get(location);
+                daysPerLocation.put(location, days == null ? 1 : days + 1);
+            }
+        }
+        Set<Uri> merged = new HashSet<Uri>();
+        for (Uri uri : uris) {
+            Uri location = getDayLocation(uri);
+            merged.add(location != null && daysPerLocation.get(location) > 1 ? location : uri);
+        }
+
+        Set<Uri> coalesced = new HashSet<Uri>();
+        for (Uri uri : merged) {
+            boolean covered = false;
+            for (Uri other : merged) {
+                if (!other.equals(uri) && isAncestor(other, uri)) {
+                    covered = true;
+                    break;
+                }
+            }
+            if (!covered) {
+                coalesced.add(uri);
+            }
+        }
+        return coalesced;
+    }
+
+    /**
+     * @return the weather uri of the location of a weather/location/date uri, null for any
+     * other uri.
+     */
+    private static Uri getDayLocation(Uri uri) {
+        if (sUriMatcher.match(uri) != WEATHER_WITH_LOCATION_AND_DATE) {
+            return null;
+        }
+        return WeatherContract.WeatherEntry.buildWeatherLocation(
+                WeatherContract.WeatherEntry.getLocationSettingFromUri(uri));
+    }
+
+    /**
+     * @return true if the path of descendant starts with every segment of ancestor.
+     */
+    private static boolean isAncestor(Uri ancestor, Uri descendant) {
+        if (!ancestor.getAuthority().equals(descendant.getAuthority())) {
+            return false;
+        }
+        List<String> ancestorPath = ancestor.getPathSegments();
+        List<String> descendantPath = descendant.getPathSegments();
+        return ancestorPath.size() < descendantPath.size()
+                && descendantPath.subList(0, ancestorPath.size()).equals(ancestorPath);
+    }
+
+    /**
+     * Tells the observers of the weather of each location that it changed. Observers of
+     * another location, or of another day of these, are left alone.
+     *
+     * @param locationSettings the locations whose weather rows changed.
+     */
+    private void notifyWeatherChange(Set<String> locationSettings) {
+        if (locationSettings.isEmpty()) {
+            //rows without a location row, nothing narrower to notify.
+            notifyChange(WeatherContract.WeatherEntry.CONTENT_URI);
+            return;
+        }
+        for (String locationSetting : locationSettings) {
+            notifyChange(WeatherContract.WeatherEntry.buildWeatherLocation(locationSetting));
+        }
+    }
+
+    /**
+     * @return true if an update with these values may change which setting maps to which id.
+     */
+    private static boolean remapsLocation(ContentValues values) {
+        return values.containsKey(WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING)
+                || values.containsKey(WeatherContract.LocationEntry._ID);
+    }
+
+    /**
+     * Notifies a change of the location table. The cache of location ids in this process is
+     * emptied first, its observer is only called back some time after notifyChange.
+     */
+    private void notifyLocationChange(Uri uri) {
+        LocationIdCache.getInstance(getContext()).clear();
+        notifyChange(uri);
+    }
+
+    /**
+     * @param locationId row id in the location table.
+     * @param date normalized date of the day, or null for every day of the location.
+     * @return the narrowest weather uri covering the row(s), the weather table itself if the
+     * location has no row.
+     */
+    private static Uri getWeatherUri(SQLiteDatabase db, Long locationId, Long date) {
+        if (locationId == null) {
+            return WeatherContract.WeatherEntry.CONTENT_URI;
+        }
+        Set<String> locationSettings = queryLocationSettings(db, Long.toString(locationId), null);
+        if (locationSettings.isEmpty()) {
+            return WeatherContract.WeatherEntry.CONTENT_URI;
+        }
+        String locationSetting = locationSettings.iterator().next();
+        return date == null ? WeatherContract.WeatherEntry.buildWeatherLocation(locationSetting)
+                : WeatherContract.WeatherEntry.buildWeatherLocationWithDate(locationSetting, date);
+    }
+
+    /**
+     * @return the settings of the given location row ids, ids without a row are left out.
+     */
+    private static Set<String> getLocationSettings(SQLiteDatabase db, Set<Long> locationIds) {
+        StringBuilder ids = new StringBuilder();
+        for (Long locationId : locationIds) {
+            if (locationId == null) {
+                continue;
+            }
+            if (ids.length() > 0) {
+                ids.append(',');
+            }
+            ids.append(locationId.longValue());
+        }
+        if (ids.length() == 0) {
+            return new HashSet<String>();
+        }
+        return queryLocationSettings(db, ids.toString(), null);
+    }
+
+    /**
+     * @return the settings of the locations the weather rows matching the selection belong to.
+     */
+    private static Set<String> queryWeatherLocationSettings(SQLiteDatabase db, String selection,
+                                                            String[] selectionArgs) {
+        return queryLocationSettings(db, "SELECT " + WeatherContract.WeatherEntry.COLUMN_LOC_KEY +
+                " FROM " + WeatherDbHelper.VIEW_WEATHER_DATES + " WHERE " + selection,
+                selectionArgs);
+    }
+
+    /**
+     * @param locationIds a list of ids, or a query returning them.
+     * @return the location settings of the location rows with those ids.
+     */
+    private static Set<String> queryLocationSettings(SQLiteDatabase db, String locationIds,
+                                                     String[] selectionArgs) {
+        Set<String> locationSettings = new HashSet<String>();
+        Cursor cursor = db.rawQuery("SELECT " +
+                WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " FROM " +
+                WeatherContract.LocationEntry.TABLE_NAME + " WHERE " +
+                WeatherContract.LocationEntry._ID + " IN (" + locationIds + ")", selectionArgs);
+        try {
+            while (cursor.moveToNext()) {
+                locationSettings.add(cursor.getString(0));
+            }
+        } finally {
+            cursor.close();
+        }
+        return locationSettings;
+    }
+
+    /**
+     * Looks the row id of a location setting up, through the same cache FetchWeatherTask fills.
+     *
+     * @return the id, or -1 if there is no such location.
+     */
+    long getLocationId(String locationSetting) {
+        LocationIdCache idCache = LocationIdCache.getInstance(getContext());
+        long locationId = idCache.getId(locationSetting);
+        if (locationId != -1) {
+            return locationId;
+        }
+
+        int generation = idCache.getGeneration();
+        Cursor locationCursor = mOpenHelper.getReadableDatabase().query(
+                WeatherContract.LocationEntry.TABLE_NAME,
+                new String[]{WeatherContract.LocationEntry._ID},
+                WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ?",
+                new String[]{locationSetting},
+                null,
+                null,
+                null);
+        try {
+            if (locationCursor.moveToFirst()) {
+                locationId = locationCursor.getLong(0);
+                idCache.put(locationSetting, locationId, generation);
+            }
+        } finally {
+            locationCursor.close();
+        }
+        return locationId;
+    }
+
+    private static final String sInsertLocationSql = buildInsertSql(
+            WeatherContract.LocationEntry.TABLE_NAME, new String[]{
+                    WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING,
+                    WeatherContract.LocationEntry.COLUMN_CITY_NAME,
+                    WeatherContract.LocationEntry.COLUMN_COORD_LAT,
+                    WeatherContract.LocationEntry.COLUMN_COORD_LONG
+            });
+
+    /**
+     * Same as an insert on the location uri, binding the values straight into the insert
+     * statement.
+     *
+     * @return the row id of the new location.
+     */
+    long insertLocation(String locationSetting, String cityName, double lat, double lon) {
+        SQLiteStatement insert =
+                mOpenHelper.getWritableDatabase().compileStatement(sInsertLocationSql);
+        long _id;
+        try {
+            insert.bindString(1, locationSetting);
+            insert.bindString(2, cityName);
+            insert.bindDouble(3, lat);
+            insert.bindDouble(4, lon);
+            _id = insert.executeInsert();
+        } finally {
+            insert.close();
+        }
+        if (_id <= 0) {
+            throw new android.database.SQLException("Failed to insert location " +
+                    locationSetting);
+        }
+
+        //a new location only changes its own row, like an insert on the location uri.
+        notifyChange(WeatherContract.LocationEntry.buildLocationUri(_id));
+        return _id;
+    }
+
+    /**
+     * Turns the values of a weather row, as the contract describes it, into the values the
+     * table stores. The date becomes its day key and the measurements fixed point.
+     *
+     * @param values obj which the date is inside, left as it is.
+     * @return the values to write to the table.
+     */
+    static ContentValues toStoredValues(ContentValues values) {
+        ContentValues storedValues = new ContentValues(values);
+        if (values.containsKey(WeatherContract.WeatherEntry.COLUMN_DATE)) {
+            storedValues.remove(WeatherContract.WeatherEntry.COLUMN_DATE);
+            storedValues.put(WeatherContract.WeatherEntry.COLUMN_DAY, WeatherContract.dateToDay(
+                    values.getAsLong(WeatherContract.WeatherEntry.COLUMN_DATE)));
+        }
+        for (String column : WeatherDbHelper.FIXED_POINT_COLUMNS) {
+            Double value = values.getAsDouble(column);
+            if (value != null) {
+                storedValues.put(column, WeatherDbHelper.toFixedPoint(value));
+            }
+        }
+        return storedValues;
+    }
+
+    /**
+     * @return the columns with the date replaced by the day key the table stores.
+     */
+    private static String[] toStoredColumns(String[] columns) {
+        return replaceColumn(columns, WeatherContract.WeatherEntry.COLUMN_DATE,
+                WeatherContract.WeatherEntry.COLUMN_DAY);
+    }
+
+    /**
+     * @return the columns with the day key replaced by the date the ContentValues carry.
+     */
+    private static String[] toValuesColumns(String[] columns) {
+        return replaceColumn(columns, WeatherContract.WeatherEntry.COLUMN_DAY,
+                WeatherContract.WeatherEntry.COLUMN_DATE);
+    }
+
+    private static String[] replaceColumn(String[] columns, String column, String replacement) {
+        String[] replaced = columns.clone();
+        for (int i = 0; i < replaced.length; i++) {
+            if (column.equals(replaced[i])) {
+                replaced[i] = replacement;
+            }
+        }
+        return replaced;
+    }
+
+    /**
+     * @return the projection of a weather/* query against the table, with the date worked out
+     * from the day key and the measurements scaled back from fixed point. A null projection
+     * gets every weather column.
+     */
+    static String[] toStoredProjection(String[] projection) {
+        if (projection == null) {
+            return sAllWeatherColumns.clone();
+        }
+        String weatherPrefix = WeatherContract.WeatherEntry.TABLE_NAME + ".";
+        String[] stored = projection.clone();
+        for (int i = 0; i < stored.length; i++) {
+            String column = stored[i].startsWith(weatherPrefix)
+                    ? stored[i].substring(weatherPrefix.length()) : stored[i];
+            if (WeatherContract.WeatherEntry.COLUMN_DATE.equals(column)) {
+                stored[i] = sDateOfDayColumn;
+            } else if (WeatherDbHelper.isFixedPointColumn(column)) {
+                stored[i] = WeatherDbHelper.buildFixedPointValueSql(column) + " AS " + column;
+            }
+        }
+        return stored;
+    }
+
+    /**
+     * Same as {@link #toStoredProjection} for a query joined with the location table, where a
+     * null projection also gets every location column.
+     */
+    static String[] toJoinedProjection(String[] projection) {
+        if (projection == null) {
+            String[] joined = Arrays.copyOf(sAllWeatherColumns, sAllWeatherColumns.length + 1);
+            joined[sAllWeatherColumns.length] = WeatherContract.LocationEntry.TABLE_NAME + ".*";
+            return joined;
+        }
+        return toStoredProjection(projection);
+    }
+
+    /**
+     * @return the sort order of a weather/* query with the date replaced by the day key, which
+     * sorts the same and lets the index give the rows in order.
+     */
+    static String toStoredSortOrder(String sortOrder) {
+        if (sortOrder == null) {
+            return null;
+        }
+        return sDateColumnPattern.matcher(sortOrder)
+                .replaceAll(WeatherContract.WeatherEntry.COLUMN_DAY);
+    }
+
+    /**
+     * @param selection written against the weather table with dates, see
+     *                  WeatherDbHelper.VIEW_WEATHER_DATES.
+     * @return a selection of the same rows to run against the table itself.
+     */
+    private static String selectByDates(String selection) {
+        return WeatherContract.WeatherEntry._ID + " IN (SELECT " +
+                WeatherContract.WeatherEntry._ID + " FROM " + WeatherDbHelper.VIEW_WEATHER_DATES +
+                " WHERE " + selection + ")";
     }
 }
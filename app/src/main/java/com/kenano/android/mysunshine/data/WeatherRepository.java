@@ -0,0 +1,249 @@
+package com.kenano.android.mysunshine.data;
+
+import android.content.ContentProviderClient;
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Bundle;
+
+/**
+ * Typed access to the weather data for code running in the app's own process.
+ *
+ * When the provider lives in this process the calls go straight to its methods, without
+ * building a uri, matching it and parsing the location and dates back out of it, and without
+ * ContentValues. The provider still does the work, so its query cache, its notifications and
+ * LocationIdCache behave as if the resolver had been used. Other processes keep using the
+ * uris, and without a provider in this process every call goes through the resolver.
+ */
+public class WeatherRepository {
+
+    private static WeatherRepository sInstance;
+
+    private final ContentResolver mResolver;
+    private final LocationIdCache mIdCache;
+
+    // null when the provider can only be reached through the resolver.
+    private final WeatherProvider mProvider;
+
+    // acquired with mProvider and never released, it keeps the provider up for as long as
+    // the repository calls it.
+    private final ContentProviderClient mClient;
+
+    /**
+     * @return the repository shared by the whole process.
+     */
+    public static synchronized WeatherRepository getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new WeatherRepository(context.getApplicationContext(), true);
+        }
+        return sInstance;
+    }
+
+    /**
+     * @param direct false to go through the resolver even when the provider lives in this
+     *               process, to compare the two.
+     */
+    WeatherRepository(Context context, boolean direct) {
+        mResolver = context.getContentResolver();
+        mIdCache = LocationIdCache.getInstance(context);
+        ContentProviderClient client = direct
+                ? mResolver.acquireContentProviderClient(WeatherContract.WeatherEntry.CONTENT_URI)
+                : null;
+        WeatherProvider provider = null;
+        if (client != null) {
+            provider = WeatherProvider.getLocalProvider(client);
+            if (provider == null) {
+                client.release();
+                client = null;
+            }
+        }
+        mProvider = provider;
+        mClient = client;
+    }
+
+    /**
+     * @return true if the calls go straight to the provider.
+     */
+    public boolean isDirect() {
+        return mProvider != null;
+    }
+
+    /**
+     * Looks the row id of a location up, in the cache first and then in the provider.
+     *
+     * @param locationSetting The location string used to request updates from the server.
+     * @return the row ID of the location, or -1 if it is not stored.
+     */
+    public long findLocationId(String locationSetting) {
+        // The id of a setting hardly ever changes, once it is known it is reused without
+        // asking the provider until the location table is deleted from.
+        long locationId = mIdCache.getId(locationSetting);
+        if (locationId != -1) {
+            return locationId;
+        }
+        if (mProvider != null) {
+            // fills the cache itself.
+            return mProvider.getLocationId(locationSetting);
+        }
+        int generation = mIdCache.getGeneration();
+
+        Cursor locationCursor = mResolver.query(
+                WeatherContract.LocationEntry.CONTENT_URI,
+                new String[]{WeatherContract.LocationEntry._ID},
+                WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ?",
+                new String[]{locationSetting},
+                null);
+        try {
+            if (locationCursor.moveToFirst()) {
+                locationId = locationCursor.getLong(0);
+                mIdCache.put(locationSetting, locationId, generation);
+            }
+        } finally {
+            locationCursor.close();
+        }
+        return locationId;
+    }
+
+    /**
+     * Inserts a location, unless it is stored already.
+     *
+     * @param locationSetting The location string used to request updates from the server.
+     * @param cityName A human-readable city name, e.g "Mountain View"
+     * @param lat the latitude of the city
+     * @param lon the longitude of the city
+     * @return the row ID of the location.
+     */
+    public long addLocation(String locationSetting, String cityName, double lat, double lon) {
+        int generation = mIdCache.getGeneration();
+        long locationId = findLocationId(locationSetting);
+        if (locationId != -1) {
+            return locationId;
+        }
+
+        if (mProvider != null) {
+            locationId = mProvider.insertLocation(locationSetting, cityName, lat, lon);
+        } else {
+            ContentValues locationValues = new ContentValues();
+            locationValues.put(WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING,
+                    locationSetting);
+            locationValues.put(WeatherContract.LocationEntry.COLUMN_CITY_NAME, cityName);
+            locationValues.put(WeatherContract.LocationEntry.COLUMN_COORD_LAT, lat);
+            locationValues.put(WeatherContract.LocationEntry.COLUMN_COORD_LONG, lon);
+            Uri insertedUri = mResolver.insert(WeatherContract.LocationEntry.CONTENT_URI,
+                    locationValues);
+            locationId = ContentUris.parseId(insertedUri);
+        }
+        mIdCache.put(locationSetting, locationId, generation);
+        return locationId;
+    }
+
+    /**
+     * Writes the days of a forecast, like bulkInsert on the weather uri.
+     *
+     * @param batch the days to insert, with the location they belong to.
+     * @return number of rows inserted
+     */
+    public int insertForecast(ForecastBatch batch) {
+        if (mProvider != null) {
+            return mProvider.bulkInsert(batch);
+        }
+        return mResolver.bulkInsert(WeatherContract.WeatherEntry.CONTENT_URI,
+                batch.toContentValues());
+    }
+
+    /**
+     * Writes the days of a forecast, updating the ones already stored in place, like
+     * METHOD_UPSERT_WEATHER. Days whose weather is the same as the stored one are not written.
+     *
+     * @param batch the days to write, with the location they belong to.
+     * @return the WeatherContract.EXTRA_ROWS_INSERTED, _UPDATED and _UNCHANGED counts.
+     */
+    public Bundle upsertForecast(ForecastBatch batch) {
+        if (mProvider != null) {
+            return mProvider.upsert(batch);
+        }
+        Bundle extras = new Bundle();
+        extras.putBundle(WeatherContract.EXTRA_FORECAST, batch.toBundle());
+        return mResolver.call(WeatherContract.BASE_CONTENT_URI,
+                WeatherContract.METHOD_UPSERT_WEATHER, null, extras);
+    }
+
+    /**
+     * Stores a downloaded forecast with its location in one transaction, like
+     * METHOD_STORE_FORECAST.
+     *
+     * @param location the LocationEntry values of the location, with its setting. Only the
+     *                 etag and last modified are written if the location is stored already.
+     * @param days the days to write.
+     * @param packed true to write the days as the location's packed row.
+     * @return the WeatherContract.EXTRA_LOCATION_ID and the EXTRA_ROWS_INSERTED, _UPDATED and
+     * _UNCHANGED counts of the days.
+     */
+    public Bundle storeForecast(ContentValues location, ForecastBatch days, boolean packed) {
+        int generation = mIdCache.getGeneration();
+        Bundle result;
+        if (mProvider != null) {
+            result = mProvider.storeForecast(location, days, packed);
+        } else {
+            Bundle extras = new Bundle();
+            extras.putParcelable(WeatherContract.EXTRA_LOCATION, location);
+            extras.putBundle(WeatherContract.EXTRA_FORECAST, days.toBundle());
+            extras.putBoolean(WeatherContract.EXTRA_PACKED, packed);
+            result = mResolver.call(WeatherContract.BASE_CONTENT_URI,
+                    WeatherContract.METHOD_STORE_FORECAST, null, extras);
+        }
+        mIdCache.put(location.getAsString(WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING),
+                result.getLong(WeatherContract.EXTRA_LOCATION_ID), generation);
+        return result;
+    }
+
+    /**
+     * Reads the weather of a location, like a query on its weather uri. The cursor is
+     * registered for changes to the location's weather.
+     *
+     * @param startDate the first date to read, 0 for none.
+     * @param endDate the last date to read, 0 for none.
+     * @param projection the columns of data requested
+     * @param sortOrder order of the results
+     */
+    public Cursor queryForecast(String locationSetting, long startDate, long endDate,
+                                String[] projection, String sortOrder) {
+        // dates are normalized like the uri builders do, so both paths share cached results.
+        startDate = WeatherContract.normalizeDate(startDate);
+        endDate = WeatherContract.normalizeDate(endDate);
+        if (mProvider == null) {
+            Uri uri = endDate != 0
+                    ? WeatherContract.WeatherEntry.buildWeatherLocationWithDateRange(
+                            locationSetting, startDate, endDate)
+                    : startDate != 0
+                    ? WeatherContract.WeatherEntry.buildWeatherLocationWithStartDate(
+                            locationSetting, startDate)
+                    : WeatherContract.WeatherEntry.buildWeatherLocation(locationSetting);
+            return mResolver.query(uri, projection, null, null, sortOrder);
+        }
+        Cursor cursor = mProvider.queryWeather(locationSetting, startDate, endDate, projection,
+                sortOrder);
+        cursor.setNotificationUri(mResolver,
+                WeatherContract.WeatherEntry.buildWeatherLocation(locationSetting));
+        return cursor;
+    }
+
+    /**
+     * Reads the weather of one day of a location, like a query on its weather/location/date
+     * uri. The cursor is registered for changes to that day.
+     */
+    public Cursor queryForecastDay(String locationSetting, long date, String[] projection) {
+        Uri uri = WeatherContract.WeatherEntry.buildWeatherLocationWithDate(locationSetting,
+                date);
+        if (mProvider == null) {
+            return mResolver.query(uri, projection, null, null, null);
+        }
+        Cursor cursor = mProvider.queryWeatherDay(locationSetting,
+                WeatherContract.normalizeDate(date), projection, null);
+        cursor.setNotificationUri(mResolver, uri);
+        return cursor;
+    }
+}
@@ -0,0 +1,127 @@
+package com.kenano.android.mysunshine;
+
+import org.junit.Test;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that concurrent fetches of one location share a single run.
+ */
+public class FetchCoalescerTest {
+
+    @Test
+    public void concurrentFetchesOfOneLocationRunOnce() throws Exception {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger runs = new AtomicInteger();
+
+        final Callable<Integer> fetch = new Callable<Integer>() {
+            @Override
+            public Integer call() throws Exception {
+                runs.incrementAndGet();
+                started.countDown();
+                release.await(5, TimeUnit.SECONDS);
+                return 14;
+            }
+        };
+
+        long deduplicatedBefore = FetchCoalescer.getDeduplicatedCount();
+        final int[] results = new int[2];
+
+        Thread first = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                results[0] = FetchCoalescer.fetch("94043", fetch);
+            }
+        });
+        first.start();
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+
+        // the first fetch is now blocked in flight, this one has to join it.
+        Thread second = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                results[1] = FetchCoalescer.fetch("94043", fetch);
+            }
+        });
+        second.start();
+        while (FetchCoalescer.getDeduplicatedCount() == deduplicatedBefore) {
+            Thread.sleep(5);
+        }
+
+        release.countDown();
+        first.join();
+        second.join();
+
+        assertEquals(1, runs.get());
+        assertEquals(14, results[0]);
+        assertEquals(14, results[1]);
+        assertEquals(deduplicatedBefore + 1, FetchCoalescer.getDeduplicatedCount());
+    }
+
+    @Test
+    public void interruptedWaitReportsFailure() throws Exception {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+
+        final Callable<Integer> fetch = new Callable<Integer>() {
+            @Override
+            public Integer call() throws Exception {
+                started.countDown();
+                release.await(5, TimeUnit.SECONDS);
+                return 14;
+            }
+        };
+
+        Thread first = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                FetchCoalescer.fetch("60601", fetch);
+            }
+        });
+        first.start();
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+
+        final int[] result = new int[1];
+        final boolean[] interrupted = new boolean[1];
+        long deduplicatedBefore = FetchCoalescer.getDeduplicatedCount();
+        Thread second = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                result[0] = FetchCoalescer.fetch("60601", fetch);
+                interrupted[0] = Thread.currentThread().isInterrupted();
+            }
+        });
+        second.start();
+        while (FetchCoalescer.getDeduplicatedCount() == deduplicatedBefore) {
+            Thread.sleep(5);
+        }
+
+        second.interrupt();
+        second.join();
+        release.countDown();
+        first.join();
+
+        assertEquals(FetchWeatherTask.FETCH_FAILED, result[0]);
+        assertTrue(interrupted[0]);
+    }
+
+    @Test
+    public void sequentialFetchesAreNotCoalesced() throws Exception {
+        final AtomicInteger runs = new AtomicInteger();
+        Callable<Integer> fetch = new Callable<Integer>() {
+            @Override
+            public Integer call() {
+                return runs.incrementAndGet();
+            }
+        };
+
+        assertEquals(1, FetchCoalescer.fetch("10001", fetch));
+        assertEquals(2, FetchCoalescer.fetch("10001", fetch));
+    }
+}